@@ -0,0 +1,44 @@
+package common;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.ReduceContext;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.reduce.WrappedReducer;
+import org.openjdk.jmh.infra.Blackhole;
+
+// contexte minimal pour appeler directement setup() et reduce() d'un réducteur hors de MapReduce
+// les sorties partent dans le Blackhole de JMH pour ne pas être éliminées, les compteurs sont gardés en mémoire
+public class BenchmarkContexts {
+
+	@SuppressWarnings("unchecked")
+	public static <KI, VI, KO, VO> Reducer<KI, VI, KO, VO>.Context reducerContext(final Configuration conf, final URI[] cacheFiles, final Blackhole blackhole) {
+		final Counters counters = new Counters();
+		ReduceContext<KI, VI, KO, VO> reduceContext = (ReduceContext<KI, VI, KO, VO>) Proxy.newProxyInstance(ReduceContext.class.getClassLoader(), new Class<?>[]{ReduceContext.class}, new InvocationHandler() {
+
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch(method.getName()) {
+					case "write":
+						blackhole.consume(args[0]);
+						blackhole.consume(args[1]);
+						return null;
+					case "getConfiguration":
+						return conf;
+					case "getCacheFiles":
+						return cacheFiles;
+					case "getCounter":
+						return args.length == 1 ? counters.findCounter((Enum<?>) args[0]) : counters.findCounter((String) args[0], (String) args[1]);
+					default:
+						throw new UnsupportedOperationException(method.getName());
+				}
+			}
+		});
+		return new WrappedReducer<KI, VI, KO, VO>().getReducerContext(reduceContext);
+	}
+}
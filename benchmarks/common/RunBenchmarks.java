@@ -0,0 +1,19 @@
+package common;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// lance les benchmarks dont le nom correspond au premier argument (tous par défaut) avec le profileur d'allocations
+// les colonnes "gc.alloc.rate.norm" donnent le nombre d'octets alloués par opération
+public class RunBenchmarks {
+
+	public static void main(String[] args) throws Exception {
+		Options options = new OptionsBuilder()
+				.include(args.length > 0 ? args[0] : ".*Benchmark.*")
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
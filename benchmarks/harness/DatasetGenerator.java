@@ -0,0 +1,137 @@
+package harness;
+
+// java -cp ... harness.DatasetGenerator [--dims=2] [--blobs=20] [--spread=2] [--skew=0] [--duplicates=0] [--seed=0] <outputFile> <nbRows>
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+// genere un fichier au format de worldcitiespop.txt : une ligne d'en-tete puis "Country,City,AccentCity,Region,Population,Latitude,Longitude"
+// les coordonnees sont tirees autour de "blobs" centres gaussiens, les dimensions au-dela de deux sont ajoutees en colonnes apres la longitude
+// - skew : les blobs sont choisis avec un poids 1 / (rang + 1) ^ skew (0 = blobs equiprobables)
+// - duplicates : proportion de lignes qui reprennent exactement les coordonnees d'une ligne recente
+public class DatasetGenerator {
+	private static final String[] COUNTRIES = {"fr", "us", "de", "br", "in", "cn", "ru", "za", "au", "ar"};
+	private static final int RECENT_POINTS = 1024;
+
+	private final int nbDimensions;
+	private final double spread;
+	private final double duplicates;
+	private final Random random;
+	private final double[][] centers;
+	private final double[] cumulativeWeights;
+	private final double[][] recentPoints = new double[RECENT_POINTS][];
+	private long nbRows;
+
+	public DatasetGenerator(int nbDimensions, int nbBlobs, double spread, double skew, double duplicates, long seed) {
+		this.nbDimensions = nbDimensions;
+		this.spread = spread;
+		this.duplicates = duplicates;
+		this.random = new Random(seed);
+
+		// latitude entre -60 et 70, longitude entre -180 et 180, autres dimensions entre -100 et 100
+		this.centers = new double[nbBlobs][nbDimensions];
+		this.cumulativeWeights = new double[nbBlobs];
+		double total = 0;
+		for(int i = 0; i < nbBlobs; ++i) {
+			for(int d = 0; d < nbDimensions; ++d)
+				this.centers[i][d] = d == 0 ? -60 + 130 * this.random.nextDouble() : d == 1 ? -180 + 360 * this.random.nextDouble() : -100 + 200 * this.random.nextDouble();
+			total += 1 / Math.pow(i + 1, skew);
+			this.cumulativeWeights[i] = total;
+		}
+		for(int i = 0; i < nbBlobs; ++i)
+			this.cumulativeWeights[i] /= total;
+	}
+
+	// coordonnees de la ligne suivante, le tableau retourne ne doit pas etre modifie
+	public double[] nextPoint() {
+		int recent = (int) (this.nbRows++ % RECENT_POINTS);
+		if(this.nbRows > RECENT_POINTS && this.random.nextDouble() < this.duplicates) {
+			double[] point = this.recentPoints[this.random.nextInt(RECENT_POINTS)];
+			this.recentPoints[recent] = point;
+			return point;
+		}
+
+		double[] center = this.centers[this.pickBlob()];
+		double[] point = new double[this.nbDimensions];
+		for(int d = 0; d < this.nbDimensions; ++d)
+			point[d] = center[d] + this.random.nextGaussian() * this.spread;
+		point[0] = Math.max(-90, Math.min(90, point[0]));
+		if(this.nbDimensions > 1)
+			point[1] = Math.max(-180, Math.min(180, point[1]));
+		this.recentPoints[recent] = point;
+		return point;
+	}
+
+	private int pickBlob() {
+		double target = this.random.nextDouble();
+		int low = 0;
+		int high = this.cumulativeWeights.length - 1;
+		int middle;
+		while(low < high) {
+			middle = (low + high) >>> 1;
+			if(this.cumulativeWeights[middle] < target)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	// ecrit une ligne complete, les coordonnees avec six decimales comme dans le fichier d'origine
+	public void writeLine(StringBuilder str, long row, double[] point) {
+		str.setLength(0);
+		str.append(COUNTRIES[(int) (row % COUNTRIES.length)]).append(",city").append(row).append(",City").append(row).append(",").append(row % 100).append(",");
+		if(row % 7 == 0)
+			str.append(row % 100000);
+		for(double coord : point) {
+			str.append(",");
+			appendFixed(str, coord);
+		}
+		str.append("\n");
+	}
+
+	// plus rapide que String.format() pour des centaines de millions de lignes
+	private static void appendFixed(StringBuilder str, double value) {
+		long micros = Math.round(value * 1000000);
+		if(micros < 0) {
+			str.append('-');
+			micros = -micros;
+		}
+		str.append(micros / 1000000).append('.');
+		long fraction = micros % 1000000;
+		for(long power = 100000; power > fraction && power > 1; power /= 10)
+			str.append('0');
+		str.append(fraction);
+	}
+
+	public static void generate(FileSystem fs, Path outputPath, long nbRows, int nbDimensions, int nbBlobs, double spread, double skew, double duplicates, long seed) throws IOException {
+		DatasetGenerator generator = new DatasetGenerator(nbDimensions, nbBlobs, spread, skew, duplicates, seed);
+		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fs.create(outputPath, true), "ISO-8859-1"), 1 << 20);
+		StringBuilder str = new StringBuilder();
+		str.append("Country,City,AccentCity,Region,Population,Latitude,Longitude");
+		for(int d = 2; d < nbDimensions; ++d)
+			str.append(",Dimension").append(d);
+		bw.write(str.append("\n").toString());
+		for(long row = 0; row < nbRows; ++row) {
+			generator.writeLine(str, row, generator.nextPoint());
+			bw.append(str);
+		}
+		bw.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Configuration conf = new Configuration();
+		args = LocalHarness.parseOptions(conf, args);
+		if(args.length < 2) {
+			System.out.println("Usage : <command> [--dims=2] [--blobs=20] [--spread=2] [--skew=0] [--duplicates=0] [--seed=0] <outputFile> <nbRows>");
+			System.exit(0);
+		}
+		generate(FileSystem.get(conf), new Path(args[0]), Long.parseLong(args[1]), conf.getInt("harness.dims", 2), conf.getInt("harness.blobs", 20), conf.getDouble("harness.spread", 2), conf.getDouble("harness.skew", 0), conf.getDouble("harness.duplicates", 0), conf.getLong("harness.seed", 0));
+	}
+}
@@ -0,0 +1,154 @@
+package harness;
+
+// java -cp ... harness.LocalHarness [--dims=2] [--blobs=20] [--skew=0] [--duplicates=0] [--seed=0] [driver options] kmeans <workDir> <nbClusters> 1000000,10000000
+// java -cp ... harness.LocalHarness [generator options] [driver options] hierarchic <workDir> <nbClusters> <nbHierarchies> 1000000,10000000
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+// lance kmeans.Main ou hierarchic.Main dans ce processus, avec le LocalJobRunner de Hadoop, sur des fichiers generes de tailles croissantes
+// pour chaque taille : nombre d'iterations, duree de chaque iteration, debit en points par seconde et pic de memoire du tas
+// les durees par iteration viennent de la chronologie ecrite par le driver (option "--metrics")
+// le resultat est affiche et ecrit dans <workDir>/report.csv, les fichiers generes sont gardes pour les lancements suivants
+public class LocalHarness {
+	private static final List<String> GENERATOR_OPTIONS = Arrays.asList("dims", "blobs", "spread", "skew", "duplicates", "seed");
+
+	// place les options du generateur dans la configuration ("harness.<nom>") et retourne les autres arguments, options du driver comprises
+	static String[] parseOptions(Configuration conf, String[] args) {
+		List<String> otherArgs = new ArrayList<String>();
+		int equalIndex;
+		for(String arg : args) {
+			equalIndex = arg.indexOf('=');
+			if(arg.startsWith("--") && equalIndex != -1 && GENERATOR_OPTIONS.contains(arg.substring(2, equalIndex)))
+				conf.set("harness." + arg.substring(2, equalIndex), arg.substring(equalIndex + 1));
+			else
+				otherArgs.add(arg);
+		}
+		return otherArgs.toArray(new String[otherArgs.size()]);
+	}
+
+	private static Configuration localConfiguration() {
+		Configuration conf = new Configuration();
+		conf.set("mapreduce.framework.name", "local");
+		conf.set("fs.defaultFS", "file:///");
+		return conf;
+	}
+
+	// somme des pics d'utilisation des zones du tas depuis le dernier appel
+	private static long peakHeap(boolean reset) {
+		long peak = 0;
+		for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if(pool.getType() != MemoryType.HEAP)
+				continue;
+			if(reset)
+				pool.resetPeakUsage();
+			else
+				peak += pool.getPeakUsage().getUsed();
+		}
+		return peak;
+	}
+
+	// durees (colonne "timeMs") et nombres de points lus (colonne "recordsParsed") de chaque ligne d'une chronologie CSV
+	private static List<long[]> readTimeline(FileSystem fs, Path path) throws IOException {
+		List<long[]> iterations = new ArrayList<long[]>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(fs.open(path)));
+		List<String> columns = Arrays.asList(reader.readLine().split(","));
+		int timeColumn = columns.indexOf("timeMs");
+		int recordsColumn = columns.indexOf("recordsParsed");
+		String line;
+		String[] fields;
+		while((line = reader.readLine()) != null) {
+			fields = line.split(",");
+			iterations.add(new long[]{Long.parseLong(fields[timeColumn]), Long.parseLong(fields[recordsColumn])});
+		}
+		reader.close();
+		return iterations;
+	}
+
+	public static void main(String[] args) throws Exception {
+		Configuration harnessConf = localConfiguration();
+		args = parseOptions(harnessConf, args);
+
+		List<String> driverOptions = new ArrayList<String>();
+		List<String> positionalArgs = new ArrayList<String>();
+		for(String arg : args)
+			(arg.startsWith("--") ? driverOptions : positionalArgs).add(arg);
+		boolean isHierarchic = !positionalArgs.isEmpty() && positionalArgs.get(0).equals("hierarchic");
+		if(positionalArgs.size() < (isHierarchic ? 5 : 4)) {
+			System.out.println("Usage : <command> [--dims=2] [--blobs=20] [--spread=2] [--skew=0] [--duplicates=0] [--seed=0] [driver options] kmeans|hierarchic <workDir> <nbClusters> [<nbHierarchies>] <nbRows1,nbRows2,...>");
+			System.exit(0);
+		}
+
+		FileSystem fs = FileSystem.get(harnessConf);
+		Path workPath = new Path(positionalArgs.get(1));
+		String nbClusters = positionalArgs.get(2);
+		String[] sizes = positionalArgs.get(isHierarchic ? 4 : 3).split(",");
+		int nbDimensions = harnessConf.getInt("harness.dims", 2);
+		Path metricsPath = new Path(workPath, "timeline.csv");
+		Path reportPath = new Path(workPath, "report.csv");
+		StringBuilder report = new StringBuilder("algorithm,rows,dims,exitCode,iterations,totalSeconds,iterationSeconds,pointsPerSecond,peakHeapMB\n");
+
+		for(String size : sizes) {
+			long nbRows = Long.parseLong(size);
+
+			// le nom "worldcitiespop.txt" fait sauter la ligne d'en-tete aux drivers
+			Path inputPath = new Path(new Path(workPath, "rows" + nbRows + "-dims" + nbDimensions), "worldcitiespop.txt");
+			if(!fs.exists(inputPath)) {
+				System.out.println("Generating " + nbRows + " rows into " + inputPath);
+				DatasetGenerator.generate(fs, inputPath, nbRows, nbDimensions, harnessConf.getInt("harness.blobs", 20), harnessConf.getDouble("harness.spread", 2), harnessConf.getDouble("harness.skew", 0), harnessConf.getDouble("harness.duplicates", 0), harnessConf.getLong("harness.seed", 0));
+			}
+
+			List<String> driverArgs = new ArrayList<String>(driverOptions);
+			driverArgs.add("--metrics=" + metricsPath);
+			driverArgs.add(inputPath.toString());
+			driverArgs.add(new Path(workPath, "output").toString());
+			driverArgs.add(nbClusters);
+			if(isHierarchic)
+				driverArgs.add(positionalArgs.get(3));
+			for(int d = 0; d < nbDimensions; ++d)
+				driverArgs.add(String.valueOf(5 + d));
+
+			System.gc();
+			peakHeap(true);
+			long startTime = System.currentTimeMillis();
+			int exitCode = isHierarchic ? hierarchic.Main.run(localConfiguration(), driverArgs.toArray(new String[driverArgs.size()])) : kmeans.Main.run(localConfiguration(), driverArgs.toArray(new String[driverArgs.size()]));
+			long totalTime = System.currentTimeMillis() - startTime;
+			long peakHeap = peakHeap(false);
+
+			List<long[]> iterations = fs.exists(metricsPath) ? readTimeline(fs, metricsPath) : new ArrayList<long[]>();
+			long iterationsTime = 0;
+			long records = 0;
+			StringBuilder iterationSeconds = new StringBuilder();
+			for(long[] iteration : iterations) {
+				iterationsTime += iteration[0];
+				records += iteration[1];
+				if(iterationSeconds.length() > 0)
+					iterationSeconds.append(" ");
+				iterationSeconds.append(iteration[0] / 1000.0);
+			}
+			fs.delete(metricsPath, false);
+
+			report.append(isHierarchic ? "hierarchic" : "kmeans").append(",").append(nbRows).append(",").append(nbDimensions).append(",").append(exitCode).append(",");
+			report.append(iterations.size()).append(",").append(totalTime / 1000.0).append(",").append(iterationSeconds).append(",");
+			report.append(iterationsTime == 0 ? 0 : Math.round(records * 1000.0 / iterationsTime)).append(",").append(peakHeap / (1024 * 1024)).append("\n");
+		}
+
+		System.out.print(report);
+		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(fs.create(reportPath, true)));
+		bw.write(report.toString());
+		bw.close();
+	}
+}
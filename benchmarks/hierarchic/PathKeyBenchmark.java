@@ -0,0 +1,68 @@
+package hierarchic;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// calcul de la clé des clusterPoints frères, à partir d'une ligne de fichier intermédiaire (mapper) ou d'une liste d'indices (réducteur)
+// et codage / décodage de l'identifiant de chemin utilisé comme clé de sortie des mappers
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PathKeyBenchmark {
+	@Param({"2", "4", "8"})
+	private int nbIterations; // niveau de la hiérarchie, donc longueur du chemin
+
+	private String line;
+	private short[] indexes;
+	private long pathId;
+
+	@Setup
+	public void setup() {
+		StringBuilder str = new StringBuilder("fr,aast,Aast,B8,,43.3,-0.366667");
+		this.indexes = new short[this.nbIterations];
+		for(int i = 0; i < this.nbIterations; ++i) {
+			this.indexes[i] = (short) (i % 10);
+			if(i != this.nbIterations - 1) {
+				str.append(":");
+				str.append(this.indexes[i]);
+			}
+		}
+		this.line = str.toString();
+		this.pathId = ClusterPointWritable.pathId(this.indexes, 10);
+		ClusterPointWritable.setNbIterations(this.nbIterations);
+	}
+
+	@Benchmark
+	public String fileLineToKey() {
+		return ClusterPointWritable.fileLineToKey(this.line);
+	}
+
+	@Benchmark
+	public String indexesToKey() {
+		return ClusterPointWritable.indexesToKey(this.indexes);
+	}
+
+	@Benchmark
+	public long pathId() {
+		return ClusterPointWritable.pathId(this.indexes, 10);
+	}
+
+	@Benchmark
+	public short[] pathIdToIndexes() {
+		return ClusterPointWritable.pathIdToIndexes(this.pathId, this.nbIterations, 10);
+	}
+}
@@ -0,0 +1,98 @@
+package kmeans;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import common.BenchmarkContexts;
+
+// appel de reduce() du combiner et du reducteur pour une cle recevant nbValues points
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AggregationBenchmark {
+	@Param({"10", "1000", "100000"})
+	private int nbValues;
+
+	@Param({"2", "8", "32"})
+	private int nbDimensions;
+
+	private List<PointXDWritable> values;
+	private IntWritable key = new IntWritable(0);
+	private File cacheFile;
+	private Main.KmeansCombiner combiner;
+	private Main.KmeansReducer reducer;
+	private Reducer<IntWritable, PointXDWritable, IntWritable, PointXDWritable>.Context combinerContext;
+	private Reducer<IntWritable, PointXDWritable, ClusterPointWritable, NullWritable>.Context reducerContext;
+
+	@Setup
+	public void setup(Blackhole blackhole) throws IOException, InterruptedException {
+		Random random = new Random(0);
+		double[] coords;
+		this.values = new ArrayList<PointXDWritable>(this.nbValues);
+		for(int i = 0; i < this.nbValues; ++i) {
+			coords = new double[this.nbDimensions];
+			for(int j = 0; j < this.nbDimensions; ++j)
+				coords[j] = random.nextDouble() * 360 - 180;
+			this.values.add(new PointXDWritable(coords, 1));
+		}
+
+		// le reducteur compare le nouveau clusterPoint a celui du fichier cache
+		this.cacheFile = File.createTempFile("distributedCache", ".benchmark");
+		FileOutputStream os = new FileOutputStream(this.cacheFile);
+		ClusterPointWritable.writeIntoFile(new ClusterPointWritable[]{new ClusterPointWritable(new double[this.nbDimensions], 0)}, os);
+		os.close();
+
+		Configuration conf = new Configuration();
+		conf.setInt("megaProject.args.nbDimensions", this.nbDimensions);
+		conf.setInt("megaProject.args.nbClusters", 1);
+		URI[] cacheFiles = new URI[]{this.cacheFile.toURI()};
+		this.combiner = new Main.KmeansCombiner();
+		this.combinerContext = BenchmarkContexts.reducerContext(conf, cacheFiles, blackhole);
+		this.combiner.setup(this.combinerContext);
+		this.reducer = new Main.KmeansReducer();
+		this.reducerContext = BenchmarkContexts.reducerContext(conf, cacheFiles, blackhole);
+		this.reducer.setup(this.reducerContext);
+	}
+
+	@TearDown
+	public void tearDown() {
+		this.cacheFile.delete();
+	}
+
+	@Benchmark
+	public void combiner() throws IOException, InterruptedException {
+		this.combiner.reduce(this.key, this.values, this.combinerContext);
+	}
+
+	@Benchmark
+	public void reducer() throws IOException, InterruptedException {
+		this.reducer.reduce(this.key, this.values, this.reducerContext);
+	}
+}
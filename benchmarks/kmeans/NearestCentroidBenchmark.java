@@ -0,0 +1,109 @@
+package kmeans;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import common.AssignmentKernel;
+import common.CentroidIndex;
+
+// recherche du clusterPoint le plus proche d'un point, temps par point, pour les differentes strategies des mappers
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NearestCentroidBenchmark {
+	private static final int NB_POINTS = 1024;
+
+	@Param({"8", "64", "512", "4096"})
+	private int nbClusters;
+
+	@Param({"2", "8", "32"})
+	private int nbDimensions;
+
+	private PointXDWritable[] points;
+	private ClusterPointWritable[] clusterPoints;
+	private CentroidIndex centroidIndex;
+	private AssignmentKernel assignmentKernel;
+
+	@Setup
+	public void setup() {
+		Random random = new Random(0);
+		PointXDWritable.setNbDimensions(this.nbDimensions);
+		this.points = new PointXDWritable[NB_POINTS];
+		for(int i = 0; i < NB_POINTS; ++i)
+			this.points[i] = new PointXDWritable(randomCoords(random), 1);
+		this.clusterPoints = new ClusterPointWritable[this.nbClusters];
+		for(int i = 0; i < this.nbClusters; ++i)
+			this.clusterPoints[i] = new ClusterPointWritable(randomCoords(random), i);
+		this.centroidIndex = new CentroidIndex(ClusterPointWritable.toCoordsArray(this.clusterPoints));
+		this.assignmentKernel = new AssignmentKernel(ClusterPointWritable.toCoordsArray(this.clusterPoints), NB_POINTS);
+	}
+
+	private double[] randomCoords(Random random) {
+		double[] coords = new double[this.nbDimensions];
+		for(int i = 0; i < this.nbDimensions; ++i)
+			coords[i] = random.nextDouble() * 360 - 180;
+		return coords;
+	}
+
+	// un seul calcul de distance
+	@Benchmark
+	public double distance() {
+		return this.points[0].distance(this.clusterPoints[0]);
+	}
+
+	// boucle d'origine des mappers : distance() vers chaque clusterPoint
+	@Benchmark
+	@OperationsPerInvocation(NB_POINTS)
+	public void linearScan(Blackhole blackhole) {
+		ClusterPointWritable nearestClusterPoint;
+		double minDistance;
+		double currentDistance;
+		for(PointXDWritable point : this.points) {
+			nearestClusterPoint = null;
+			minDistance = Double.MAX_VALUE;
+			for(ClusterPointWritable clusterPoint : this.clusterPoints) {
+				currentDistance = point.distance(clusterPoint);
+				if(currentDistance < minDistance) {
+					minDistance = currentDistance;
+					nearestClusterPoint = clusterPoint;
+				}
+			}
+			blackhole.consume(nearestClusterPoint);
+		}
+	}
+
+	// option "--centroidIndex"
+	@Benchmark
+	@OperationsPerInvocation(NB_POINTS)
+	public void centroidIndex(Blackhole blackhole) {
+		for(PointXDWritable point : this.points)
+			blackhole.consume(this.centroidIndex.nearest(point.coords));
+	}
+
+	// option "--batchKernel", un bloc de NB_POINTS points
+	@Benchmark
+	@OperationsPerInvocation(NB_POINTS)
+	public int[] assignmentKernel() {
+		this.assignmentKernel.clear();
+		for(PointXDWritable point : this.points)
+			this.assignmentKernel.add(point.coords);
+		return this.assignmentKernel.assign();
+	}
+}
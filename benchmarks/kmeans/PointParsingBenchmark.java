@@ -0,0 +1,61 @@
+package kmeans;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.Text;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// lecture des coordonnees d'une ligne au format de worldcitiespop.txt : cinq colonnes de texte suivies de nbDimensions colonnes numeriques
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointParsingBenchmark {
+	@Param({"2", "8", "32"})
+	private int nbDimensions;
+
+	private String line;
+	private Text text;
+	private int[] positions;
+	private PointXDWritable point;
+
+	@Setup
+	public void setup() {
+		StringBuilder str = new StringBuilder("fr,aast,Aast,B8,");
+		this.positions = new int[this.nbDimensions];
+		for(int i = 0; i < this.nbDimensions; ++i) {
+			str.append(",");
+			str.append(String.format(Locale.ROOT, "%.6f", 43.3 + i * 0.123456)); // six decimales comme dans worldcitiespop.txt
+			this.positions[i] = 5 + i;
+		}
+		this.line = str.toString();
+		this.text = new Text(this.line);
+		PointXDWritable.setNbDimensions(this.nbDimensions);
+		this.point = new PointXDWritable();
+	}
+
+	// constructeur d'origine : split() de la ligne et Double.parseDouble() de chaque colonne
+	@Benchmark
+	public PointXDWritable stringConstructor() {
+		return new PointXDWritable(this.line, this.nbDimensions, this.positions);
+	}
+
+	// lecture directe des octets du Text dans un point reutilise
+	@Benchmark
+	public boolean textSet() {
+		return this.point.set(this.text, this.positions);
+	}
+}
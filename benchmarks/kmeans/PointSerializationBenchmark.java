@@ -0,0 +1,67 @@
+package kmeans;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// aller-retour write() / readFields() d'un point, comme entre le mapper et le reducteur
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PointSerializationBenchmark {
+	@Param({"2", "8", "32"})
+	private int nbDimensions;
+
+	private PointXDWritable point;
+	private PointXDWritable readPoint;
+	private ClusterPointWritable clusterPoint;
+	private ClusterPointWritable readClusterPoint;
+	private DataOutputBuffer out = new DataOutputBuffer();
+	private DataInputBuffer in = new DataInputBuffer();
+
+	@Setup
+	public void setup() {
+		double[] coords = new double[this.nbDimensions];
+		for(int i = 0; i < this.nbDimensions; ++i)
+			coords[i] = 43.3 + i * 0.123456;
+		PointXDWritable.setNbDimensions(this.nbDimensions);
+		this.point = new PointXDWritable(coords.clone(), 1);
+		this.readPoint = new PointXDWritable();
+		this.clusterPoint = new ClusterPointWritable(coords.clone(), 42);
+		this.readClusterPoint = new ClusterPointWritable();
+	}
+
+	@Benchmark
+	public PointXDWritable pointRoundTrip() throws IOException {
+		this.out.reset();
+		this.point.write(this.out);
+		this.in.reset(this.out.getData(), this.out.getLength());
+		this.readPoint.readFields(this.in);
+		return this.readPoint;
+	}
+
+	@Benchmark
+	public ClusterPointWritable clusterPointRoundTrip() throws IOException {
+		this.out.reset();
+		this.clusterPoint.write(this.out);
+		this.in.reset(this.out.getData(), this.out.getLength());
+		this.readClusterPoint.readFields(this.in);
+		return this.readClusterPoint;
+	}
+}
@@ -0,0 +1,101 @@
+package common;
+
+// affectation par blocs : les points sont accumulés dans un bloc rangé par dimension (structure de tableaux)
+// et comparés d'un coup à la matrice à plat des clusterPoints avec la forme ||x||² + ||c||² - 2 x.c
+// les boucles internes parcourent des tableaux contigus sans appel de méthode, ce que le compilateur JIT sait vectoriser
+public class AssignmentKernel {
+	private final int nbCentroids;
+	private final int nbDimensions;
+	private final int capacity;
+	private final double[] centroids; // coordonnées à plat (clusterPoint * nbDimensions + dimension)
+	private final double[] centroidNorms;
+	private final double[] block; // coordonnées des points du bloc (dimension * capacity + point)
+	private final double[] pointNorms;
+	private final double[] dots;
+	private final double[] bestDistances;
+	private final int[] assignments;
+	private int size;
+
+	public AssignmentKernel(double[][] centroids, int capacity) {
+		this.nbCentroids = centroids.length;
+		this.nbDimensions = centroids.length == 0 ? 0 : centroids[0].length;
+		this.capacity = capacity;
+		this.centroids = new double[this.nbCentroids * this.nbDimensions];
+		this.centroidNorms = new double[this.nbCentroids];
+		for(int j = 0; j < this.nbCentroids; ++j) {
+			for(int d = 0; d < this.nbDimensions; ++d) {
+				this.centroids[j * this.nbDimensions + d] = centroids[j][d];
+				this.centroidNorms[j] += centroids[j][d] * centroids[j][d];
+			}
+		}
+		this.block = new double[this.nbDimensions * capacity];
+		this.pointNorms = new double[capacity];
+		this.dots = new double[capacity];
+		this.bestDistances = new double[capacity];
+		this.assignments = new int[capacity];
+	}
+
+	// ajoute un point au bloc et retourne true si le bloc est plein
+	public boolean add(double[] coords) {
+		double norm = 0;
+		for(int d = 0; d < this.nbDimensions; ++d) {
+			this.block[d * this.capacity + this.size] = coords[d];
+			norm += coords[d] * coords[d];
+		}
+		this.pointNorms[this.size++] = norm;
+		return this.size == this.capacity;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public void clear() {
+		this.size = 0;
+	}
+
+	// recopie les coordonnées du i-ème point du bloc
+	public void getPoint(int point, double[] coords) {
+		for(int d = 0; d < this.nbDimensions; ++d)
+			coords[d] = this.block[d * this.capacity + point];
+	}
+
+	// carré de la distance du i-ème point du bloc à son clusterPoint, valable après assign()
+	public double getSquaredDistance(int point) {
+		return Math.max(this.bestDistances[point], 0);
+	}
+
+	// calcule le clusterPoint le plus proche de chaque point du bloc, le tableau retourné est réutilisé d'un bloc à l'autre
+	// à distance égale, c'est le clusterPoint de plus petit indice qui est retenu
+	public int[] assign() {
+		int n = this.size;
+		int offset;
+		int base;
+		double centroidCoord;
+		double distance;
+		for(int i = 0; i < n; ++i) {
+			this.bestDistances[i] = Double.POSITIVE_INFINITY;
+			this.assignments[i] = 0;
+		}
+
+		for(int j = 0; j < this.nbCentroids; ++j) {
+			offset = j * this.nbDimensions;
+			for(int i = 0; i < n; ++i)
+				this.dots[i] = 0;
+			for(int d = 0; d < this.nbDimensions; ++d) {
+				centroidCoord = this.centroids[offset + d];
+				base = d * this.capacity;
+				for(int i = 0; i < n; ++i)
+					this.dots[i] += centroidCoord * this.block[base + i];
+			}
+			for(int i = 0; i < n; ++i) {
+				distance = this.pointNorms[i] + this.centroidNorms[j] - 2 * this.dots[i];
+				if(distance < this.bestDistances[i]) {
+					this.bestDistances[i] = distance;
+					this.assignments[i] = j;
+				}
+			}
+		}
+		return this.assignments;
+	}
+}
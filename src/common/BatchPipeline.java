@@ -0,0 +1,106 @@
+package common;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.MapContext;
+
+// traitement de blocs de lignes par un pool de threads à l'intérieur d'une seule tâche map
+// le thread de la tâche lit les lignes et remplit les blocs, les threads du pool les traitent (lecture des coordonnées, affectation)
+// et les blocs traités sont rendus dans l'ordre où ils ont été soumis : le thread de la tâche peut alors écrire en sortie,
+// fusionner les sommes du bloc dans les siennes puis réutiliser le bloc, ce qui rend le résultat indépendant de l'ordonnancement
+// le nombre de blocs en cours est borné (deux par thread), la mémoire utilisée ne dépend donc pas de la taille du bloc HDFS
+// chaque mapper ne fournit que le traitement d'un bloc et ce qu'il en fait une fois traité, la boucle de lecture est dans run()
+public class BatchPipeline<B extends BatchPipeline.Batch> {
+
+	// bloc de lignes rempli par le thread de la tâche
+	public interface Batch {
+		// recopie une ligne et son offset dans le fichier dans le bloc, retourne true si le bloc est plein
+		boolean add(long offset, Text line);
+
+		int size();
+	}
+
+	// traitement d'un bloc, appelé depuis un thread du pool : il ne doit modifier que le bloc
+	public interface Worker<B> {
+		void process(B batch) throws Exception;
+	}
+
+	// utilisation d'un bloc traité dans le thread de la tâche (écriture des lignes, fusion des sommes), qui doit le vider pour qu'il soit réutilisé
+	public interface Writer<B> {
+		void write(B batch) throws IOException, InterruptedException;
+	}
+
+	private final ExecutorService pool;
+	private final Worker<B> worker;
+	private final ArrayDeque<Future<B>> pending = new ArrayDeque<Future<B>>();
+	private final int maxPending;
+
+	public BatchPipeline(int nbThreads, Worker<B> worker) {
+		this.pool = Executors.newFixedThreadPool(nbThreads, runnable -> {
+			Thread thread = new Thread(runnable, "batch-worker");
+			thread.setDaemon(true); // une tâche en échec ne doit pas rester bloquée par ses threads
+			return thread;
+		});
+		this.worker = worker;
+		this.maxPending = 2 * nbThreads;
+	}
+
+	// lit toutes les lignes de la tâche sauf celles que "skip" écarte, les répartit dans des blocs créés par "factory" à la demande
+	// et passe chaque bloc traité à "writer" dans l'ordre de lecture, le pool est arrêté à la fin même en cas d'erreur
+	public void run(MapContext<LongWritable, Text, ?, ?> context, Predicate<LongWritable> skip, Supplier<B> factory, Writer<B> writer) throws IOException, InterruptedException {
+		B batch = null;
+		try {
+			while(context.nextKeyValue()) {
+				if(skip.test(context.getCurrentKey()))
+					continue;
+				if(batch == null)
+					batch = factory.get();
+				// le bloc rendu par la file est déjà traité : il est passé à "writer" puis réutilisé
+				if(batch.add(context.getCurrentKey().get(), context.getCurrentValue()) && (batch = this.submit(batch)) != null)
+					writer.write(batch);
+			}
+			if(batch != null && batch.size() > 0 && (batch = this.submit(batch)) != null)
+				writer.write(batch);
+			while((batch = this.next()) != null)
+				writer.write(batch);
+		}
+		finally {
+			this.shutdown();
+		}
+	}
+
+	// soumet un bloc plein, puis retourne le plus ancien bloc traité si trop de blocs sont en cours (null sinon)
+	private B submit(final B batch) throws IOException, InterruptedException {
+		this.pending.add(this.pool.submit(() -> {
+			this.worker.process(batch);
+			return batch;
+		}));
+		return this.pending.size() > this.maxPending ? this.next() : null;
+	}
+
+	// attend et retourne le plus ancien bloc en cours, null s'il n'y en a plus
+	private B next() throws IOException, InterruptedException {
+		Future<B> future = this.pending.poll();
+		if(future == null)
+			return null;
+		try {
+			return future.get();
+		}
+		catch(ExecutionException e) {
+			throw new IOException("batch processing failed", e.getCause());
+		}
+	}
+
+	private void shutdown() {
+		this.pool.shutdownNow();
+	}
+}
@@ -0,0 +1,189 @@
+package common;
+
+// arbre k-d construit une fois sur les clusterPoints courants pour trouver le plus proche sans calculer toutes les distances
+// le résultat est identique à un parcours linéaire : à distance égale, c'est le clusterPoint de plus petit indice qui est retenu
+public class CentroidIndex {
+	private static final int LEAF_SIZE = 8;
+
+	private final double[] centroids; // coordonnées à plat (clusterPoint * nbDimensions + dimension)
+	private final int nbCentroids;
+	private final int nbDimensions;
+	private final int[] order; // permutation des clusterPoints, chaque noeud en couvre un intervalle contigu
+
+	private final int[] nodeStart;
+	private final int[] nodeEnd;
+	private final int[] nodeDimension; // -1 pour une feuille
+	private final double[] nodeSplit;
+	private final int[] nodeLeft;
+	private final int[] nodeRight;
+	private int nbNodes;
+
+	private int bestIndex;
+	private double bestDistance;
+	private long distanceEvaluations;
+	private long searches;
+
+	public CentroidIndex(double[][] centroids) {
+		this(flatten(centroids), centroids.length, centroids.length == 0 ? 0 : centroids[0].length);
+	}
+
+	public CentroidIndex(double[] centroids, int nbCentroids, int nbDimensions) {
+		this.centroids = centroids;
+		this.nbCentroids = nbCentroids;
+		this.nbDimensions = nbDimensions;
+		this.order = new int[nbCentroids];
+		for(int i = 0; i < nbCentroids; ++i)
+			this.order[i] = i;
+
+		int maxNodes = 2 * nbCentroids + 1;
+		this.nodeStart = new int[maxNodes];
+		this.nodeEnd = new int[maxNodes];
+		this.nodeDimension = new int[maxNodes];
+		this.nodeSplit = new double[maxNodes];
+		this.nodeLeft = new int[maxNodes];
+		this.nodeRight = new int[maxNodes];
+		this.build(0, nbCentroids);
+	}
+
+	public int getNbCentroids() {
+		return this.nbCentroids;
+	}
+
+	// nombre de distances réellement calculées depuis la création de l'index
+	public long getDistanceEvaluations() {
+		return this.distanceEvaluations;
+	}
+
+	// nombre de distances qu'un parcours linéaire aurait calculées en plus
+	public long getPrunedEvaluations() {
+		return this.searches * this.nbCentroids - this.distanceEvaluations;
+	}
+
+	// carré de la distance au plus proche clusterPoint trouvé par le dernier appel à nearest()
+	public double getLastSquaredDistance() {
+		return this.bestDistance;
+	}
+
+	// retourne l'indice du clusterPoint le plus proche du point
+	public int nearest(double[] point) {
+		this.bestIndex = -1;
+		this.bestDistance = Double.POSITIVE_INFINITY;
+		this.searches++;
+		if(this.nbNodes > 0)
+			this.search(0, point);
+		return this.bestIndex;
+	}
+
+	private void search(int node, double[] point) {
+		int dimension = this.nodeDimension[node];
+		if(dimension == -1) {
+			int index;
+			int offset;
+			double sum;
+			double diff;
+			for(int i = this.nodeStart[node]; i < this.nodeEnd[node]; ++i) {
+				index = this.order[i];
+				offset = index * this.nbDimensions;
+				sum = 0;
+				for(int d = 0; d < this.nbDimensions; ++d) {
+					diff = point[d] - this.centroids[offset + d];
+					sum += diff * diff;
+				}
+				this.distanceEvaluations++;
+				if(sum < this.bestDistance || (sum == this.bestDistance && index < this.bestIndex)) {
+					this.bestDistance = sum;
+					this.bestIndex = index;
+				}
+			}
+			return;
+		}
+
+		// on descend d'abord du côté du point, l'autre côté n'est visité que si le plan de coupe est plus proche que le meilleur candidat
+		double diff = point[dimension] - this.nodeSplit[node];
+		this.search(diff < 0 ? this.nodeLeft[node] : this.nodeRight[node], point);
+		if(diff * diff <= this.bestDistance)
+			this.search(diff < 0 ? this.nodeRight[node] : this.nodeLeft[node], point);
+	}
+
+	private int build(int start, int end) {
+		int node = this.nbNodes++;
+		this.nodeStart[node] = start;
+		this.nodeEnd[node] = end;
+		if(end - start <= LEAF_SIZE) {
+			this.nodeDimension[node] = -1;
+			return node;
+		}
+
+		// coupe selon la dimension la plus étendue, au niveau de la médiane
+		int dimension = 0;
+		double maxSpread = -1;
+		double min;
+		double max;
+		double value;
+		for(int d = 0; d < this.nbDimensions; ++d) {
+			min = Double.POSITIVE_INFINITY;
+			max = Double.NEGATIVE_INFINITY;
+			for(int i = start; i < end; ++i) {
+				value = this.coord(this.order[i], d);
+				if(value < min)
+					min = value;
+				if(value > max)
+					max = value;
+			}
+			if(max - min > maxSpread) {
+				maxSpread = max - min;
+				dimension = d;
+			}
+		}
+
+		int middle = (start + end) >>> 1;
+		this.select(start, end - 1, middle, dimension);
+		this.nodeDimension[node] = dimension;
+		this.nodeSplit[node] = this.coord(this.order[middle], dimension);
+		this.nodeLeft[node] = this.build(start, middle);
+		this.nodeRight[node] = this.build(middle, end);
+		return node;
+	}
+
+	// place en position k l'élément qui y serait après un tri selon la dimension, les plus petits avant et les plus grands après
+	private void select(int left, int right, int k, int dimension) {
+		int i;
+		int j;
+		int tmp;
+		double pivot;
+		while(left < right) {
+			pivot = this.coord(this.order[(left + right) >>> 1], dimension);
+			i = left;
+			j = right;
+			while(i <= j) {
+				while(this.coord(this.order[i], dimension) < pivot)
+					i++;
+				while(this.coord(this.order[j], dimension) > pivot)
+					j--;
+				if(i <= j) {
+					tmp = this.order[i];
+					this.order[i++] = this.order[j];
+					this.order[j--] = tmp;
+				}
+			}
+			if(k <= j)
+				right = j;
+			else if(k >= i)
+				left = i;
+			else
+				return;
+		}
+	}
+
+	private double coord(int centroid, int dimension) {
+		return this.centroids[centroid * this.nbDimensions + dimension];
+	}
+
+	private static double[] flatten(double[][] centroids) {
+		int nbDimensions = centroids.length == 0 ? 0 : centroids[0].length;
+		double[] flat = new double[centroids.length * nbDimensions];
+		for(int i = 0; i < centroids.length; ++i)
+			System.arraycopy(centroids[i], 0, flat, i * nbDimensions, nbDimensions);
+		return flat;
+	}
+}
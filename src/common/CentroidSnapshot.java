@@ -0,0 +1,136 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+// instantané binaire des clusterPoints, lu sans analyse de texte dans setup() et gardé à chaque itération pour pouvoir reprendre un calcul
+// en-tête : MAGIC, VERSION, K, dimensions, longueur des chemins, niveau, itération
+// puis pour chaque clusterPoint ses coordonnées (doubles) et son chemin d'indices (entiers), et enfin la somme CRC32 de tout ce qui précède
+public class CentroidSnapshot {
+	public static final int MAGIC = 0x43534E50;
+	public static final int VERSION = 1;
+
+	public final int level; // niveau de la hiérarchie (0 pour le k-means simple)
+	public final int iteration; // nombre d'itérations déjà faites à ce niveau
+	public final double[][] coords;
+	public final int[][] paths; // indices du clusterPoint à chaque niveau (un seul indice pour le k-means simple)
+
+	public CentroidSnapshot(int level, int iteration, double[][] coords, int[][] paths) {
+		this.level = level;
+		this.iteration = iteration;
+		this.coords = coords;
+		this.paths = paths;
+	}
+
+	public int getNbCentroids() {
+		return this.coords.length;
+	}
+
+	public int getNbDimensions() {
+		return this.coords.length == 0 ? 0 : this.coords[0].length;
+	}
+
+	public void write(OutputStream os) throws IOException {
+		CRC32 crc = new CRC32();
+		DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(os, 1 << 16), crc));
+		int pathLength = this.paths.length == 0 ? 0 : this.paths[0].length;
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(this.coords.length);
+		out.writeInt(this.getNbDimensions());
+		out.writeInt(pathLength);
+		out.writeInt(this.level);
+		out.writeInt(this.iteration);
+		for(int i = 0; i < this.coords.length; ++i) {
+			for(double coord : this.coords[i])
+				out.writeDouble(coord);
+			for(int index : this.paths[i])
+				out.writeInt(index);
+		}
+		out.flush();
+		new DataOutputStream(os).writeLong(crc.getValue()); // la somme n'est pas incluse dans son propre calcul
+		out.close();
+	}
+
+	// lit un instantané complet, une IOException signale un fichier d'un autre format, tronqué ou corrompu
+	public static CentroidSnapshot read(InputStream is) throws IOException {
+		CRC32 crc = new CRC32();
+		InputStream bis = new BufferedInputStream(is, 1 << 16);
+		DataInputStream in = new DataInputStream(new CheckedInputStream(bis, crc));
+		if(in.readInt() != MAGIC)
+			throw new IOException("not a centroid snapshot");
+		if(in.readInt() != VERSION)
+			throw new IOException("unsupported centroid snapshot version");
+		int nbCentroids = in.readInt();
+		int nbDimensions = in.readInt();
+		int pathLength = in.readInt();
+		int level = in.readInt();
+		int iteration = in.readInt();
+		double[][] coords = new double[nbCentroids][nbDimensions];
+		int[][] paths = new int[nbCentroids][pathLength];
+		for(int i = 0; i < nbCentroids; ++i) {
+			for(int d = 0; d < nbDimensions; ++d)
+				coords[i][d] = in.readDouble();
+			for(int l = 0; l < pathLength; ++l)
+				paths[i][l] = in.readInt();
+		}
+		long checksum = crc.getValue();
+		if(new DataInputStream(bis).readLong() != checksum)
+			throw new IOException("corrupted centroid snapshot");
+		return new CentroidSnapshot(level, iteration, coords, paths);
+	}
+
+	// indique si le flux commence par un instantané, sans consommer d'octets (le flux doit supporter mark/reset)
+	public static boolean isSnapshot(InputStream is) throws IOException {
+		is.mark(4);
+		int magic = new DataInputStream(is).readInt();
+		is.reset();
+		return magic == MAGIC;
+	}
+
+	// nom de fichier d'un instantané, ordonné par niveau puis par itération
+	public static String fileName(int level, int iteration) {
+		return String.format("snapshot-%03d-%06d", level, iteration);
+	}
+
+	public static void write(FileSystem fs, Path path, CentroidSnapshot snapshot) throws IOException {
+		snapshot.write(fs.create(path, true));
+	}
+
+	// dernier instantané valide d'un répertoire, ou null s'il n'y en a pas : les fichiers illisibles (écriture interrompue) sont ignorés
+	public static CentroidSnapshot findLatest(FileSystem fs, Path snapshotsPath, int nbDimensions) throws IOException {
+		if(!fs.exists(snapshotsPath))
+			return null;
+		FileStatus[] statuses = fs.listStatus(snapshotsPath);
+		Arrays.sort(statuses);
+		CentroidSnapshot snapshot;
+		for(int i = statuses.length - 1; i >= 0; --i) {
+			if(!statuses[i].isFile() || !statuses[i].getPath().getName().startsWith("snapshot-"))
+				continue;
+			try {
+				InputStream is = fs.open(statuses[i].getPath());
+				snapshot = read(is);
+				is.close();
+				if(snapshot.getNbDimensions() == nbDimensions)
+					return snapshot;
+			}
+			catch(IOException e) {
+				System.out.println("Ignoring snapshot " + statuses[i].getPath() + " : " + e.getMessage());
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,231 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+// modèle final chargé en mémoire pour affecter de nouveaux points sans lancer de job
+// - k-means : un seul niveau de clusterPoints
+// - hiérarchique : un arbre dont chaque niveau est l'instantané final de ce niveau, un point descend de niveau en niveau
+//   vers le plus proche des clusterPoints fils de celui choisi au niveau précédent (en suivant les chemins d'indices)
+// chaque noeud garde un index (voir CentroidIndex) : une instance ne doit pas être utilisée par plusieurs threads à la fois
+public class CentroidTree {
+	private final int nbDimensions;
+	private final int nbLevels;
+	private final Node root;
+
+	// clusterPoints frères d'un même parent, avec le noeud de leurs fils
+	private static class Node {
+		private final int[] indexes; // dernier indice du chemin de chaque clusterPoint
+		private final double[][] centroids;
+		private final Node[] children;
+		private final CentroidIndex centroidIndex;
+
+		private Node(List<double[]> centroids, List<Integer> indexes) {
+			this.centroids = centroids.toArray(new double[centroids.size()][]);
+			this.indexes = new int[indexes.size()];
+			for(int i = 0; i < this.indexes.length; ++i)
+				this.indexes[i] = indexes.get(i);
+			this.children = new Node[this.centroids.length];
+			this.centroidIndex = new CentroidIndex(this.centroids);
+		}
+
+		private int position(int index) {
+			for(int i = 0; i < this.indexes.length; ++i)
+				if(this.indexes[i] == index)
+					return i;
+			return -1;
+		}
+	}
+
+	// résultat d'une affectation : chemin d'indices du clusterPoint retenu à chaque niveau et carré de la distance au dernier
+	public static class Assignment {
+		public final int[] path;
+		public final double squaredDistance;
+
+		public Assignment(int[] path, double squaredDistance) {
+			this.path = path;
+			this.squaredDistance = squaredDistance;
+		}
+
+		// chemin sous la forme "i1:i2:...", comme les clés des clusterPoints hiérarchiques
+		public String pathToString() {
+			StringBuilder str = new StringBuilder();
+			for(int i = 0; i < this.path.length; ++i) {
+				if(i > 0)
+					str.append(":");
+				str.append(this.path[i]);
+			}
+			return str.toString();
+		}
+	}
+
+	// les instantanés sont ceux de niveaux consécutifs, du premier au dernier (un seul pour un modèle k-means)
+	public CentroidTree(List<CentroidSnapshot> levels) {
+		if(levels.isEmpty())
+			throw new IllegalArgumentException("no centroids to load");
+		this.nbDimensions = levels.get(0).getNbDimensions();
+		this.nbLevels = levels.size();
+
+		// regroupement des clusterPoints de chaque niveau par chemin de leur parent, "parents" associe le chemin complet
+		// de chaque clusterPoint du niveau précédent au noeud qui le contient
+		Map<String, Node> parents = new HashMap<String, Node>();
+		Node root = null;
+		for(int level = 0; level < levels.size(); ++level) {
+			CentroidSnapshot snapshot = levels.get(level);
+			Map<String, List<Integer>> groups = new TreeMap<String, List<Integer>>();
+			for(int i = 0; i < snapshot.getNbCentroids(); ++i) {
+				String parentKey = level == 0 ? "" : pathKey(snapshot.paths[i], snapshot.paths[i].length - 1);
+				if(!groups.containsKey(parentKey))
+					groups.put(parentKey, new ArrayList<Integer>());
+				groups.get(parentKey).add(i);
+			}
+
+			Map<String, Node> nodes = new HashMap<String, Node>();
+			for(Map.Entry<String, List<Integer>> group : groups.entrySet()) {
+				List<double[]> centroids = new ArrayList<double[]>();
+				List<Integer> indexes = new ArrayList<Integer>();
+				int[] path = null;
+				for(int i : group.getValue()) {
+					path = snapshot.paths[i];
+					centroids.add(snapshot.coords[i]);
+					indexes.add(path.length == 0 ? i : path[path.length - 1]);
+				}
+				Node node = new Node(centroids, indexes);
+				if(level == 0)
+					root = node;
+				else {
+					// rattachement au clusterPoint parent, les groupes sans parent connu sont ignorés
+					Node parent = parents.get(group.getKey());
+					int position = parent == null ? -1 : parent.position(path[path.length - 2]);
+					if(position == -1)
+						continue;
+					parent.children[position] = node;
+				}
+				for(int i = 0; i < node.indexes.length; ++i)
+					nodes.put(group.getKey().isEmpty() ? String.valueOf(node.indexes[i]) : group.getKey() + ":" + node.indexes[i], node);
+			}
+			parents = nodes;
+		}
+		this.root = root;
+	}
+
+	// clé des "length" premiers indices d'un chemin
+	private static String pathKey(int[] path, int length) {
+		StringBuilder str = new StringBuilder();
+		for(int i = 0; i < length; ++i) {
+			if(i > 0)
+				str.append(":");
+			str.append(path[i]);
+		}
+		return str.toString();
+	}
+
+	public int getNbDimensions() {
+		return this.nbDimensions;
+	}
+
+	public int getNbLevels() {
+		return this.nbLevels;
+	}
+
+	public Assignment assign(double[] point) {
+		int[] path = new int[this.nbLevels];
+		int depth = 0;
+		double squaredDistance = 0;
+		int position;
+		Node node = this.root;
+		while(node != null) {
+			position = node.centroidIndex.nearest(point);
+			squaredDistance = node.centroidIndex.getLastSquaredDistance();
+			path[depth++] = node.indexes[position];
+			node = node.children[position];
+		}
+		return new Assignment(depth == path.length ? path : Arrays.copyOf(path, depth), squaredDistance);
+	}
+
+	public Assignment[] assign(double[][] points) {
+		Assignment[] assignments = new Assignment[points.length];
+		for(int i = 0; i < points.length; ++i)
+			assignments[i] = this.assign(points[i]);
+		return assignments;
+	}
+
+	// charge un modèle depuis :
+	// - un répertoire d'instantanés (option "--snapshots" des drivers) : le dernier instantané valide de chaque niveau
+	// - un fichier d'instantané seul
+	// - le fichier "distributedCache" texte écrit par kmeans.Main ("x/y/indice,...")
+	public static CentroidTree load(FileSystem fs, Path path) throws IOException {
+		List<CentroidSnapshot> levels = new ArrayList<CentroidSnapshot>();
+		if(fs.getFileStatus(path).isDirectory()) {
+			TreeMap<Integer, CentroidSnapshot> snapshots = new TreeMap<Integer, CentroidSnapshot>();
+			FileStatus[] statuses = fs.listStatus(path);
+			Arrays.sort(statuses);
+			String name;
+			int level;
+			for(int i = statuses.length - 1; i >= 0; --i) {
+				name = statuses[i].getPath().getName();
+				if(!statuses[i].isFile() || !name.matches("snapshot-\\d+-\\d+"))
+					continue;
+				level = Integer.parseInt(name.substring(9, name.lastIndexOf('-')));
+				if(snapshots.containsKey(level))
+					continue;
+				try {
+					InputStream is = fs.open(statuses[i].getPath());
+					snapshots.put(level, CentroidSnapshot.read(is));
+					is.close();
+				}
+				catch(IOException e) {
+					System.err.println("Ignoring snapshot " + statuses[i].getPath() + " : " + e.getMessage());
+				}
+			}
+			// le niveau 0 est celui du k-means simple, les niveaux hiérarchiques commencent à 1
+			if(snapshots.size() > 1)
+				snapshots.remove(0);
+			levels.addAll(snapshots.values());
+		}
+		else {
+			InputStream is = new BufferedInputStream(fs.open(path));
+			if(CentroidSnapshot.isSnapshot(is))
+				levels.add(CentroidSnapshot.read(is));
+			else
+				levels.add(readClusterPointsLine(is));
+			is.close();
+		}
+		return new CentroidTree(levels);
+	}
+
+	// format texte de kmeans.ClusterPointWritable : les coordonnées puis l'indice séparés par des "/", les clusterPoints séparés par des virgules
+	private static CentroidSnapshot readClusterPointsLine(InputStream is) throws IOException {
+		String line = new BufferedReader(new InputStreamReader(is)).readLine();
+		if(line == null)
+			throw new IOException("empty clusterPoints file");
+		List<double[]> coords = new ArrayList<double[]>();
+		List<int[]> paths = new ArrayList<int[]>();
+		String[] fields;
+		double[] centroid;
+		for(String point : line.split(",")) {
+			if(point.isEmpty())
+				continue;
+			fields = point.split("/");
+			centroid = new double[fields.length - 1];
+			for(int d = 0; d < centroid.length; ++d)
+				centroid[d] = Double.parseDouble(fields[d]);
+			coords.add(centroid);
+			paths.add(new int[]{Integer.parseInt(fields[fields.length - 1])});
+		}
+		return new CentroidSnapshot(0, 0, coords.toArray(new double[coords.size()][]), paths.toArray(new int[paths.size()][]));
+	}
+}
@@ -0,0 +1,130 @@
+package common;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+// base des formats d'entrée binaires faits d'un en-tête de taille fixe suivi d'enregistrements de même taille (voir kmeans.PointsFile et hierarchic.ProjectedFile)
+// un bloc commence au premier enregistrement qui débute dans son intervalle d'octets et s'arrête au dernier, un fichier compressé est lu en entier
+public abstract class FixedRecordInputFormat<V> extends FileInputFormat<LongWritable, V> {
+
+	@Override
+	protected boolean isSplitable(JobContext context, Path file) {
+		return new CompressionCodecFactory(context.getConfiguration()).getCodec(file) == null;
+	}
+
+	// chaque format ne décrit que son en-tête et le décodage d'un enregistrement
+	public static abstract class FixedRecordReader<V> extends RecordReader<LongWritable, V> {
+		private final int headerSize;
+		private DataInputStream in;
+		private long firstRecord;
+		private long endRecord;
+		private long currentRecord;
+		protected LongWritable key = new LongWritable();
+		protected V value;
+
+		protected FixedRecordReader(int headerSize) {
+			this.headerSize = headerSize;
+		}
+
+		// lit et vérifie l'en-tête, crée la valeur et retourne la taille d'un enregistrement
+		// la valeur est créée ici avec ses propres dimensions : setup() du mapper n'a pas encore été appelé
+		protected abstract int readHeader(DataInput in, Path path, Configuration conf) throws IOException;
+
+		// nombre d'enregistrements annoncé par l'en-tête, Long.MAX_VALUE si l'en-tête ne le donne pas
+		protected long getNbRecords() {
+			return Long.MAX_VALUE;
+		}
+
+		// décode l'enregistrement numéro "index" du fichier dans la clé et la valeur
+		protected abstract void readRecord(DataInput in, long index) throws IOException;
+
+		@Override
+		public void initialize(InputSplit genericSplit, TaskAttemptContext context) throws IOException {
+			FileSplit split = (FileSplit) genericSplit;
+			Configuration conf = context.getConfiguration();
+			Path path = split.getPath();
+			FileSystem fs = path.getFileSystem(conf);
+			FSDataInputStream fileIn = fs.open(path);
+			CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(path);
+
+			if(codec != null) {
+				this.in = new DataInputStream(new BufferedInputStream(codec.createInputStream(fileIn), 1 << 16));
+				this.readHeader(this.in, path, conf);
+				this.firstRecord = 0;
+				this.endRecord = this.getNbRecords(); // sans nombre dans l'en-tête, lecture jusqu'à la fin du flux
+			}
+			else {
+				int recordSize = this.readHeader(fileIn, path, conf);
+				long nbRecords = Math.min(this.getNbRecords(), (fs.getFileStatus(path).getLen() - this.headerSize) / recordSize);
+				this.firstRecord = this.recordAt(split.getStart(), recordSize);
+				this.endRecord = Math.min(nbRecords, this.recordAt(split.getStart() + split.getLength(), recordSize));
+				fileIn.seek(this.headerSize + this.firstRecord * recordSize);
+				this.in = new DataInputStream(new BufferedInputStream(fileIn, 1 << 16));
+			}
+			this.currentRecord = this.firstRecord;
+		}
+
+		// premier enregistrement commençant à partir de l'octet "position"
+		private long recordAt(long position, int recordSize) {
+			if(position <= this.headerSize)
+				return 0;
+			return (position - this.headerSize + recordSize - 1) / recordSize;
+		}
+
+		@Override
+		public boolean nextKeyValue() throws IOException {
+			if(this.currentRecord >= this.endRecord)
+				return false;
+			if(this.endRecord == Long.MAX_VALUE) {
+				// flux compressé : la fin n'est connue qu'en essayant de lire
+				this.in.mark(1);
+				if(this.in.read() == -1)
+					return false;
+				this.in.reset();
+			}
+			this.readRecord(this.in, this.currentRecord++);
+			return true;
+		}
+
+		@Override
+		public LongWritable getCurrentKey() {
+			return this.key;
+		}
+
+		@Override
+		public V getCurrentValue() {
+			return this.value;
+		}
+
+		@Override
+		public float getProgress() {
+			if(this.endRecord == Long.MAX_VALUE)
+				return 0;
+			if(this.endRecord == this.firstRecord)
+				return 1;
+			return (float) (this.currentRecord - this.firstRecord) / (this.endRecord - this.firstRecord);
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(this.in != null)
+				this.in.close();
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+
+// analyse des options de la ligne de commande, commune aux drivers et au service de calcul des scores
+public class Options {
+
+	// place les options de la forme "--nom" ou "--nom=valeur" dans la configuration ("megaProject.options.<nom>") et retourne les autres arguments
+	public static String[] parse(Configuration conf, String[] args) {
+		List<String> positionalArgs = new ArrayList<String>();
+		int equalIndex;
+		for(String arg : args) {
+			if(arg.startsWith("--")) {
+				equalIndex = arg.indexOf('=');
+				if(equalIndex == -1)
+					conf.setBoolean("megaProject.options." + arg.substring(2), true);
+				else
+					conf.set("megaProject.options." + arg.substring(2, equalIndex), arg.substring(equalIndex + 1));
+			}
+			else
+				positionalArgs.add(arg);
+		}
+		return positionalArgs.toArray(new String[positionalArgs.size()]);
+	}
+}
@@ -0,0 +1,301 @@
+package common;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// service d'affectation de nouveaux points à un modèle déjà calculé (voir CentroidTree), sans lancer de job
+// - "--port=N" : serveur HTTP local, "POST /assign" avec une ligne CSV par point, "GET /metrics" pour les mesures
+// - "--stdin" : une ligne CSV par point sur l'entrée standard, une ligne de réponse par point sur la sortie standard
+// la réponse d'un point est son chemin d'indices ("i1:i2:...") suivi du carré de sa distance au clusterPoint retenu
+// les requêtes arrivées en même temps sont regroupées en micro-lots traités par un seul thread, qui possède le modèle
+// (les index de CentroidIndex ne peuvent pas être partagés), les threads HTTP ne font que lire et écrire les lignes
+public class ScoringService {
+	private static final int LATENCY_WINDOW = 1 << 16;
+
+	private final CentroidTree tree;
+	private final int[] positions;
+	private final int batchSize;
+	private final long batchWaitNanos;
+	private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+	private final LatencyStats stats = new LatencyStats();
+
+	// points d'une requête, rendus au thread appelant une fois affectés
+	private static class Request {
+		private final double[][] points;
+		private final long startTime;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private CentroidTree.Assignment[] assignments;
+		private RuntimeException error; // erreur de l'affectation, renvoyée au thread appelant à la place des affectations
+
+		private Request(double[][] points) {
+			this.points = points;
+			this.startTime = System.nanoTime();
+		}
+	}
+
+	// latences des dernières requêtes (fenêtre circulaire) et débit depuis le démarrage
+	private static class LatencyStats {
+		private final long[] latencies = new long[LATENCY_WINDOW];
+		private final long startTime = System.nanoTime();
+		private long nbRequests;
+		private long nbPoints;
+		private long nbBatches;
+
+		private synchronized void record(long latency, int nbPoints) {
+			this.latencies[(int) (this.nbRequests++ % LATENCY_WINDOW)] = latency;
+			this.nbPoints += nbPoints;
+		}
+
+		private synchronized void recordBatch() {
+			this.nbBatches++;
+		}
+
+		private synchronized String report() {
+			int size = (int) Math.min(this.nbRequests, LATENCY_WINDOW);
+			long[] sorted = Arrays.copyOf(this.latencies, size);
+			Arrays.sort(sorted);
+			double seconds = (System.nanoTime() - this.startTime) / 1e9;
+			return "requests=" + this.nbRequests + " points=" + this.nbPoints + " batches=" + this.nbBatches
+				+ " throughput=" + String.format("%.1f", this.nbPoints / seconds) + " points/s"
+				+ " p50=" + String.format("%.1f", percentile(sorted, 0.5) / 1e3) + "us"
+				+ " p99=" + String.format("%.1f", percentile(sorted, 0.99) / 1e3) + "us";
+		}
+
+		private static long percentile(long[] sorted, double fraction) {
+			if(sorted.length == 0)
+				return 0;
+			return sorted[Math.min(sorted.length - 1, (int) Math.ceil(fraction * sorted.length) - 1)];
+		}
+	}
+
+	public ScoringService(CentroidTree tree, int[] positions, int batchSize, long batchWaitMicros) {
+		this.tree = tree;
+		this.positions = positions;
+		this.batchSize = batchSize;
+		this.batchWaitNanos = batchWaitMicros * 1000;
+	}
+
+	// lit les coordonnées d'une ligne CSV, null si la ligne ne contient pas toutes les colonnes
+	private double[] parsePoint(String line) {
+		byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+		double[] point = new double[this.positions.length];
+		try {
+			return TextCoordsParser.parse(bytes, 0, bytes.length, this.positions, point, -1) ? point : null;
+		}
+		catch(NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static String format(CentroidTree.Assignment assignment) {
+		return assignment.pathToString() + " " + assignment.squaredDistance;
+	}
+
+	// boucle du thread d'affectation : attend une requête, regroupe celles qui arrivent pendant batchWait (au plus batchSize points) puis les traite
+	private void scoreLoop() {
+		List<Request> batch = new ArrayList<Request>();
+		Request request;
+		int nbPoints;
+		long deadline;
+		try {
+			while(true) {
+				request = this.queue.take();
+				batch.add(request);
+				nbPoints = request.points.length;
+				deadline = System.nanoTime() + this.batchWaitNanos;
+				while(nbPoints < this.batchSize) {
+					request = this.queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+					if(request == null)
+						break;
+					batch.add(request);
+					nbPoints += request.points.length;
+				}
+
+				// une requête invalide (dimensions incorrectes par exemple) ne fait échouer qu'elle : le thread continue avec les suivantes
+				for(Request r : batch) {
+					try {
+						r.assignments = this.tree.assign(r.points);
+					}
+					catch(RuntimeException e) {
+						r.error = e;
+					}
+				}
+				this.stats.recordBatch();
+				for(Request r : batch) {
+					this.stats.record(System.nanoTime() - r.startTime, r.points.length);
+					r.done.countDown();
+				}
+				batch.clear();
+			}
+		}
+		catch(InterruptedException e) {
+			// arrêt du service
+		}
+	}
+
+	public CentroidTree.Assignment[] assign(double[][] points) throws InterruptedException {
+		Request request = new Request(points);
+		this.queue.put(request);
+		request.done.await();
+		if(request.error != null)
+			throw request.error;
+		return request.assignments;
+	}
+
+	public String metrics() {
+		return this.stats.report();
+	}
+
+	public void startScorer() {
+		Thread thread = new Thread(this::scoreLoop, "scorer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// une requête HTTP : une ligne par point, une ligne de réponse par point dans le même ordre
+	private void handleAssign(HttpExchange exchange) throws IOException {
+		try {
+			if(!exchange.getRequestMethod().equals("POST")) {
+				this.respond(exchange, 405, "POST only\n");
+				return;
+			}
+			List<double[]> points = new ArrayList<double[]>();
+			BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+			String line;
+			double[] point;
+			int lineNumber = 0;
+			while((line = reader.readLine()) != null) {
+				lineNumber++;
+				if(line.trim().isEmpty())
+					continue;
+				point = this.parsePoint(line);
+				if(point == null) {
+					this.respond(exchange, 400, "invalid point on line " + lineNumber + "\n");
+					return;
+				}
+				points.add(point);
+			}
+
+			CentroidTree.Assignment[] assignments = this.assign(points.toArray(new double[points.size()][]));
+			StringBuilder response = new StringBuilder();
+			for(CentroidTree.Assignment assignment : assignments)
+				response.append(format(assignment)).append('\n');
+			this.respond(exchange, 200, response.toString());
+		}
+		catch(InterruptedException e) {
+			this.respond(exchange, 503, "service stopped\n");
+		}
+		catch(RuntimeException e) {
+			this.respond(exchange, 500, "scoring failed: " + e + "\n");
+		}
+	}
+
+	private void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream os = exchange.getResponseBody();
+		os.write(bytes);
+		os.close();
+	}
+
+	public HttpServer startHttp(int port, int nbThreads) throws IOException {
+		this.startScorer();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.createContext("/assign", this::handleAssign);
+		server.createContext("/metrics", exchange -> this.respond(exchange, 200, this.metrics() + "\n"));
+		server.setExecutor(Executors.newFixedThreadPool(nbThreads));
+		server.start();
+		return server;
+	}
+
+	// mode ligne à ligne : les lignes déjà disponibles sont traitées en un lot (au plus batchSize), sans attendre les suivantes
+	// la latence d'un point est mesurée de la lecture de sa ligne à l'écriture de sa réponse
+	public void runStdin(InputStream in, PrintStream out) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+		List<double[]> points = new ArrayList<double[]>();
+		List<Long> startTimes = new ArrayList<Long>();
+		String line;
+		double[] point;
+		long end;
+		while((line = reader.readLine()) != null) {
+			point = this.parsePoint(line);
+			if(point == null) {
+				System.err.println("Ignoring invalid point : " + line);
+				continue;
+			}
+			points.add(point);
+			startTimes.add(System.nanoTime());
+			if(points.size() < this.batchSize && reader.ready())
+				continue;
+
+			CentroidTree.Assignment[] assignments = this.tree.assign(points.toArray(new double[points.size()][]));
+			for(CentroidTree.Assignment assignment : assignments)
+				out.println(format(assignment));
+			out.flush();
+			end = System.nanoTime();
+			this.stats.recordBatch();
+			for(long startTime : startTimes)
+				this.stats.record(end - startTime, 1);
+			points.clear();
+			startTimes.clear();
+		}
+	}
+
+	public static int run(Configuration conf, String[] args) throws Exception {
+		args = Options.parse(conf, args);
+		if(args.length < 1 || (!conf.getBoolean("megaProject.options.stdin", false) && conf.get("megaProject.options.port") == null)) {
+			System.out.println("Usage : <command> --port=N [--threads=N] | --stdin [--positions=i,j,...] [--batchSize=N] [--batchWaitMicros=N] <snapshotsDir|snapshotFile|clusterPointsFile>");
+			return 0;
+		}
+
+		Path modelPath = new Path(args[0]);
+		CentroidTree tree = CentroidTree.load(modelPath.getFileSystem(conf), modelPath);
+		System.err.println("Model loaded from " + modelPath + " : " + tree.getNbLevels() + " level(s), " + tree.getNbDimensions() + " dimensions");
+
+		// colonnes des coordonnées dans les lignes reçues, par défaut les premières colonnes
+		int[] positions = new int[tree.getNbDimensions()];
+		String[] columns = conf.getStrings("megaProject.options.positions");
+		if(columns != null && columns.length != positions.length)
+			throw new IllegalArgumentException("the model has " + positions.length + " dimensions but " + columns.length + " positions were given");
+		for(int i = 0; i < positions.length; ++i)
+			positions[i] = columns == null ? i : Integer.parseInt(columns[i].trim());
+
+		ScoringService service = new ScoringService(tree, positions, conf.getInt("megaProject.options.batchSize", 256), conf.getLong("megaProject.options.batchWaitMicros", 200));
+		if(conf.getBoolean("megaProject.options.stdin", false)) {
+			service.runStdin(System.in, System.out);
+			System.err.println(service.metrics());
+			return 0;
+		}
+
+		int port = conf.getInt("megaProject.options.port", 8080);
+		service.startHttp(port, conf.getInt("megaProject.options.threads", 4));
+		System.err.println("Listening on http://127.0.0.1:" + port + "/assign");
+		Thread.currentThread().join();
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.exit(run(new Configuration(), args));
+	}
+}
@@ -0,0 +1,98 @@
+package common;
+
+import java.nio.charset.StandardCharsets;
+
+import org.apache.hadoop.io.Text;
+
+// lecture des coordonnées directement dans le tampon d'octets d'un Text, sans passer par String.split() ni créer d'objets
+public class TextCoordsParser {
+	private static final byte SEPARATOR = ',';
+	private static final int MAX_FAST_DIGITS = 15; // au-delà, la mantisse n'est plus représentable exactement dans un double
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	private TextCoordsParser() {}
+
+	// lit les colonnes "positions" d'une ligne CSV dans "coords", la lecture s'arrête au caractère "end" (-1 pour aller jusqu'au bout de la ligne)
+	// retourne false si la ligne ne contient pas toutes les colonnes demandées
+	public static boolean parse(Text line, int[] positions, double[] coords, int end) {
+		return parse(line.getBytes(), 0, line.getLength(), positions, coords, end);
+	}
+
+	public static boolean parse(byte[] bytes, int start, int length, int[] positions, double[] coords, int end) {
+		int maxPosition = 0;
+		for(int position : positions)
+			if(position > maxPosition)
+				maxPosition = position;
+
+		int limit = start + length;
+		int column = 0;
+		int fieldStart = start;
+		int c;
+		for(int i = start; i <= limit && column <= maxPosition; ++i) {
+			c = i == limit ? end : bytes[i] & 0xff;
+			if(i == limit || c == SEPARATOR || c == end) {
+				for(int d = 0; d < positions.length; ++d)
+					if(positions[d] == column)
+						coords[d] = parseDouble(bytes, fieldStart, i);
+				column++;
+				fieldStart = i + 1;
+				if(c == end)
+					break;
+			}
+		}
+		return column > maxPosition;
+	}
+
+	// convertit les octets [start, end[ en double ; les cas rares (trop de chiffres, notation inhabituelle) sont délégués à Double.parseDouble()
+	public static double parseDouble(byte[] bytes, int start, int end) {
+		int i = start;
+		while(i < end && bytes[i] == ' ')
+			i++;
+		while(end > i && bytes[end - 1] == ' ')
+			end--;
+
+		boolean negative = false;
+		if(i < end && (bytes[i] == '-' || bytes[i] == '+'))
+			negative = bytes[i++] == '-';
+
+		long mantissa = 0;
+		int nbDigits = 0;
+		int exponent = 0;
+		boolean hasDigits = false;
+		boolean fraction = false;
+		byte b;
+		for(; i < end; ++i) {
+			b = bytes[i];
+			if(b >= '0' && b <= '9') {
+				hasDigits = true;
+				if(nbDigits > 0 || b != '0')
+					nbDigits++;
+				if(nbDigits > MAX_FAST_DIGITS)
+					return slowParseDouble(bytes, start, end);
+				mantissa = mantissa * 10 + (b - '0');
+				if(fraction)
+					exponent--;
+			}
+			else if(b == '.' && !fraction)
+				fraction = true;
+			else
+				return slowParseDouble(bytes, start, end);
+		}
+
+		if(!hasDigits)
+			return slowParseDouble(bytes, start, end);
+		if(exponent < -(POWERS_OF_TEN.length - 1))
+			return slowParseDouble(bytes, start, end);
+
+		// mantisse et puissance de dix exactes : une seule division, donc un résultat correctement arrondi
+		double value = exponent == 0 ? mantissa : mantissa / POWERS_OF_TEN[-exponent];
+		return negative ? -value : value;
+	}
+
+	private static double slowParseDouble(byte[] bytes, int start, int end) {
+		return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.ISO_8859_1));
+	}
+}
@@ -0,0 +1,126 @@
+package common;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.TaskCounter;
+
+// chronologie des mesures d'un lancement, une ligne par itération (un job)
+// le fichier est réécrit après chaque itération, en JSON si son nom se termine par ".json" et en CSV sinon
+public class Timeline {
+	public static final double SSE_SCALE = 1000; // la somme des carrés des distances est transmise par un compteur, donc en entier (millièmes), par tous les drivers
+
+	private final FileSystem fs;
+	private final Path path;
+	private final List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>();
+
+	public Timeline(FileSystem fs, Path path) {
+		this.fs = fs;
+		this.path = path;
+	}
+
+	// ajoute une ligne vide à la chronologie, les colonnes sont écrites dans l'ordre où elles sont renseignées
+	public Map<String, Object> newRow() {
+		Map<String, Object> row = new LinkedHashMap<String, Object>();
+		this.rows.add(row);
+		return row;
+	}
+
+	// reprend dans une ligne les compteurs communs aux deux algorithmes
+	public static void addCounters(Map<String, Object> row, Counters counters) {
+		row.put("recordsParsed", counters.findCounter("megaProject.counters", "recordsParsed").getValue());
+		row.put("parseTimeMs", counters.findCounter("megaProject.counters", "parseTimeNanos").getValue() / 1000000);
+		row.put("distanceEvaluations", counters.findCounter("megaProject.counters", "distanceEvaluations").getValue());
+		row.put("mapOutputBytes", counters.findCounter(TaskCounter.MAP_OUTPUT_BYTES).getValue());
+		row.put("shuffleBytes", counters.findCounter(TaskCounter.REDUCE_SHUFFLE_BYTES).getValue());
+		row.put("sse", counters.findCounter("megaProject.counters", "sse").getValue() / SSE_SCALE);
+		row.put("clusterPointsChanged", counters.findCounter("megaProject.counters", "clusterPointsChanged").getValue());
+	}
+
+	// déplacement maximal et moyen entre deux listes de clusterPoints de même taille
+	public static void addDrift(Map<String, Object> row, double[][] previousCoords, double[][] coords) {
+		double maxDrift = 0;
+		double totalDrift = 0;
+		double drift;
+		double diff;
+		for(int i = 0; i < coords.length; ++i) {
+			drift = 0;
+			for(int d = 0; d < coords[i].length; ++d) {
+				diff = coords[i][d] - previousCoords[i][d];
+				drift += diff * diff;
+			}
+			drift = Math.sqrt(drift);
+			maxDrift = Math.max(maxDrift, drift);
+			totalDrift += drift;
+		}
+		row.put("maxDrift", maxDrift);
+		row.put("meanDrift", coords.length == 0 ? 0 : totalDrift / coords.length);
+	}
+
+	public void write() throws IOException {
+		BufferedWriter bw = new BufferedWriter(new OutputStreamWriter(this.fs.create(this.path, true), "UTF-8"));
+		if(this.path.getName().endsWith(".json"))
+			this.writeJson(bw);
+		else
+			this.writeCsv(bw);
+		bw.close();
+	}
+
+	private void writeJson(BufferedWriter bw) throws IOException {
+		bw.write("[\n");
+		for(int i = 0; i < this.rows.size(); ++i) {
+			bw.write("  {");
+			boolean first = true;
+			for(Map.Entry<String, Object> entry : this.rows.get(i).entrySet()) {
+				if(!first)
+					bw.write(", ");
+				first = false;
+				bw.write("\"" + entry.getKey() + "\": ");
+				bw.write(toJson(entry.getValue()));
+			}
+			bw.write(i == this.rows.size() - 1 ? "}\n" : "},\n");
+		}
+		bw.write("]\n");
+	}
+
+	// NaN et l'infini n'existent pas en JSON : une valeur non finie est écrite "null"
+	private static String toJson(Object value) {
+		if(!(value instanceof Number))
+			return "\"" + value + "\"";
+		double number = ((Number) value).doubleValue();
+		return Double.isNaN(number) || Double.isInfinite(number) ? "null" : value.toString();
+	}
+
+	// les colonnes sont l'union de celles des lignes, une valeur absente donne une cellule vide
+	private void writeCsv(BufferedWriter bw) throws IOException {
+		Set<String> columns = new LinkedHashSet<String>();
+		for(Map<String, Object> row : this.rows)
+			columns.addAll(row.keySet());
+		bw.write(String.join(",", columns));
+		bw.write("\n");
+		Object value;
+		boolean first;
+		for(Map<String, Object> row : this.rows) {
+			first = true;
+			for(String column : columns) {
+				if(!first)
+					bw.write(",");
+				first = false;
+				value = row.get(column);
+				if(value != null)
+					bw.write(value.toString());
+			}
+			bw.write("\n");
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package common;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.WritableUtils;
+
+// encodage des points échangés entre mappers et réducteurs, choisi par les options "--encoding" et "--varintCounters"
+// - "double" (par défaut) : 8 octets par coordonnée, format d'origine
+// - "float" : 4 octets par coordonnée (environ 7 chiffres significatifs)
+// - "fixed" : entier 32 bits valant coordonnée * fixedScale (par défaut 1e6, soit le micro-degré pour des latitudes/longitudes)
+// - varintCounters : compteurs et indices en entiers de taille variable (1 octet en dessous de 128)
+// l'encodage ne concerne que le transfert : les points sont décodés en doubles et les sommes restent calculées en doubles
+public class WireEncoding {
+	public static final int DOUBLE = 0;
+	public static final int FLOAT = 1;
+	public static final int FIXED = 2;
+	public static final WireEncoding DEFAULT = new WireEncoding(DOUBLE, 1e6, false);
+
+	private final int coordsEncoding;
+	private final double fixedScale;
+	private final boolean varintCounters;
+
+	public WireEncoding(int coordsEncoding, double fixedScale, boolean varintCounters) {
+		this.coordsEncoding = coordsEncoding;
+		this.fixedScale = fixedScale;
+		this.varintCounters = varintCounters;
+	}
+
+	// inscrit dans la configuration des jobs l'encodage demandé par les options du driver
+	public static void record(Configuration conf) {
+		String name = conf.get("megaProject.options.encoding", "double");
+		if(!name.equals("double") && !name.equals("float") && !name.equals("fixed"))
+			throw new IllegalArgumentException("unknown encoding : " + name);
+		conf.set("megaProject.encoding.coords", name);
+		conf.setDouble("megaProject.encoding.fixedScale", conf.getDouble("megaProject.options.fixedScale", 1e6));
+		conf.setBoolean("megaProject.encoding.varintCounters", conf.getBoolean("megaProject.options.varintCounters", false));
+	}
+
+	// encodage inscrit dans la configuration d'un job, à lire dans setup() par chaque tâche qui sérialise des points
+	public static WireEncoding get(Configuration conf) {
+		String name = conf.get("megaProject.encoding.coords", "double");
+		return new WireEncoding(name.equals("float") ? FLOAT : name.equals("fixed") ? FIXED : DOUBLE, conf.getDouble("megaProject.encoding.fixedScale", 1e6), conf.getBoolean("megaProject.encoding.varintCounters", false));
+	}
+
+	public boolean isDefault() {
+		return this.coordsEncoding == DOUBLE && !this.varintCounters;
+	}
+
+	public boolean hasCompactCoords() {
+		return this.coordsEncoding != DOUBLE;
+	}
+
+	public boolean hasVarintCounters() {
+		return this.varintCounters;
+	}
+
+	// indique si les coordonnées peuvent être écrites sous forme compacte (en virgule fixe, elles doivent tenir dans un entier 32 bits)
+	public boolean isCompactable(double[] coords) {
+		if(this.coordsEncoding == DOUBLE)
+			return false;
+		if(this.coordsEncoding == FIXED) {
+			double scaled;
+			for(double coord : coords) {
+				scaled = coord * this.fixedScale;
+				if(!(scaled >= Integer.MIN_VALUE && scaled <= Integer.MAX_VALUE))
+					return false;
+			}
+		}
+		return true;
+	}
+
+	public void writeCompactCoords(DataOutput out, double[] coords) throws IOException {
+		for(double coord : coords) {
+			if(this.coordsEncoding == FLOAT)
+				out.writeFloat((float) coord);
+			else
+				out.writeInt((int) Math.round(coord * this.fixedScale));
+		}
+	}
+
+	public void readCompactCoords(DataInput in, double[] coords, int nbDimensions) throws IOException {
+		for(int i = 0; i < nbDimensions; ++i)
+			coords[i] = this.coordsEncoding == FLOAT ? in.readFloat() : in.readInt() / this.fixedScale;
+	}
+
+	public void writeCounter(DataOutput out, int value) throws IOException {
+		if(this.varintCounters)
+			WritableUtils.writeVInt(out, value);
+		else
+			out.writeInt(value);
+	}
+
+	public int readCounter(DataInput in) throws IOException {
+		return this.varintCounters ? WritableUtils.readVInt(in) : in.readInt();
+	}
+}
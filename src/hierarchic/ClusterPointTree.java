@@ -0,0 +1,146 @@
+package hierarchic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+// clusterPoints d'un niveau rangés à plat pour les mappers : les listes de frères sont retrouvées à partir de l'identifiant du chemin
+// de leur parent (voir ClusterPointWritable.pathId) en descendant une table de fils, sans clé texte ni allocation par point
+// les noeuds internes n'existent que pour les chemins qui ont des clusterPoints, la mémoire reste proportionnelle à leur nombre
+public class ClusterPointTree {
+	private final int nbDimensions;
+	private final int pathLength; // nombre d'indices du chemin des parents (niveau - 1)
+	private final int K;
+	private final long[] powers; // K^i, pour extraire les indices d'un identifiant de chemin
+	private int[] childOffsets; // childOffsets[noeud * K + i] : fils i du noeud, liste de frères sous le dernier indice du chemin, -1 si absent
+	private int nbNodes;
+	private final int[] siblingsOffsets; // premier clusterPoint de chaque liste de frères, plus le nombre total de clusterPoints à la fin
+	private final double[] coords; // coordonnées à plat (clusterPoint * nbDimensions + dimension)
+	private final ClusterPointWritable[] clusterPoints;
+	private double lastSquaredDistance;
+
+	public ClusterPointTree(Collection<ArrayList<ClusterPointWritable>> siblingsLists, int nbDimensions, int pathLength, int K) {
+		this.nbDimensions = nbDimensions;
+		this.pathLength = pathLength;
+		this.K = K;
+		this.powers = new long[Math.max(pathLength, 1)];
+		this.powers[0] = 1;
+		for(int i = 1; i < pathLength; ++i)
+			this.powers[i] = this.powers[i - 1] * K;
+		if(pathLength == 0 && siblingsLists.size() != 1)
+			throw new IllegalArgumentException("the first level must hold a single list of clusterPoints, got " + siblingsLists.size());
+
+		int nbClusterPoints = 0;
+		for(ArrayList<ClusterPointWritable> siblings : siblingsLists)
+			nbClusterPoints += siblings.size();
+		this.siblingsOffsets = new int[siblingsLists.size() + 1];
+		this.coords = new double[nbClusterPoints * nbDimensions];
+		this.clusterPoints = new ClusterPointWritable[nbClusterPoints];
+		this.childOffsets = new int[0];
+		if(pathLength > 0)
+			this.newNode();
+
+		int siblingsIndex = 0;
+		int clusterPointIndex = 0;
+		short[] indexes;
+		int node;
+		for(ArrayList<ClusterPointWritable> siblings : siblingsLists) {
+			// descente depuis la racine en créant les noeuds manquants, le dernier indice du chemin désigne la liste de frères
+			indexes = siblings.get(0).getIndexes();
+			node = 0;
+			for(int d = 0; d < pathLength; ++d) {
+				int slot = this.slot(node, indexes[d]);
+				if(d == pathLength - 1)
+					this.childOffsets[slot] = siblingsIndex;
+				else {
+					if(this.childOffsets[slot] == -1) {
+						int child = this.newNode(); // newNode() remplace le tableau, l'affectation doit se faire après
+						this.childOffsets[slot] = child;
+					}
+					node = this.childOffsets[slot];
+				}
+			}
+
+			this.siblingsOffsets[siblingsIndex++] = clusterPointIndex;
+			for(ClusterPointWritable clusterPoint : siblings) {
+				System.arraycopy(clusterPoint.coords, 0, this.coords, clusterPointIndex * nbDimensions, nbDimensions);
+				this.clusterPoints[clusterPointIndex++] = clusterPoint;
+			}
+		}
+		this.siblingsOffsets[siblingsIndex] = clusterPointIndex;
+	}
+
+	private int slot(int node, int index) {
+		if(index < 0 || index >= this.K)
+			throw new IllegalArgumentException("index " + index + " out of [0, " + this.K + "[");
+		return node * this.K + index;
+	}
+
+	private int newNode() {
+		this.childOffsets = Arrays.copyOf(this.childOffsets, (this.nbNodes + 1) * this.K);
+		Arrays.fill(this.childOffsets, this.nbNodes * this.K, this.childOffsets.length, -1);
+		return this.nbNodes++;
+	}
+
+	// liste de frères dont le parent a pour identifiant "parentPathId", -1 si elle n'existe pas
+	public int find(long parentPathId) {
+		int node = 0;
+		for(int d = 0; d < this.pathLength && node != -1; ++d)
+			node = this.childOffsets[node * this.K + (int) (parentPathId / this.powers[this.pathLength - 1 - d] % this.K)];
+		return node;
+	}
+
+	public int getNbSiblingsLists() {
+		return this.siblingsOffsets.length - 1;
+	}
+
+	public int getNbSiblings(int siblings) {
+		return this.siblingsOffsets[siblings + 1] - this.siblingsOffsets[siblings];
+	}
+
+	public ClusterPointWritable getClusterPoint(int siblings, int i) {
+		return this.clusterPoints[this.siblingsOffsets[siblings] + i];
+	}
+
+	// coordonnées d'une liste de frères, pour construire un index ou un noyau d'affectation par blocs
+	public double[][] getSiblingsCoords(int siblings) {
+		double[][] siblingsCoords = new double[this.getNbSiblings(siblings)][];
+		for(int i = 0; i < siblingsCoords.length; ++i)
+			siblingsCoords[i] = Arrays.copyOfRange(this.coords, (this.siblingsOffsets[siblings] + i) * this.nbDimensions, (this.siblingsOffsets[siblings] + i + 1) * this.nbDimensions);
+		return siblingsCoords;
+	}
+
+	// carré de la distance entre un point et le i-ème clusterPoint d'une liste de frères
+	public double squaredDistance(int siblings, int i, double[] point) {
+		int offset = (this.siblingsOffsets[siblings] + i) * this.nbDimensions;
+		double sum = 0;
+		double diff;
+		for(int j = 0; j < this.nbDimensions; ++j) {
+			diff = point[j] - this.coords[offset + j];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+
+	// position du clusterPoint le plus proche dans une liste de frères (le premier à distance égale), recherche linéaire
+	// la distance trouvée est gardée pour getLastSquaredDistance() : un même arbre ne doit pas être interrogé par plusieurs threads
+	public int nearest(int siblings, double[] point) {
+		int nbSiblings = this.getNbSiblings(siblings);
+		int best = 0;
+		double bestDistance = Double.MAX_VALUE;
+		double distance;
+		for(int i = 0; i < nbSiblings; ++i) {
+			distance = this.squaredDistance(siblings, i, point);
+			if(distance < bestDistance) {
+				bestDistance = distance;
+				best = i;
+			}
+		}
+		this.lastSquaredDistance = bestDistance;
+		return best;
+	}
+
+	public double getLastSquaredDistance() {
+		return this.lastSquaredDistance;
+	}
+}
@@ -10,10 +10,14 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
-import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.io.WritableUtils;
+
+import common.CentroidSnapshot;
 
 public class ClusterPointWritable extends PointXDWritable {
 	private static final double DELTA = 5;
@@ -48,7 +52,7 @@ public class ClusterPointWritable extends PointXDWritable {
 		return realNbClusters;
 	}
 
-	// constructeur qui rcupre une ligne de coordonnes et d'indices pour un clusterPoint crit dans la configuration
+	// constructeur qui récupère une ligne de coordonnées et d'indices pour un clusterPoint écrit dans la configuration
 	public ClusterPointWritable(String line) {
 		String[] fields = line.split(":");
 
@@ -75,17 +79,21 @@ public class ClusterPointWritable extends PointXDWritable {
 		super.readFields(in);
 		this.indexes = new short[nbIterations];
 		for(int i = 0; i < nbIterations; ++i)
-			this.indexes[i] = in.readShort();
+			this.indexes[i] = encoding.hasVarintCounters() ? (short) WritableUtils.readVInt(in) : in.readShort();
 	}
 
 	@Override
 	public void write(DataOutput out) throws IOException {
 		super.write(out);
-		for(int i = 0; i < nbIterations; ++i)
-			out.writeShort(this.indexes[i]);
+		for(int i = 0; i < nbIterations; ++i) {
+			if(encoding.hasVarintCounters())
+				WritableUtils.writeVInt(out, this.indexes[i]);
+			else
+				out.writeShort(this.indexes[i]);
+		}
 	}
 
-	// retourne une chane de caractres d'un ClusterPointWritable avec chaque coordonne et indice spars par un ":"
+	// retourne une chaîne de caractères d'un ClusterPointWritable avec chaque coordonnée et indice séparés par un ":"
 	@Override
 	public String toString() {
 		StringBuffer str = new StringBuffer();
@@ -118,8 +126,9 @@ public class ClusterPointWritable extends PointXDWritable {
 		realNbClusters = nbClusters;
 	}
 	
-	// lit les nbClusters premiers points d'un fichier et les retourne sous la forme d'une liste de ClusterPointWritable
-	public static Map<String, ArrayList<ClusterPointWritable>> initiateClusterPoints(FSDataInputStream inputStream, int K, int[] positions) throws IOException {
+	// lit les K premiers points distincts du fichier d'entrée, qui forment l'unique liste de clusterPoints du premier niveau
+	// les niveaux suivants partent des fichiers projetés du niveau précédent (voir l'autre initiateClusterPoints)
+	public static Map<String, ArrayList<ClusterPointWritable>> initiateClusterPoints(InputStream inputStream, int K, int[] positions) throws IOException {
 		Map<String, ArrayList<ClusterPointWritable>> clusterPoints = new TreeMap<String, ArrayList<ClusterPointWritable>>();
 
 		InputStreamReader inputStreamReader = new InputStreamReader(inputStream);
@@ -127,47 +136,21 @@ public class ClusterPointWritable extends PointXDWritable {
 		String line;
 		String[] splitCoords;
 		double[] coords;
-		String key;
 		int i = 0;
-		int nbClusterPoints = (int) Math.pow(K, nbIterations); // nombre thorique de clusterPoints (K * nbIterations)
 
-		bufferedReader.readLine(); // pour sauter la premier ligne
-		while(i < nbClusterPoints) {
-			if(nbIterations == 1) { // cas o on lit dans le fichier d'entre
-				line = bufferedReader.readLine();
-				
-				// si la cl n'existe pas encore, alors on lui associe un tableau vide dans la table de hachage
-				// comme il n'y a pas encore de clusterPoints dfinis, on dfinit la cl  "0"
-				key = "0";
-				if(clusterPoints.get(key) == null)
-					clusterPoints.put(key, new ArrayList<ClusterPointWritable>());
-				
-				// rcupration des coordonnes dans la ligne
-				splitCoords = line.split(",");
-				coords = new double[nbDimensions];
-				for(int j = 0; j < nbDimensions; ++j)
-					coords[j] = Double.parseDouble(splitCoords[positions[j]]);
-			}
-			else { // cas o on lit dans le fichier intermdiaire (fusion des fichiers blocs)
-				line = bufferedReader.readLine();
-				
-				// si on a atteint la fin du fichier, alors le nombre de clusterPoints pour cette hirarchie sera infrieur  K
-				if(line == null)
-					break;
-				
-				// si la cl n'existe pas encore, alors on lui associe un tableau vide dans la table de hachage
-				key = fileLineToKey(line);
-				if(clusterPoints.get(key) == null)
-					clusterPoints.put(key, new ArrayList<ClusterPointWritable>());
+		// comme il n'y a pas encore de clusterPoints définis, la clé de la liste est "0"
+		String key = "0";
+		clusterPoints.put(key, new ArrayList<ClusterPointWritable>());
 
-				// rcupration des coordonnes dans la ligne
-				splitCoords = line.split(":")[0].split(",");
-				coords = new double[nbDimensions];
-				for(int j = 0; j < nbDimensions; ++j)
-					coords[j] = Double.parseDouble(splitCoords[positions[j]]);
-			}
+		bufferedReader.readLine(); // pour sauter la premier ligne
+		while(i < K && (line = bufferedReader.readLine()) != null) {
+			// récupération des coordonnées dans la ligne
+			splitCoords = line.split(",");
+			coords = new double[nbDimensions];
+			for(int j = 0; j < nbDimensions; ++j)
+				coords[j] = Double.parseDouble(splitCoords[positions[j]]);
 			
-			// si la liste est incomplte et que le point n'existe pas encore dans la liste, il est ajout  la table de hachage
+			// si la liste est incomplète et que le point n'existe pas encore dans la liste, il est ajouté à la table de hachage
 			if(!coordsAlreadyIn(clusterPoints.get(key), coords, K)) {
 				clusterPoints.get(key).add(new ClusterPointWritable(coords, key, (short) clusterPoints.get(key).size()));
 				i++;
@@ -177,7 +160,33 @@ public class ClusterPointWritable extends PointXDWritable {
 		return clusterPoints;
 	}
 
-	// dtermine si un point est dj dans la liste des clusterPoints ou si la liste des clusterPoints est complte ou non
+	// lit les premiers points distincts de chaque liste de frères dans les fichiers projetés du niveau précédent (voir ProjectedFile)
+	public static Map<String, ArrayList<ClusterPointWritable>> initiateClusterPoints(List<ProjectedFile.Reader> readers, int K) throws IOException {
+		Map<String, ArrayList<ClusterPointWritable>> clusterPoints = new TreeMap<String, ArrayList<ClusterPointWritable>>();
+		Map<Long, String> keys = new HashMap<Long, String>();
+		double[] coords = new double[nbDimensions];
+		String key;
+		int i = 0;
+		int nbClusterPoints = (int) Math.pow(K, nbIterations); // nombre théorique de clusterPoints (K * nbIterations)
+
+		for(ProjectedFile.Reader reader : readers) {
+			while(i < nbClusterPoints && reader.next(coords)) {
+				key = keys.get(reader.getPathId());
+				if(key == null)
+					keys.put(reader.getPathId(), key = pathIdToKey(reader.getPathId(), nbIterations - 1, K));
+				if(clusterPoints.get(key) == null)
+					clusterPoints.put(key, new ArrayList<ClusterPointWritable>());
+				if(!coordsAlreadyIn(clusterPoints.get(key), coords, K)) {
+					clusterPoints.get(key).add(new ClusterPointWritable(coords.clone(), key, (short) clusterPoints.get(key).size()));
+					i++;
+				}
+			}
+		}
+		realNbClusters = i;
+		return clusterPoints;
+	}
+
+	// détermine si un point est déjà dans la liste des clusterPoints ou si la liste des clusterPoints est complète ou non
 	private static boolean coordsAlreadyIn(ArrayList<ClusterPointWritable> clusterPoints, double[] coords, int K) {
 		if(clusterPoints.size() == K)
 			return true;
@@ -198,7 +207,7 @@ public class ClusterPointWritable extends PointXDWritable {
 		return false;
 	}
 
-	// crit les clusterPoints sous forme d'une table de hachage dans un fichier
+	// écrit les clusterPoints sous forme d'une table de hachage dans un fichier
 	public static void writeIntoFile(Map<String, ArrayList<ClusterPointWritable>> clusterPoints, OutputStream os) throws IOException {
 		OutputStreamWriter osw = new OutputStreamWriter(os);
 		BufferedWriter bw = new BufferedWriter(osw);
@@ -221,7 +230,7 @@ public class ClusterPointWritable extends PointXDWritable {
 		BufferedReader bufferedReader = new BufferedReader(inputStreamReader);
 
 		String line = bufferedReader.readLine();
-		String[] points = line.split(","); // les points sont spars par des virgules
+		String[] points = line.split(","); // les points sont séparés par des virgules
 		ClusterPointWritable point;
 		String key;
 		ArrayList<ClusterPointWritable> pointsArray;
@@ -241,6 +250,47 @@ public class ClusterPointWritable extends PointXDWritable {
 		return clusterPoints;
 	}
 
+	// reconstruit la table de hachage des clusterPoints depuis un instantané binaire, le niveau de l'instantané donne la longueur des chemins
+	public static Map<String, ArrayList<ClusterPointWritable>> fromSnapshot(CentroidSnapshot snapshot, int K) {
+		Map<String, ArrayList<ClusterPointWritable>> clusterPoints = new TreeMap<String, ArrayList<ClusterPointWritable>>();
+		ClusterPointWritable point;
+		short[] indexes;
+		String key;
+		for(int i = 0; i < snapshot.getNbCentroids(); ++i) {
+			indexes = new short[snapshot.paths[i].length];
+			for(int j = 0; j < indexes.length; ++j)
+				indexes[j] = (short) snapshot.paths[i][j];
+			point = new ClusterPointWritable(snapshot.coords[i], indexes);
+			key = indexesToKey(indexes);
+			if(clusterPoints.get(key) == null)
+				clusterPoints.put(key, new ArrayList<ClusterPointWritable>(K));
+			clusterPoints.get(key).add(point);
+		}
+		return clusterPoints;
+	}
+
+	// instantané binaire des clusterPoints d'un niveau, dans l'ordre des clés
+	public static CentroidSnapshot toSnapshot(Map<String, ArrayList<ClusterPointWritable>> clusterPoints, int level, int iteration) {
+		List<ClusterPointWritable> list = new ArrayList<ClusterPointWritable>();
+		for(ArrayList<ClusterPointWritable> arr : clusterPoints.values())
+			list.addAll(arr);
+		int[][] paths = new int[list.size()][];
+		for(int i = 0; i < paths.length; ++i) {
+			paths[i] = new int[level];
+			for(int j = 0; j < level; ++j)
+				paths[i][j] = list.get(i).indexes[j];
+		}
+		return new CentroidSnapshot(level, iteration, toCoordsArray(list), paths);
+	}
+
+	// extrait les coordonnées d'une liste de clusterPoints
+	public static double[][] toCoordsArray(List<ClusterPointWritable> clusterPoints) {
+		double[][] coords = new double[clusterPoints.size()][];
+		for(int i = 0; i < coords.length; ++i)
+			coords[i] = clusterPoints.get(i).coords;
+		return coords;
+	}
+
 	// affiche la table de hachage contenant les clusterPoints
 	public static void displayClusterPoints(Map<String, ArrayList<ClusterPointWritable>> clusterPoints) {
 		for(ArrayList<ClusterPointWritable> arr : clusterPoints.values()) {
@@ -251,17 +301,7 @@ public class ClusterPointWritable extends PointXDWritable {
 		System.out.println();
 	}
 
-	// extrait depuis une ligne de clusterPoint la liste de ses indices
-	public static short[] lineToIndexes(String line) {
-		String[] fields = line.split(":");
-
-		short[] indexes = new short[nbIterations];
-		for(int i = nbDimensions; i < fields.length; ++i)
-			indexes[i - nbDimensions] = Short.parseShort(fields[i]);
-		return indexes;
-	}
-
-	// convertit une liste d'indices en une chane de caractres formant une cl de hachage
+	// convertit une liste d'indices en une chaîne de caractères formant une clé de hachage
 	public static String indexesToKey(short[] indexes) {
 		StringBuilder str = new StringBuilder();
 		if(indexes.length - 1 == 0)
@@ -274,7 +314,39 @@ public class ClusterPointWritable extends PointXDWritable {
 		return str.toString();
 	}
 
-	// convertit une ligne de fichier intermdiaire en une cl de hachage
+	// identifiant d'un chemin d'indices, écrit en base K (chaque indice est inférieur à K)
+	public static long pathId(short[] indexes, int K) {
+		long id = 0;
+		for(short index : indexes)
+			id = id * K + index;
+		return id;
+	}
+
+	// chemin de "length" indices correspondant à un identifiant
+	public static short[] pathIdToIndexes(long id, int length, int K) {
+		short[] indexes = new short[length];
+		for(int i = length - 1; i >= 0; --i) {
+			indexes[i] = (short) (id % K);
+			id /= K;
+		}
+		return indexes;
+	}
+
+	// clé de hachage des listes de frères ("i1:i2:...", "0" pour un chemin vide) correspondant à l'identifiant d'un chemin de "length" indices
+	public static String pathIdToKey(long id, int length, int K) {
+		if(length == 0)
+			return "0";
+		short[] indexes = pathIdToIndexes(id, length, K);
+		StringBuilder str = new StringBuilder();
+		for(int i = 0; i < length; ++i) {
+			if(i > 0)
+				str.append(":");
+			str.append(indexes[i]);
+		}
+		return str.toString();
+	}
+
+	// convertit une ligne de fichier intermédiaire en une clé de hachage
 	public static String fileLineToKey(String value) {
 		String[] split = value.split(":");
 		StringBuilder str = new StringBuilder();
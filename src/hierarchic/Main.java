@@ -2,201 +2,530 @@ package hierarchic;
 
 //yarn jar ~/tmp/kmeans.jar hierarchic.Main /worldcitiespop.txt output 10 3 5 6
 
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
 import java.net.URI;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
-import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
-import org.apache.hadoop.mapreduce.Cluster;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.LazyOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 
+import common.AssignmentKernel;
+import common.BatchPipeline;
+import common.CentroidIndex;
+import common.CentroidSnapshot;
+import common.Options;
+import common.Timeline;
+import common.WireEncoding;
+
 public class Main {
+	static final String ANNOTATED = "annotated"; // sortie des mappers au dernier niveau : chaque ligne lue suivie de l'indice de son clusterPoint
+	static final String PROJECTED = "projected"; // sortie des mappers aux autres niveaux : les points projetés, relus par le niveau suivant
+	static final String FROZEN = "frozen"; // sous-répertoire des sorties des points dont la liste de clusterPoints frères est figée
 
-	// rcupre les clusterPoints depuis le fichier cache distribu sous forme d'une table de hachage
+	// récupère les clusterPoints depuis le fichier cache distribué sous forme d'une table de hachage
+	// le fichier est un instantané binaire (voir CentroidSnapshot), l'ancien format texte reste accepté
 	private static Map<String, ArrayList<ClusterPointWritable>> getClusterPointsFromCache(URI distribURI, Configuration conf, int nbClusters) throws IOException {
 		FileSystem fs = FileSystem.get(distribURI, conf);
-		InputStream is = fs.open(new Path(distribURI));
-		Map<String, ArrayList<ClusterPointWritable>> clusterPoints = ClusterPointWritable.readFromFile(is, nbClusters);
+		InputStream is = new BufferedInputStream(fs.open(new Path(distribURI)));
+		Map<String, ArrayList<ClusterPointWritable>> clusterPoints;
+		if(CentroidSnapshot.isSnapshot(is))
+			clusterPoints = ClusterPointWritable.fromSnapshot(CentroidSnapshot.read(is), nbClusters);
+		else
+			clusterPoints = ClusterPointWritable.readFromFile(is, nbClusters);
 		is.close();
 		return clusterPoints;
 	}
 
-	// crit les clusterPoints sous forme d'une table de hachage dans le fichier cache distribu
+	// écrit les clusterPoints dans le fichier cache distribué sous forme d'un instantané du niveau et de l'itération courants
 	private static void writeClusterPointsIntoCache(URI distribURI, Configuration conf, Map<String, ArrayList<ClusterPointWritable>> clusterPoints) throws IOException {
 		FileSystem fs = FileSystem.get(distribURI, conf);
-		FSDataOutputStream os = fs.create(new Path(distribURI));
-		ClusterPointWritable.writeIntoFile(clusterPoints, os);
-		os.close();
+		CentroidSnapshot snapshot = ClusterPointWritable.toSnapshot(clusterPoints, conf.getInt("megaProject.args.nbIterations", 1), conf.getInt("megaProject.args.iteration", 0));
+		CentroidSnapshot.write(fs, new Path(distribURI), snapshot);
 	}
 
-	public static class HierarchicMapper extends Mapper<LongWritable, Text, Text, PointXDWritable> {
-		private Map<String, ArrayList<ClusterPointWritable>> clusterPoints;
-		private int nbDimensions;
-		private int nbIterations;
+	// garde une copie du fichier cache dans le répertoire des instantanés, pour pouvoir reprendre le calcul avec "--resume"
+	private static void saveSnapshot(Configuration conf, FileSystem fs, Path distribPath, Path snapshotsPath, int level, int iteration) throws IOException {
+		FileUtil.copy(fs, distribPath, fs, new Path(snapshotsPath, CentroidSnapshot.fileName(level, iteration)), false, true, conf);
+	}
+
+	// partie commune des mappers : affectation du point courant au plus proche de ses clusterPoints frères et écriture, quel que soit le format d'entrée
+	// au dernier niveau chaque point est écrit en texte avec le chemin d'indices de son clusterPoint, aux autres niveaux il est écrit
+	// en binaire pour le niveau suivant (voir ProjectedFile) ; ces sorties sont validées avec la tâche (une tentative abandonnée ne laisse rien)
+	// les points d'une liste de frères figée par le driver (aucun clusterPoint modifié à la passe précédente) sont écrits une dernière fois
+	// dans le sous-répertoire FROZEN, sans passer par le réducteur ni être relus par les passes suivantes
+	public static abstract class AbstractHierarchicMapper<V> extends Mapper<LongWritable, V, LongWritable, PointXDWritable> {
+		protected ClusterPointTree clusterPoints;
+		protected int nbDimensions;
+		protected int nbIterations;
 		private int nbHierarchies;
-		private int[] positions;
-		private PointXDWritable currentPoint;
-		private ClusterPointWritable nearestClusterPoint;
-		private double minDistance;
-		private double currentDistance;
-		private boolean firstIteration = true;
-		private Configuration conf;
-		private BufferedWriter bw;
+		private int nbClusters;
+		protected int[] positions;
+		protected PointXDWritable currentPoint;
+		protected ClusterPointWritable nearestClusterPoint;
+		protected Configuration conf;
+		private MultipleOutputs<LongWritable, PointXDWritable> outputs;
+		private Text annotatedLine = new Text();
+		private SourceLines sourceLines; // lignes du fichier d'entrée, relues par leur offset au dernier niveau (null au premier niveau)
+		private LongWritable pathKey = new LongWritable(); // identifiant du chemin du clusterPoint le plus proche (voir ClusterPointWritable.pathId)
+		private CentroidIndex[] centroidIndexes; // un index par liste de clusterPoints frères
+		private Batch[] batches; // un bloc de points en attente par liste de clusterPoints frères
+		private boolean[] frozen; // listes de clusterPoints frères figées depuis la passe précédente, null s'il n'y en a pas
+		private int currentSiblings; // liste de clusterPoints frères du point courant
+		protected double frozenSse;
+		protected long frozenPoints;
+		private int batchSize;
+		protected double sse;
+		protected long recordsParsed;
+		protected long distanceEvaluations; // calculs de distance de la recherche linéaire et du mode "par blocs"
+		protected boolean timeParsing; // la durée de lecture des lignes n'est mesurée que si une chronologie est demandée
+		protected long parseTime;
+
+		// bloc de points en attente d'affectation avec les offsets et les lignes dont ils sont issus (sans lignes pour une entrée binaire)
+		private static class Batch {
+			private final int siblings;
+			private final AssignmentKernel kernel;
+			private final long[] sourceOffsets;
+			private final Text[] lines;
+
+			public Batch(ClusterPointTree clusterPoints, int siblings, int batchSize, boolean keepLines) {
+				this.siblings = siblings;
+				this.kernel = new AssignmentKernel(clusterPoints.getSiblingsCoords(siblings), batchSize);
+				this.sourceOffsets = new long[batchSize];
+				this.lines = keepLines ? new Text[batchSize] : null;
+				for(int i = 0; keepLines && i < batchSize; ++i)
+					this.lines[i] = new Text();
+			}
+
+			public boolean add(Text line, long sourceOffset, double[] coords) {
+				if(this.lines != null)
+					this.lines[this.kernel.size()].set(line);
+				this.sourceOffsets[this.kernel.size()] = sourceOffset;
+				return this.kernel.add(coords);
+			}
+		}
 
 		@Override
 		public void setup(Context context) throws IOException, InterruptedException {
-			// rcupration des paramtres utiles depuis la configuration et des clusterPoints depuis le cache
+			// récupération des paramètres utiles depuis la configuration et des clusterPoints depuis le cache
 			conf = context.getConfiguration();
 			this.nbDimensions = conf.getInt("megaProject.args.nbDimensions", 2);
 			this.nbIterations = conf.getInt("megaProject.args.nbIterations", 1);
 			this.nbHierarchies = conf.getInt("megaProject.args.nbHierarchies", 1);
+			this.nbClusters = conf.getInt("megaProject.args.nbClusters", 10);
 			this.positions = new int[this.nbDimensions];
 			for(int i = 0 ; i<this.nbDimensions;++i)
 				this.positions[i] = conf.getInt("megaProject.args.position"+ i, 0);
 			ClusterPointWritable.setNbDimensions(this.nbDimensions);
 			ClusterPointWritable.setNbIterations(this.nbIterations);
+			ClusterPointWritable.setEncoding(WireEncoding.get(conf));
 			ClusterPointWritable.setRealNbClusters(conf.getInt("megaProject.args.realNbClusters", 5));
-			this.clusterPoints = getClusterPointsFromCache(context.getCacheFiles()[0], conf, conf.getInt("megaProject.args.nbClusters", 10));
+			this.clusterPoints = new ClusterPointTree(getClusterPointsFromCache(context.getCacheFiles()[0], conf, this.nbClusters).values(), this.nbDimensions, this.nbIterations - 1, this.nbClusters);
+			this.currentPoint = new PointXDWritable(); // réutilisé pour chaque ligne, context.write() sérialise le point immédiatement
+			this.timeParsing = conf.get("megaProject.options.metrics") != null;
+			this.outputs = new MultipleOutputs<LongWritable, PointXDWritable>(context);
+			if(this.nbIterations == this.nbHierarchies && this.nbIterations > 1)
+				this.sourceLines = new SourceLines(conf, new Path(conf.get("megaProject.args.inputFile")));
+
+			if(conf.getBoolean("megaProject.options.centroidIndex", false)) {
+				this.centroidIndexes = new CentroidIndex[this.clusterPoints.getNbSiblingsLists()];
+				for(int i = 0; i < this.centroidIndexes.length; ++i)
+					this.centroidIndexes[i] = new CentroidIndex(this.clusterPoints.getSiblingsCoords(i));
+			}
+			else if(conf.getBoolean("megaProject.options.batchKernel", false)) {
+				this.batches = new Batch[this.clusterPoints.getNbSiblingsLists()];
+				this.batchSize = conf.getInt("megaProject.options.batchSize", 1024);
+			}
+
+			// identifiants des chemins des parents des listes figées, écrits dans la configuration par le driver
+			String[] frozenBranches = conf.getStrings("megaProject.args.frozenBranches");
+			if(frozenBranches != null) {
+				this.frozen = new boolean[this.clusterPoints.getNbSiblingsLists()];
+				int siblings;
+				for(String branch : frozenBranches)
+					if((siblings = this.clusterPoints.find(Long.parseLong(branch))) != -1)
+						this.frozen[siblings] = true;
+			}
+		}
+
+		// affecte le point courant au plus proche de la liste de clusterPoints frères "siblings" (voir ClusterPointTree) puis l'écrit
+		// "line" est la ligne d'origine (null pour une entrée binaire)
+		protected void assign(int siblings, Text line, Context context) throws IOException, InterruptedException {
+			this.currentSiblings = siblings;
+
+			// en mode "par blocs", le point et sa ligne sont mis en attente dans le bloc de ses clusterPoints frères
+			if(this.batches != null) {
+				Batch batch = this.batches[siblings];
+				if(batch == null)
+					batch = this.batches[siblings] = new Batch(this.clusterPoints, siblings, this.batchSize, line != null);
+				this.distanceEvaluations += this.clusterPoints.getNbSiblings(siblings);
+				if(batch.add(line, this.currentPoint.getSourceOffset(), this.currentPoint.coords))
+					this.flushBatch(batch, context);
+				return;
+			}
+
+			if(this.centroidIndexes != null) {
+				CentroidIndex centroidIndex = this.centroidIndexes[siblings];
+				this.nearestClusterPoint = this.clusterPoints.getClusterPoint(siblings, centroidIndex.nearest(this.currentPoint.coords));
+				this.addSse(centroidIndex.getLastSquaredDistance());
+			}
+			else {
+				this.distanceEvaluations += this.clusterPoints.getNbSiblings(siblings);
+				this.nearestClusterPoint = this.clusterPoints.getClusterPoint(siblings, this.clusterPoints.nearest(siblings, this.currentPoint.coords));
+				this.addSse(this.clusterPoints.getLastSquaredDistance());
+			}
+
+			this.write(line, context);
+		}
+
+		// la distance d'un point d'une liste figée est aussi comptée à part, le driver la reporte sur les passes suivantes
+		protected void addSse(double squaredDistance) {
+			this.sse += squaredDistance;
+			if(this.frozen != null && this.frozen[this.currentSiblings]) {
+				this.frozenSse += squaredDistance;
+				this.frozenPoints++;
+			}
+		}
+
+		// écriture en sortie avec pour clé l'identifiant du chemin du clusterPoint, puis dans la sortie texte (dernier niveau) ou binaire (niveaux suivants)
+		// la ligne texte est la ligne d'origine, relue dans le fichier d'entrée à partir de son offset hors du premier niveau, suivie des indices du chemin
+		// hors du premier niveau, un point encore actif est aussi écrit en binaire au dernier niveau : c'est l'entrée de la passe suivante
+		protected void write(Text line, Context context) throws IOException, InterruptedException {
+			boolean frozen = this.frozen != null && this.frozen[this.currentSiblings];
+			this.pathKey.set(ClusterPointWritable.pathId(this.nearestClusterPoint.getIndexes(), this.nbClusters));
+			if(!frozen)
+				context.write(this.pathKey, this.currentPoint);
+			if(this.nbIterations == this.nbHierarchies) {
+				StringBuilder str = new StringBuilder((line != null ? line : this.sourceLines.get(this.currentPoint.getSourceOffset())).toString());
+				for(short index : this.nearestClusterPoint.getIndexes())
+					str.append(",").append(index);
+				this.annotatedLine.set(str.toString());
+				this.outputs.write(ANNOTATED, NullWritable.get(), this.annotatedLine, frozen ? FROZEN + "/" + ANNOTATED : ANNOTATED);
+			}
+			if(this.nbIterations != this.nbHierarchies || (this.nbIterations > 1 && !frozen))
+				this.outputs.write(PROJECTED, this.pathKey, this.currentPoint, frozen ? FROZEN + "/" + PROJECTED : PROJECTED);
+		}
+
+		// affecte tous les points en attente dans un bloc et les écrit
+		private void flushBatch(Batch batch, Context context) throws IOException, InterruptedException {
+			int[] assignments = batch.kernel.assign();
+			for(int i = 0; i < batch.kernel.size(); ++i) {
+				batch.kernel.getPoint(i, this.currentPoint.coords);
+				this.currentPoint.setSourceOffset(batch.sourceOffsets[i]);
+				this.nearestClusterPoint = this.clusterPoints.getClusterPoint(batch.siblings, assignments[i]);
+				this.currentSiblings = batch.siblings;
+				this.addSse(batch.kernel.getSquaredDistance(i));
+				this.write(batch.lines == null ? null : batch.lines[i], context);
+			}
+			batch.kernel.clear();
 		}
 
 		@Override
-		public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {	
-			// on saute la premire ligne du fichier "worldcitiespop.txt"
-			if(!value.toString().contains("Country")) {
-				
-				// cration du fichier bloc  la premire itration
-				if(this.firstIteration) {
-					FileSystem fs = FileSystem.get(conf);
-					String nameFile = "file" + key.get();
-					FSDataOutputStream os = fs.create(new Path("file" + key.get()));
-					context.getCounter("filenames", nameFile);
-					this.bw = new BufferedWriter(new OutputStreamWriter(os));
-					this.firstIteration = false;
+		public void cleanup(Context context) throws IOException, InterruptedException {
+			if(this.batches != null)
+				for(Batch batch : this.batches)
+					if(batch != null)
+						this.flushBatch(batch, context);
+
+			context.getCounter("megaProject.counters", "sse").increment(Math.round(this.sse * Timeline.SSE_SCALE));
+			context.getCounter("megaProject.counters", "recordsParsed").increment(this.recordsParsed);
+			context.getCounter("megaProject.counters", "parseTimeNanos").increment(this.parseTime);
+			context.getCounter("megaProject.counters", "distanceEvaluations").increment(this.distanceEvaluations);
+			context.getCounter("megaProject.counters", "frozenSse").increment(Math.round(this.frozenSse * Timeline.SSE_SCALE));
+			context.getCounter("megaProject.counters", "frozenPoints").increment(this.frozenPoints);
+
+			// comptabilisation des calculs de distance évités grâce aux index
+			if(this.centroidIndexes != null) {
+				for(CentroidIndex centroidIndex : this.centroidIndexes) {
+					context.getCounter("megaProject.counters", "distanceEvaluations").increment(centroidIndex.getDistanceEvaluations());
+					context.getCounter("megaProject.counters", "distanceEvaluationsPruned").increment(centroidIndex.getPrunedEvaluations());
 				}
+			}
+			this.outputs.close();
+			if(this.sourceLines != null)
+				this.sourceLines.close();
+		}
+	}
 
-				// rcupration du tableau des clusterPoints ( la premire itration, la cl par dfaut est "0")
-				List<ClusterPointWritable> clusterPointsArray = this.clusterPoints.get(this.nbIterations == 1 ? "0" : ClusterPointWritable.fileLineToKey(value.toString()));
-
-				// dtermination du clusterPoint le plus proche du point courant
-				this.currentPoint = new PointXDWritable(value.toString(), this.nbIterations, this.positions);
-				this.minDistance = Double.MAX_VALUE;
-				for(ClusterPointWritable clusterPoint : clusterPointsArray) {
-					this.currentDistance = this.currentPoint.distance(clusterPoint);
-					if(this.currentDistance < this.minDistance) {
-						this.minDistance = this.currentDistance;
-						this.nearestClusterPoint = clusterPoint;
+	// mapper du premier niveau, qui lit les lignes du fichier d'entrée
+	public static class HierarchicMapper extends AbstractHierarchicMapper<Text> {
+		private static final int LINES_PER_BATCH = 4096;
+		private boolean skipFirstLine; // seulement pour le fichier "worldcitiespop.txt", dont la première ligne est un en-tête
+		private List<LineBatch> lineBatches = new ArrayList<LineBatch>();
+
+		// bloc de lignes lues et affectées par un thread du pool en mode multi-thread (voir BatchPipeline)
+		// les lignes sont ensuite écrites dans l'ordre par le thread de la tâche, avec le clusterPoint trouvé pour chacune
+		private static class LineBatch implements BatchPipeline.Batch {
+			private final Text[] lines;
+			private final long[] sourceOffsets;
+			private final double[][] coords;
+			private final ClusterPointWritable[] nearest; // null si la ligne n'a pas pu être lue
+			private final PointXDWritable point = new PointXDWritable();
+			private final CentroidIndex centroidIndex; // l'index garde un état : un par bloc
+			private int size;
+			private double sse;
+			private long recordsParsed;
+			private long distanceEvaluations;
+			private long parseTime;
+
+			public LineBatch(ClusterPointTree clusterPoints, int capacity, int nbDimensions, boolean useCentroidIndex) {
+				this.lines = new Text[capacity];
+				this.sourceOffsets = new long[capacity];
+				this.coords = new double[capacity][nbDimensions];
+				this.nearest = new ClusterPointWritable[capacity];
+				for(int i = 0; i < capacity; ++i)
+					this.lines[i] = new Text();
+				this.centroidIndex = useCentroidIndex ? new CentroidIndex(clusterPoints.getSiblingsCoords(0)) : null;
+			}
+
+			@Override
+			public boolean add(long offset, Text line) {
+				this.sourceOffsets[this.size] = offset;
+				this.lines[this.size++].set(line);
+				return this.size == this.lines.length;
+			}
+
+			@Override
+			public int size() {
+				return this.size;
+			}
+
+			// lit chaque ligne et cherche le clusterPoint le plus proche, appelé depuis un thread du pool
+			public void process(ClusterPointTree clusterPoints, int[] positions, boolean timeParsing) {
+				long startTime;
+				boolean parsed;
+				int nbSiblings = clusterPoints.getNbSiblings(0);
+				int nearest;
+				double minDistance;
+				double distance;
+				for(int i = 0; i < this.size; ++i) {
+					startTime = timeParsing ? System.nanoTime() : 0;
+					parsed = this.point.set(this.lines[i], 1, positions);
+					if(timeParsing)
+						this.parseTime += System.nanoTime() - startTime;
+					this.nearest[i] = null;
+					if(!parsed)
+						continue;
+					this.recordsParsed++;
+
+					if(this.centroidIndex != null) {
+						nearest = this.centroidIndex.nearest(this.point.coords);
+						minDistance = this.centroidIndex.getLastSquaredDistance();
+					}
+					else {
+						// ClusterPointTree.nearest() garde la dernière distance : chaque thread fait donc sa propre recherche
+						nearest = 0;
+						minDistance = Double.MAX_VALUE;
+						this.distanceEvaluations += nbSiblings;
+						for(int j = 0; j < nbSiblings; ++j) {
+							distance = clusterPoints.squaredDistance(0, j, this.point.coords);
+							if(distance < minDistance) {
+								minDistance = distance;
+								nearest = j;
+							}
+						}
 					}
+					this.nearest[i] = clusterPoints.getClusterPoint(0, nearest);
+					this.sse += minDistance;
+					System.arraycopy(this.point.coords, 0, this.coords[i], 0, this.coords[i].length);
 				}
+			}
+		}
 
-				// criture en sortie et dans le fichier du bloc courant
-				context.write(new Text(this.nearestClusterPoint.toString()), this.currentPoint);
-				if(this.nbIterations == this.nbHierarchies) {
-					String str = value.toString().replace(':', ',');
-					bw.write(str + "," + this.nearestClusterPoint.getLastIndex() + "\n");
-				}
-				else
-					bw.write(value.toString() + ":" + this.nearestClusterPoint.getLastIndex() + "\n");
-				bw.flush();
+		@Override
+		public void setup(Context context) throws IOException, InterruptedException {
+			super.setup(context);
+			this.skipFirstLine = conf.getBoolean("megaProject.args.skipFirstLine", false);
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+			// on saute la première ligne du fichier "worldcitiespop.txt" (à l'offset 0)
+			if(this.skipFirstLine && key.get() == 0)
+				return;
+
+			// détermination du clusterPoint le plus proche du point courant (au premier niveau, il n'y a qu'une liste de clusterPoints)
+			long startTime = this.timeParsing ? System.nanoTime() : 0;
+			boolean parsed = this.currentPoint.set(value, 1, this.positions);
+			if(this.timeParsing)
+				this.parseTime += System.nanoTime() - startTime;
+			if(!parsed)
+				return;
+			this.recordsParsed++;
+			this.currentPoint.setSourceOffset(key.get());
+			this.assign(0, value, context);
+		}
+
+		// avec "--mapThreads=N", le thread de la tâche ne fait que lire et écrire les lignes : leur lecture et leur affectation sont réparties sur N threads
+		// les points restent émis un par un, c'est le combiner qui les agrège par clusterPoint
+		@Override
+		public void run(Context context) throws IOException, InterruptedException {
+			int nbThreads = context.getConfiguration().getInt("megaProject.options.mapThreads", 1);
+			if(nbThreads <= 0)
+				nbThreads = context.getConfiguration().getInt("mapreduce.map.cpu.vcores", 1);
+			if(nbThreads <= 1) {
+				super.run(context);
+				return;
+			}
+
+			this.setup(context);
+			final boolean useCentroidIndex = conf.getBoolean("megaProject.options.centroidIndex", false);
+			try {
+				new BatchPipeline<LineBatch>(nbThreads, batch -> batch.process(this.clusterPoints, this.positions, this.timeParsing)).run(context, key -> this.skipFirstLine && key.get() == 0, () -> {
+					LineBatch batch = new LineBatch(this.clusterPoints, LINES_PER_BATCH, this.nbDimensions, useCentroidIndex);
+					this.lineBatches.add(batch);
+					return batch;
+				}, batch -> this.writeBatch(batch, context));
+			}
+			finally {
+				this.cleanup(context);
+			}
+		}
+
+		@Override
+		public void cleanup(Context context) throws IOException, InterruptedException {
+			for(LineBatch batch : this.lineBatches) {
+				if(batch.centroidIndex == null)
+					continue;
+				context.getCounter("megaProject.counters", "distanceEvaluations").increment(batch.centroidIndex.getDistanceEvaluations());
+				context.getCounter("megaProject.counters", "distanceEvaluationsPruned").increment(batch.centroidIndex.getPrunedEvaluations());
+			}
+			super.cleanup(context);
+		}
+
+		// écrit les lignes d'un bloc traité dans l'ordre de lecture puis vide le bloc
+		private void writeBatch(LineBatch batch, Context context) throws IOException, InterruptedException {
+			for(int i = 0; i < batch.size; ++i) {
+				if(batch.nearest[i] == null)
+					continue;
+				System.arraycopy(batch.coords[i], 0, this.currentPoint.coords, 0, this.nbDimensions);
+				this.currentPoint.setSourceOffset(batch.sourceOffsets[i]);
+				this.nearestClusterPoint = batch.nearest[i];
+				this.write(batch.lines[i], context);
 			}
+			this.sse += batch.sse;
+			this.recordsParsed += batch.recordsParsed;
+			this.distanceEvaluations += batch.distanceEvaluations;
+			this.parseTime += batch.parseTime;
+			batch.sse = 0;
+			batch.recordsParsed = 0;
+			batch.distanceEvaluations = 0;
+			batch.parseTime = 0;
+			batch.size = 0;
 		}
 	}
 
-	public static class HierarchicReducer extends Reducer<Text, PointXDWritable, PointXDWritable, Text> {
+	// mapper des niveaux suivants, qui lit les points binaires écrits par le niveau précédent : ni analyse de texte ni découpage de clé
+	public static class HierarchicProjectedMapper extends AbstractHierarchicMapper<PointXDWritable> {
+
+		@Override
+		public void map(LongWritable key, PointXDWritable value, Context context) throws IOException, InterruptedException {
+			int siblings = this.clusterPoints.find(key.get());
+			if(siblings == -1)
+				throw new IOException("no clusterPoints under path id " + key.get());
+			System.arraycopy(value.coords, 0, this.currentPoint.coords, 0, this.nbDimensions);
+			this.currentPoint.setSourceOffset(value.getSourceOffset());
+			this.recordsParsed++;
+			this.assign(siblings, null, context);
+		}
+	}
+
+	// agrège les points d'un même clusterPoint en un seul point pondéré (somme des coordonnées et nombre de points)
+	public static class HierarchicCombiner extends Reducer<LongWritable, PointXDWritable, LongWritable, PointXDWritable> {
+		private double[] coords;
+		private PointXDWritable combinerPoint;
+		private int nbDimensions;
+		private int nbPoints;
+
+		@Override
+		public void setup(Context context) throws IOException, InterruptedException {
+			this.nbDimensions = context.getConfiguration().getInt("megaProject.args.nbDimensions", 2);
+			PointXDWritable.setNbDimensions(this.nbDimensions);
+			PointXDWritable.setEncoding(WireEncoding.get(context.getConfiguration()));
+		}
+
+		@Override
+		public void reduce(LongWritable key, Iterable<PointXDWritable> values, Context context) throws IOException, InterruptedException {
+			this.coords = new double[this.nbDimensions];
+			this.nbPoints = 0;
+			for(PointXDWritable point : values) {
+				for(int i = 0; i < this.nbDimensions; ++i)
+					this.coords[i] += point.coords[i];
+				this.nbPoints += point.getPointsCounter();
+			}
+			this.combinerPoint = new PointXDWritable(this.coords, this.nbPoints);
+			context.write(key, this.combinerPoint);
+		}
+	}
+
+	public static class HierarchicReducer extends Reducer<LongWritable, PointXDWritable, PointXDWritable, Text> {
 		private Map<String, ArrayList<ClusterPointWritable>> clusterPoints;
 		private double[] coords;
 		private ClusterPointWritable newCenter;
 		private int nbPoints;
 		private int nbDimensions;
 		private int nbIterations;
-		private int nbHierarchies;
+		private int nbClusters;
 		private Configuration conf;
-		private List<String> filenames = new ArrayList<String>();
-		private Path[] paths;
-
-		// concatne les fichiers intermdiaires  la fin d'une boucle de stabilisation
-		private void concatFiles() throws IOException {
-			FileSystem fs = FileSystem.get(this.conf);
-			Path endFilePath;
-			
-			if(this.nbIterations != this.nbHierarchies) // cas o on a pas encore termin, on crit dans le fichier intermdiaire
-				endFilePath = new Path(conf.get("megaProject.args.resultFile", "resultEven"));
-			else // dernire itration, on crit dans le fichier de sortie
-				endFilePath = new Path(conf.get("megaProject.args.outputFile"));
-			fs.create(endFilePath).close();
-			this.paths = new Path[this.filenames.size()];
-			for(int i = 0; i < this.paths.length; ++i)
-				this.paths[i] = new Path(this.filenames.get(i));
-			fs.concat(endFilePath, this.paths);
-			for(int i = 0; i < this.paths.length; ++i)
-				fs.delete(this.paths[i], true); // suppression des fichiers blocs
-		}
 
 		@Override
 		public void setup(Context context) throws IOException, InterruptedException {
 			conf = context.getConfiguration();
-			
-			// rcupration des compteurs et rcupration des noms des fichiers intermdiaires grce  leur nom de famille de compteur
-			// un fichier intermdiaire correspond  un bloc de donnes
-			Cluster cluster = new Cluster(this.conf);
-			Job job = cluster.getJob(context.getJobID());
-			job.getCounters().getGroup("filenames").forEach(counter -> this.filenames.add(counter.getName()));
-
-			// tri des fichiers intermdiaires selon leur nom (le nom de chaque bloc correspondant  la position du premier caractre lu dans le fichier d'entre)
-			this.filenames.sort(new Comparator<String>() {
-				public int compare(String o1, String o2) {
-					return (int) (extractLong(o1) - extractLong(o2));
-				}
-
-				private long extractLong(String s) {
-					String num = s.replaceAll("\\D", "");
-					return num.isEmpty() ? 0 : Long.parseLong(num);
-				}
-			});
 
-			// rcupration des paramtres utiles depuis la configuration et des clusterPoints depuis le cache
+			// récupération des paramètres utiles depuis la configuration et des clusterPoints depuis le cache
 			this.nbDimensions = conf.getInt("megaProject.args.nbDimensions", 2);
 			this.nbIterations = conf.getInt("megaProject.args.nbIterations", 1);
-			this.nbHierarchies = conf.getInt("megaProject.args.nbHierarchies", 1);
+			this.nbClusters = conf.getInt("megaProject.args.nbClusters", 10);
 			ClusterPointWritable.setRealNbClusters(conf.getInt("megaProject.args.realNbClusters", 5));
 			ClusterPointWritable.setNbDimensions(this.nbDimensions);
 			ClusterPointWritable.setNbIterations(this.nbIterations);
-			this.clusterPoints = getClusterPointsFromCache(context.getCacheFiles()[0], conf, conf.getInt("megaProject.args.nbClusters", 10));
+			ClusterPointWritable.setEncoding(WireEncoding.get(conf));
+			this.clusterPoints = getClusterPointsFromCache(context.getCacheFiles()[0], conf, this.nbClusters);
 		}
 
 		@Override
-		public void reduce(Text key, Iterable<PointXDWritable> values, Context context) throws IOException, InterruptedException {
+		public void reduce(LongWritable key, Iterable<PointXDWritable> values, Context context) throws IOException, InterruptedException {
 			
-			// calcul d'un nouveau clusterPoint  l'aide de la liste des points  proxmit
+			// calcul d'un nouveau clusterPoint à l'aide de la liste des points à proxmité
 			this.coords = new double[this.nbDimensions];
 			this.nbPoints = 0;
 			for(PointXDWritable point : values) {
 				for(int i = 0; i < this.nbDimensions; ++i)
 					this.coords[i] += point.coords[i];
-				this.nbPoints++;
+				this.nbPoints += point.getPointsCounter();
 			}
 			for(int i = 0; i < this.nbDimensions; ++i)
 				this.coords[i] /= this.nbPoints;
-			this.newCenter = new ClusterPointWritable(this.coords, ClusterPointWritable.lineToIndexes(key.toString()));
+			this.newCenter = new ClusterPointWritable(this.coords, ClusterPointWritable.pathIdToIndexes(key.get(), this.nbIterations, this.nbClusters));
+			context.getCounter("megaProject.counters", "nonEmptyClusters").increment(1);
 
-			// si un clusterPoint a chang alors on incrmente le compteur de clusterPoints
+			// si un clusterPoint a changé alors on incrémente le compteur de clusterPoints
 			String strKey = ClusterPointWritable.indexesToKey(this.newCenter.getIndexes());
 			int lastIndex = this.newCenter.getLastIndex();
 			if(!this.newCenter.equals(this.clusterPoints.get(strKey).get(lastIndex))) {
@@ -208,31 +537,54 @@ public class Main {
 		@Override
 		public void cleanup(Context context) throws IOException, InterruptedException {
 			
-			// criture des nouveaux clusterPoints obtenus dans le fichier cache et concatnation des fichiers blocs
+			// écriture des nouveaux clusterPoints obtenus dans le fichier cache
 			writeClusterPointsIntoCache(context.getCacheFiles()[0], context.getConfiguration(), this.clusterPoints);
-			this.concatFiles();
 		}
 	}
 
-	// cre un nouveau job en lui paramtrant les diffrents fichiers  utiliser
-	private static Job setJobConfiguration(Configuration conf, FileSystem fs, Path distribPath, Path inputPath, Path outputPath) throws IOException {
+	// coordonnées de tous les clusterPoints de la table de hachage, dans l'ordre des clés
+	private static double[][] toCoordsArray(Map<String, ArrayList<ClusterPointWritable>> clusterPoints) {
+		List<ClusterPointWritable> list = new ArrayList<ClusterPointWritable>();
+		for(ArrayList<ClusterPointWritable> arr : clusterPoints.values())
+			list.addAll(arr);
+		return ClusterPointWritable.toCoordsArray(list);
+	}
+
+	// crée un nouveau job en lui paramétrant les différents fichiers à utiliser
+	// le premier niveau lit les lignes du fichier d'entrée, les suivants les points projetés écrits par le niveau précédent
+	// les sorties des mappers sont écrites dans outputPath, compressées si elles ne sont relues que par le niveau suivant
+	private static Job setJobConfiguration(Configuration conf, FileSystem fs, Path distribPath, Path inputPath, Path outputPath, boolean compressOutput) throws IOException {
 		Job job = Job.getInstance(conf, "MegaProjectOfTheKillingDeath");
 
 		job.addCacheFile(distribPath.toUri());
 
 		job.setNumReduceTasks(1);
+
+		// en mode multi-thread, chaque tâche map réserve autant de coeurs que de threads
+		if(conf.getInt("megaProject.options.mapThreads", 1) > 1)
+			job.getConfiguration().setInt("mapreduce.map.cpu.vcores", conf.getInt("megaProject.options.mapThreads", 1));
 		job.setJarByClass(Main.class);
 
-		job.setMapperClass(HierarchicMapper.class);
-		job.setMapOutputKeyClass(Text.class);
+		boolean firstLevel = conf.getInt("megaProject.args.nbIterations", 1) == 1;
+		job.setMapperClass(firstLevel ? HierarchicMapper.class : HierarchicProjectedMapper.class);
+		job.setMapOutputKeyClass(LongWritable.class);
 		job.setMapOutputValueClass(PointXDWritable.class);
 
+		job.setSortComparatorClass(LongWritable.Comparator.class); // comparaison des clés sur leurs octets, sans désérialisation
+		job.setCombinerClass(HierarchicCombiner.class);
+
 		job.setReducerClass(HierarchicReducer.class);
 		job.setOutputKeyClass(PointXDWritable.class);
 		job.setOutputValueClass(Text.class);
 
-		job.setInputFormatClass(TextInputFormat.class);
-		job.setOutputFormatClass(TextOutputFormat.class);
+		job.setInputFormatClass(firstLevel ? TextInputFormat.class : ProjectedInputFormat.class);
+		LazyOutputFormat.setOutputFormatClass(job, TextOutputFormat.class); // le réducteur n'écrit rien en sortie : pas de fichier "part-r-*" vide
+		MultipleOutputs.addNamedOutput(job, ANNOTATED, TextOutputFormat.class, NullWritable.class, Text.class);
+		MultipleOutputs.addNamedOutput(job, PROJECTED, ProjectedOutputFormat.class, LongWritable.class, PointXDWritable.class);
+		if(compressOutput) {
+			FileOutputFormat.setCompressOutput(job, true);
+			FileOutputFormat.setOutputCompressorClass(job, DefaultCodec.class);
+		}
 
 		FileInputFormat.addInputPath(job, inputPath);
 
@@ -243,101 +595,257 @@ public class Main {
 		return job;
 	}
 
-	public static void main(String[] args) throws Exception {
-		Configuration conf = new Configuration();
+	// fichiers de points projetés d'un répertoire intermédiaire ou d'une passe, dans l'ordre des passes puis des tâches map
+	private static Path projectedFiles(Path resultPath) {
+		return new Path(resultPath, PROJECTED + "-*");
+	}
+
+	// déplace les fichiers "nom-m-*" d'une passe dans le répertoire du niveau, "suffix" est inséré avant "-m-" pour ne pas écraser ceux d'une autre passe
+	private static void moveOutputFiles(FileSystem fs, Path fromPath, Path toPath, String suffix) throws IOException {
+		FileStatus[] statuses = fs.globStatus(new Path(fromPath, "*-m-*"));
+		if(statuses == null)
+			return;
+		String name;
+		int index;
+		for(FileStatus status : statuses) {
+			name = status.getPath().getName();
+			index = name.indexOf("-m-");
+			fs.rename(status.getPath(), new Path(toPath, name.substring(0, index) + suffix + name.substring(index)));
+		}
+	}
+
+	// clés des listes de clusterPoints frères dont aucun clusterPoint n'a été remplacé par le réducteur pendant une passe
+	// leurs points seront affectés aux mêmes clusterPoints à la passe suivante, qui donnera donc les mêmes centres : la liste est figée
+	private static List<String> unchangedBranches(Map<String, ArrayList<ClusterPointWritable>> previousClusterPoints, Map<String, ArrayList<ClusterPointWritable>> clusterPoints) {
+		List<String> branches = new ArrayList<String>();
+		ArrayList<ClusterPointWritable> previous;
+		boolean changed;
+		for(Map.Entry<String, ArrayList<ClusterPointWritable>> entry : clusterPoints.entrySet()) {
+			previous = previousClusterPoints.get(entry.getKey());
+			changed = previous == null || previous.size() != entry.getValue().size();
+			for(int i = 0; !changed && i < previous.size(); ++i)
+				changed = !Arrays.equals(previous.get(i).coords, entry.getValue().get(i).coords);
+			if(!changed)
+				branches.add(entry.getKey());
+		}
+		return branches;
+	}
+
+	// lecteurs des fichiers de points projetés d'un répertoire intermédiaire, décompressés si besoin
+	private static List<ProjectedFile.Reader> openProjectedFiles(Configuration conf, FileSystem fs, Path resultPath) throws IOException {
+		FileStatus[] statuses = fs.globStatus(projectedFiles(resultPath));
+		Arrays.sort(statuses);
+		CompressionCodecFactory codecs = new CompressionCodecFactory(conf);
+		List<ProjectedFile.Reader> readers = new ArrayList<ProjectedFile.Reader>();
+		CompressionCodec codec;
+		for(FileStatus status : statuses) {
+			codec = codecs.getCodec(status.getPath());
+			readers.add(new ProjectedFile.Reader(codec == null ? fs.open(status.getPath()) : codec.createInputStream(fs.open(status.getPath()))));
+		}
+		return readers;
+	}
+
+	// lance l'algorithme complet avec la configuration donnée et retourne le code de sortie du programme
+	public static int run(Configuration conf, String[] args) throws Exception {
 		FileSystem fs = FileSystem.get(conf);
+		args = Options.parse(conf, args);
+		WireEncoding.record(conf);
 		if(args.length < 5) {
-			System.out.println("Usage : <command> <inputFile> <outputFile> <nbClusters> <nbHierarchies> <position1> ... <positionN>");
-			System.exit(0);
+			System.out.println("Usage : <command> [--centroidIndex] [--batchKernel [--batchSize=N]] [--mapThreads=N] [--metrics=file.json|file.csv] [--encoding=double|float|fixed [--fixedScale=X]] [--varintCounters] [--snapshots=dir] [--resume] <inputFile> <outputDir> <nbClusters> <nbHierarchies> <position1> ... <positionN>");
+			return 0;
 		}
 
+		// le noyau par blocs remplace la recherche du plus proche : il ne se combine pas avec l'index,
+		// et ses blocs restent dans le thread de la tâche (pas de répartition avec "--mapThreads")
+		if(conf.getBoolean("megaProject.options.batchKernel", false) && conf.getBoolean("megaProject.options.centroidIndex", false))
+			throw new IllegalArgumentException("--batchKernel cannot be combined with --centroidIndex");
+		if(conf.getBoolean("megaProject.options.batchKernel", false) && conf.getInt("megaProject.options.mapThreads", 1) != 1)
+			throw new IllegalArgumentException("--batchKernel cannot be combined with --mapThreads");
+
 		int nbClusters = Integer.parseInt(args[2]);
 		int nbHierarchies = Integer.parseInt(args[3]);
 		int nbDimensions = args.length - 4;
 		int nbIterations = 1;
+
+		// le chemin d'indices d'un point projeté est codé en base nbClusters dans un long (voir ClusterPointWritable.pathId)
+		if(nbHierarchies * Math.log(nbClusters) >= 63 * Math.log(2))
+			throw new IllegalArgumentException(nbHierarchies + " hierarchies of " + nbClusters + " clusters do not fit in a 64-bit path id");
 		
-		// rcupration des positions des coordonnes dans une ligne du fichier d'entre et ajout dans la configuration
+		// récupération des positions des coordonnées dans une ligne du fichier d'entrée et ajout dans la configuration
 		int[] positions = new int[nbDimensions];
 		for(int i = 4; i < args.length; ++i) {
 			positions[i - 4] = Integer.valueOf(args[i]);
 			conf.setInt("megaProject.args.position" + (i - 4), positions[i - 4]);
 		}
 		
-		// mise en place dans la configuration et dans notre classe statique des paramtres utiles
+		// mise en place dans la configuration et dans notre classe statique des paramètres utiles
 		conf.setInt("megaProject.args.nbClusters", nbClusters);
 		conf.setInt("megaProject.args.nbDimensions", nbDimensions);
 		conf.setInt("megaProject.args.nbHierarchies", nbHierarchies);
+		conf.setBoolean("megaProject.args.skipFirstLine", new Path(args[0]).getName().equals("worldcitiespop.txt"));
 		conf.setInt("megaProject.args.nbIterations", nbIterations);
-		conf.set("megaProject.args.outputFile", args[1]);
 		ClusterPointWritable.setNbIterations(nbIterations);
 		ClusterPointWritable.setNbDimensions(nbDimensions);
 
-		Path inputPath = new Path(args[0]); // fichier d'entre
-		Path outputPath = new Path(args[1]); // fichier de sortie
-		Path distribPath = new Path("distributedCache"); // fichier cache distribue
-		Path resultPathEven = new Path("resultEven"); // premier fichier intermdiaire
-		Path resultPathUneven = new Path("resultUneven"); // second fichier intermdiaire
+		Path inputPath = new Path(args[0]); // fichier d'entrée
+		conf.set("megaProject.args.inputFile", fs.makeQualified(inputPath).toString()); // relu au dernier niveau pour écrire les lignes d'origine
+		Path outputPath = new Path(args[1]); // répertoire de sortie
+		Path distribPath = new Path("distributedCache"); // fichier cache distribuée
+		Path resultPathEven = new Path("resultEven"); // premier répertoire intermédiaire
+		Path resultPathUneven = new Path("resultUneven"); // second répertoire intermédiaire
+		Path snapshotsPath = new Path(conf.get("megaProject.options.snapshots", "snapshots")); // instantanés des clusterPoints
+
+		// avec "--resume", on repart du dernier instantané valide si le répertoire intermédiaire lu par son niveau existe encore
+		Map<String, ArrayList<ClusterPointWritable>> clusterPoints;
+		int firstIteration = 0;
+		CentroidSnapshot snapshot = conf.getBoolean("megaProject.options.resume", false) ? CentroidSnapshot.findLatest(fs, snapshotsPath, nbDimensions) : null;
+		if(snapshot != null && snapshot.level >= 1 && snapshot.level <= nbHierarchies && (snapshot.level == 1 || fs.exists(snapshot.level % 2 == 1 ? resultPathUneven : resultPathEven))) {
+			nbIterations = snapshot.level;
+			firstIteration = snapshot.iteration;
+			conf.setInt("megaProject.args.nbIterations", nbIterations);
+			ClusterPointWritable.setNbIterations(nbIterations);
+			clusterPoints = ClusterPointWritable.fromSnapshot(snapshot, nbClusters);
+			ClusterPointWritable.setRealNbClusters(snapshot.getNbCentroids());
+			System.out.println("Resuming from hierarchic iteration " + nbIterations + ", stabilisation iteration " + firstIteration);
+		}
+		else {
+			if(conf.getBoolean("megaProject.options.resume", false))
+				System.out.println("No valid snapshot in " + snapshotsPath + ", starting over");
+			fs.delete(snapshotsPath, true);
+
+			// initialisation des clusterPoints depuis le fichier d'entrée
+			clusterPoints = ClusterPointWritable.initiateClusterPoints(fs.open(inputPath), nbClusters, positions);
+		}
 
-		// initialisation des clusterPoints depuis le fichier d'entre et criture dans le cache
-		Map<String, ArrayList<ClusterPointWritable>> clusterPoints = ClusterPointWritable.initiateClusterPoints(fs.open(inputPath), nbClusters, positions);
+		// écriture des clusterPoints dans le cache
 		conf.setInt("megaProject.args.realNbClusters", ClusterPointWritable.getRealNbClusters());
+		conf.setInt("megaProject.args.iteration", firstIteration);
 		writeClusterPointsIntoCache(distribPath.toUri(), conf, clusterPoints);
+		saveSnapshot(conf, fs, distribPath, snapshotsPath, nbIterations, firstIteration);
 
-		boolean hasFailed = false;
+		boolean succeeded = true;
 		int clusterPointsChanged = 2;
 		Job job;
 		long beginTime = new Date().getTime();
 
-		// boucle de construction hirarchique
+		// chronologie des mesures de chaque itération de stabilisation, réécrite après chaque job
+		Timeline timeline = conf.get("megaProject.options.metrics") != null ? new Timeline(fs, new Path(conf.get("megaProject.options.metrics"))) : null;
+		int stabilisationIteration;
+		long jobStartTime;
+
+		// boucle de construction hiérarchique
 		while(nbIterations - 1 < nbHierarchies) {
 			conf.setInt("megaProject.args.clusterPointsChanged", 2);
 			System.out.println("BEGIN OF HIERARCHIC ITERATION NUMBER " + nbIterations);
 			
+			// au dernier niveau on écrit dans le répertoire de sortie, sinon dans le répertoire intermédiaire que lira le niveau suivant
+			// chaque passe écrit dans un sous-répertoire "_pass0" ou "_pass1", la passe suivante relit les points encore actifs dans ce sous-répertoire
+			Path resultPath = nbIterations == nbHierarchies ? outputPath : nbIterations % 2 == 1 ? resultPathEven : resultPathUneven;
+			Path passPath = null;
+			Path passInputPath;
+			if(nbIterations == 1) // au premier niveau on lit depuis le fichier d'entrée
+				passInputPath = inputPath;
+			else if(nbIterations % 2 == 1) // on lit depuis le second répertoire intermédiaire et on écrit dans le premier
+				passInputPath = projectedFiles(resultPathUneven);
+			else // on lit depuis le premier répertoire intermédiaire et on écrit dans le second
+				passInputPath = projectedFiles(resultPathEven);
+			fs.delete(resultPath, true);
+
+			// listes de clusterPoints frères figées (par leur clé), celles qui viennent de l'être et dont les points sont écrits une dernière fois
+			Set<String> frozenBranches = new HashSet<String>();
+			List<String> newlyFrozenBranches = new ArrayList<String>();
+			List<String> frozenPathIds = new ArrayList<String>();
+			double frozenSse = 0; // somme des carrés des distances des points qui ne sont plus relus
+			Map<String, ArrayList<ClusterPointWritable>> previousClusterPoints;
+
 			// boucle de stabilisation des clusterPoints
+			stabilisationIteration = firstIteration;
+			firstIteration = 0;
 			while(clusterPointsChanged > 0) {
-				System.out.println("BEGIN OF STABILISATION ITERATION, CLUSTER POINTS CHANGED = " + clusterPointsChanged);
-				if(nbIterations == 1) { //  la premire itration on lit depuis le fichier d'entre
-					conf.set("megaProject.args.resultFile", "resultEven");
-					job = setJobConfiguration(conf, fs, distribPath, inputPath, outputPath);					
-				}
-				else {
-					if(nbIterations % 2 == 1) { // on lit depuis le second fichier intermdiaire et on crit dans le premier
-						conf.set("megaProject.args.resultFile", "resultEven");
-						job = setJobConfiguration(conf, fs, distribPath, resultPathUneven, outputPath);
-					}
-					else { // on lit depuis le premier fichier intermdiaire et on crit dans le second
-						conf.set("megaProject.args.resultFile", "resultUneven");
-						job = setJobConfiguration(conf, fs, distribPath, resultPathEven, outputPath);
-					}
-				}
-				hasFailed = job.waitForCompletion(true);
+				System.out.println("BEGIN OF STABILISATION ITERATION, CLUSTER POINTS CHANGED = " + clusterPointsChanged + ", FROZEN BRANCHES = " + frozenBranches.size());
+				passPath = new Path(resultPath, "_pass" + stabilisationIteration % 2);
+				previousClusterPoints = getClusterPointsFromCache(distribPath.toUri(), conf, nbClusters);
+				frozenPathIds.clear();
+				for(String branch : newlyFrozenBranches)
+					frozenPathIds.add(String.valueOf(ClusterPointWritable.pathId(previousClusterPoints.get(branch).get(0).getIndexes(), nbClusters) / nbClusters));
+				conf.setStrings("megaProject.args.frozenBranches", frozenPathIds.toArray(new String[frozenPathIds.size()]));
+				conf.setInt("megaProject.args.iteration", stabilisationIteration + 1); // itération inscrite par le réducteur dans le cache : à fixer avant que le job copie la configuration
+				job = setJobConfiguration(conf, fs, distribPath, passInputPath, passPath, resultPath != outputPath);
+				jobStartTime = new Date().getTime();
+				succeeded = job.waitForCompletion(true);
 				
-				// rcupration du nombre de clusterPoints modifis et affichage de la diffrence entre les anciens clusterPoints et les nouveaux
+				// récupération du nombre de clusterPoints modifiés et affichage de la différence entre les anciens clusterPoints et les nouveaux
 				clusterPointsChanged = (int) job.getCounters().findCounter("megaProject.counters", "clusterPointsChanged").getValue();
 				conf.setInt("megaProject.args.clusterPointsChanged", clusterPointsChanged);
+				clusterPoints = getClusterPointsFromCache(distribPath.toUri(), conf, nbClusters);
+
+				if(timeline != null) {
+					int frozenClusterPoints = 0;
+					for(String branch : frozenBranches)
+						frozenClusterPoints += clusterPoints.get(branch).size();
+					Map<String, Object> row = timeline.newRow();
+					row.put("level", nbIterations);
+					row.put("iteration", stabilisationIteration);
+					row.put("timeMs", new Date().getTime() - jobStartTime);
+					Timeline.addCounters(row, job.getCounters());
+					Timeline.addDrift(row, toCoordsArray(previousClusterPoints), toCoordsArray(clusterPoints));
+					row.put("emptyClusters", ClusterPointWritable.getRealNbClusters() - frozenClusterPoints - job.getCounters().findCounter("megaProject.counters", "nonEmptyClusters").getValue()); // parmi les listes actives
+					row.put("frozenBranches", frozenBranches.size());
+					row.put("frozenSse", frozenSse);
+					timeline.write();
+				}
+
+				// les sorties des points des listes figées sont définitives, les listes restées identiques sont figées pour la passe suivante
+				moveOutputFiles(fs, new Path(passPath, FROZEN), resultPath, "-" + stabilisationIteration);
+				frozenSse += job.getCounters().findCounter("megaProject.counters", "frozenSse").getValue() / Timeline.SSE_SCALE;
+				newlyFrozenBranches = unchangedBranches(previousClusterPoints, clusterPoints);
+				newlyFrozenBranches.removeAll(frozenBranches);
+				frozenBranches.addAll(newlyFrozenBranches);
+				if(nbIterations > 1)
+					passInputPath = projectedFiles(passPath);
+
+				stabilisationIteration++;
+				saveSnapshot(conf, fs, distribPath, snapshotsPath, nbIterations, stabilisationIteration);
 				
 				System.out.println("END OF STABILISATION ITERATION");
 			}
+
+			// les sorties de la dernière passe sont définitives pour les points encore actifs
+			moveOutputFiles(fs, passPath, resultPath, "");
+			fs.delete(new Path(resultPath, "_pass0"), true);
+			fs.delete(new Path(resultPath, "_pass1"), true);
+			if(resultPath == outputPath) // au dernier niveau, les points projetés ne servaient qu'aux passes
+				for(FileStatus status : fs.globStatus(projectedFiles(resultPath)))
+					fs.delete(status.getPath(), false);
 			System.out.println("END OF HIERARCHIC ITERATION NUMBER " + nbIterations);
 			
-			// mise  jour du nombre d'itrations dans notre classe statique et dans la configuration
+			// mise à jour du nombre d'itérations dans notre classe statique et dans la configuration
 			nbIterations++;
 			ClusterPointWritable.setNbIterations(nbIterations);
 			conf.setInt("megaProject.args.nbIterations", nbIterations);
 
-			// rcupration des nouveaux clusterPoints depuis le fichier intermdiaire de stabilisation et criture dans le fichier cache
+			// récupération des nouveaux clusterPoints depuis le répertoire intermédiaire de stabilisation et écriture dans le fichier cache
 			if(nbIterations - 1 != nbHierarchies) {
-				clusterPoints = ClusterPointWritable.initiateClusterPoints(fs.open(nbIterations % 2 == 1 ? resultPathUneven : resultPathEven), nbClusters, positions);
+				List<ProjectedFile.Reader> readers = openProjectedFiles(conf, fs, nbIterations % 2 == 1 ? resultPathUneven : resultPathEven);
+				clusterPoints = ClusterPointWritable.initiateClusterPoints(readers, nbClusters);
+				for(ProjectedFile.Reader reader : readers)
+					reader.close();
 				conf.setInt("megaProject.args.realNbClusters", ClusterPointWritable.getRealNbClusters());
+				conf.setInt("megaProject.args.iteration", 0);
 				writeClusterPointsIntoCache(distribPath.toUri(), conf, clusterPoints);
+				saveSnapshot(conf, fs, distribPath, snapshotsPath, nbIterations, 0);
 				clusterPointsChanged = 2;
 			}
 		}
 		
-		// suppression des fichiers intermdiaires et affichage du temps d'excution
+		// suppression des répertoires intermédiaires et affichage du temps d'exécution
 		fs.delete(resultPathUneven, true);
 		fs.delete(resultPathEven, true);
 		System.out.println("Execution time : " + (float) ((new Date().getTime() - beginTime) / 1000) + " seconds.");
-		System.exit(hasFailed ? 1 : 0);
+		return succeeded ? 0 : 1;
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.exit(run(new Configuration(), args));
 	}
 }
\ No newline at end of file
@@ -4,19 +4,33 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 
+import common.TextCoordsParser;
+import common.WireEncoding;
+
 public class PointXDWritable implements Writable {
 	protected static int nbDimensions;
+	protected static WireEncoding encoding = WireEncoding.DEFAULT;
 	
 	protected double[] coords;
+	private int pointsCounter; // nombre de points dont les coordonnées sont la somme (1 pour un point seul, plus après le combiner)
+	private long sourceOffset; // offset de la ligne du fichier d'entrée dont vient le point, gardé dans les fichiers de points projetés mais pas envoyé au réducteur
 	
 	public PointXDWritable() {
 		this.coords = new double[nbDimensions];
+		this.pointsCounter = 1;
 	}
 	
 	public PointXDWritable(double[] coords) {
 		this.coords = coords;
+		this.pointsCounter = 1;
+	}
+	
+	public PointXDWritable(double[] coords, int count) {
+		this.coords = coords;
+		this.pointsCounter = count;
 	}
 	
 	public PointXDWritable(String line, int nbIterations, int[] positions) {
@@ -26,14 +40,61 @@ public class PointXDWritable implements Writable {
 			this.coords[i] = Double.parseDouble(strCoords[positions[i]]);
 	}
 
+	// relit les coordonnées du point depuis une ligne sans allouer de nouvel objet, retourne false si la ligne est incomplète
+	public boolean set(Text line, int nbIterations, int[] positions) {
+		this.pointsCounter = 1;
+		return TextCoordsParser.parse(line, positions, this.coords, nbIterations == 1 ? -1 : ':');
+	}
+
+	public int getPointsCounter() {
+		return this.pointsCounter;
+	}
+
+	public long getSourceOffset() {
+		return this.sourceOffset;
+	}
+
+	public void setSourceOffset(long sourceOffset) {
+		this.sourceOffset = sourceOffset;
+	}
+
+	// avec un encodage compact, le compteur est écrit en premier et vaut -1 pour un point seul dont les coordonnées sont compactes
+	// (en virgule fixe, elles doivent tenir dans un entier 32 bits), les points agrégés par le combiner restent toujours en doubles
 	public void write(DataOutput out) throws IOException {
-		for(double coord : this.coords)
-			out.writeDouble(coord);
+		if(encoding.isDefault()) {
+			for(double coord : this.coords)
+				out.writeDouble(coord);
+			out.writeInt(this.pointsCounter);
+			return;
+		}
+
+		boolean compact = this.pointsCounter == 1 && encoding.isCompactable(this.coords);
+		encoding.writeCounter(out, compact ? -1 : this.pointsCounter);
+		if(compact)
+			encoding.writeCompactCoords(out, this.coords);
+		else
+			for(double coord : this.coords)
+				out.writeDouble(coord);
 	}
 	
 	public void readFields(DataInput in) throws IOException {
-		for(int i = 0; i < nbDimensions; ++i)
-			this.coords[i] = in.readDouble();
+		if(encoding.isDefault()) {
+			for(int i = 0; i < nbDimensions; ++i)
+				this.coords[i] = in.readDouble();
+			this.pointsCounter = in.readInt();
+			return;
+		}
+
+		int counter = encoding.readCounter(in);
+		if(counter == -1) {
+			encoding.readCompactCoords(in, this.coords, nbDimensions);
+			this.pointsCounter = 1;
+		}
+		else {
+			for(int i = 0; i < nbDimensions; ++i)
+				this.coords[i] = in.readDouble();
+			this.pointsCounter = counter;
+		}
 	}
 	
 	public double distance(PointXDWritable point) {
@@ -46,4 +107,8 @@ public class PointXDWritable implements Writable {
 	protected static void setNbDimensions(int nbDim) {
 		nbDimensions = nbDim;
 	}
+
+	protected static void setEncoding(WireEncoding wireEncoding) {
+		encoding = wireEncoding;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,93 @@
+package hierarchic;
+
+import java.io.BufferedInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+// format binaire des points passés d'un niveau hiérarchique au suivant : un en-tête puis, pour chaque point,
+// ses coordonnées projetées (doubles), l'identifiant du chemin d'indices de son clusterPoint (voir ClusterPointWritable.pathId)
+// et l'offset de sa ligne dans le fichier d'entrée, qui permet au dernier niveau d'écrire la ligne d'origine
+// chaque point a la même taille, un bloc non compressé peut donc être lu à partir de n'importe quel point
+public class ProjectedFile {
+	public static final int MAGIC = 0x48505031;
+	public static final int HEADER_SIZE = 16;
+
+	public static class Header {
+		public final int nbDimensions;
+		public final int pathLength; // nombre d'indices des chemins
+		public final int nbClusters; // base de l'identifiant des chemins
+
+		public Header(int nbDimensions, int pathLength, int nbClusters) {
+			this.nbDimensions = nbDimensions;
+			this.pathLength = pathLength;
+			this.nbClusters = nbClusters;
+		}
+
+		public int getRecordSize() {
+			return 8 * this.nbDimensions + 16;
+		}
+	}
+
+	public static Header readHeader(DataInput in) throws IOException {
+		if(in.readInt() != MAGIC)
+			throw new IOException("not a projected points file");
+		return new Header(in.readInt(), in.readInt(), in.readInt());
+	}
+
+	public static void writeHeader(DataOutput out, Header header) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(header.nbDimensions);
+		out.writeInt(header.pathLength);
+		out.writeInt(header.nbClusters);
+	}
+
+	public static void writeRecord(DataOutput out, double[] coords, long pathId, long sourceOffset) throws IOException {
+		for(double coord : coords)
+			out.writeDouble(coord);
+		out.writeLong(pathId);
+		out.writeLong(sourceOffset);
+	}
+
+	// lecture séquentielle d'un fichier complet (déjà décompressé), utilisée hors de MapReduce
+	public static class Reader {
+		private final DataInputStream in;
+		private final Header header;
+		private long pathId;
+
+		public Reader(InputStream is) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(is, 1 << 16));
+			this.header = readHeader(this.in);
+		}
+
+		public Header getHeader() {
+			return this.header;
+		}
+
+		public long getPathId() {
+			return this.pathId;
+		}
+
+		// lit le point suivant dans coords, retourne false à la fin du fichier
+		public boolean next(double[] coords) throws IOException {
+			try {
+				coords[0] = this.in.readDouble();
+			}
+			catch(EOFException e) {
+				return false;
+			}
+			for(int i = 1; i < this.header.nbDimensions; ++i)
+				coords[i] = this.in.readDouble();
+			this.pathId = this.in.readLong();
+			this.in.readLong(); // offset de la ligne d'origine, inutile hors des mappers
+			return true;
+		}
+
+		public void close() throws IOException {
+			this.in.close();
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package hierarchic;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import common.FixedRecordInputFormat;
+
+// lit les fichiers de points projetés (voir ProjectedFile), la clé est l'identifiant du chemin du parent et la valeur le point déjà décodé
+// un fichier écrit par le niveau précédent contient déjà ces chemins, un fichier écrit par une passe du niveau courant contient le chemin
+// complet du clusterPoint de chaque point, dont on retire le dernier indice
+// le découpage en blocs est celui de FixedRecordInputFormat, un fichier compressé est lu en entier
+public class ProjectedInputFormat extends FixedRecordInputFormat<PointXDWritable> {
+
+	@Override
+	public RecordReader<LongWritable, PointXDWritable> createRecordReader(InputSplit split, TaskAttemptContext context) {
+		return new ProjectedRecordReader();
+	}
+
+	public static class ProjectedRecordReader extends FixedRecordReader<PointXDWritable> {
+		private ProjectedFile.Header header;
+		private long pathDivisor; // 1 pour un fichier du niveau précédent, nbClusters pour un fichier d'une passe du niveau courant
+
+		public ProjectedRecordReader() {
+			super(ProjectedFile.HEADER_SIZE);
+		}
+
+		@Override
+		protected int readHeader(DataInput in, Path path, Configuration conf) throws IOException {
+			this.header = ProjectedFile.readHeader(in);
+			int pathLength = conf.getInt("megaProject.args.nbIterations", 1) - 1;
+			if(this.header.pathLength == pathLength)
+				this.pathDivisor = 1;
+			else if(this.header.pathLength == pathLength + 1)
+				this.pathDivisor = this.header.nbClusters;
+			else
+				throw new IOException(path + " holds paths of " + this.header.pathLength + " indexes, " + pathLength + " or " + (pathLength + 1) + " expected");
+			this.value = new PointXDWritable(new double[this.header.nbDimensions]);
+			return this.header.getRecordSize();
+		}
+
+		@Override
+		protected void readRecord(DataInput in, long index) throws IOException {
+			for(int i = 0; i < this.header.nbDimensions; ++i)
+				this.value.coords[i] = in.readDouble();
+			this.key.set(in.readLong() / this.pathDivisor);
+			this.value.setSourceOffset(in.readLong());
+		}
+	}
+}
@@ -0,0 +1,46 @@
+package hierarchic;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+
+// écrit les points reçus dans un fichier binaire par tâche (voir ProjectedFile), la clé est l'identifiant du chemin de leur clusterPoint
+// le fichier est compressé si la sortie du job l'est, il n'est alors plus découpé en blocs à la lecture
+public class ProjectedOutputFormat extends FileOutputFormat<LongWritable, PointXDWritable> {
+
+	@Override
+	public RecordWriter<LongWritable, PointXDWritable> getRecordWriter(TaskAttemptContext context) throws IOException {
+		Configuration conf = context.getConfiguration();
+		CompressionCodec codec = null;
+		if(getCompressOutput(context))
+			codec = ReflectionUtils.newInstance(getOutputCompressorClass(context, DefaultCodec.class), conf);
+		Path path = this.getDefaultWorkFile(context, ".projected" + (codec == null ? "" : codec.getDefaultExtension()));
+		OutputStream os = path.getFileSystem(conf).create(path, false);
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(codec == null ? os : codec.createOutputStream(os), 1 << 16));
+		ProjectedFile.writeHeader(out, new ProjectedFile.Header(conf.getInt("megaProject.args.nbDimensions", 2), conf.getInt("megaProject.args.nbIterations", 1), conf.getInt("megaProject.args.nbClusters", 10)));
+
+		return new RecordWriter<LongWritable, PointXDWritable>() {
+
+			@Override
+			public void write(LongWritable key, PointXDWritable value) throws IOException {
+				ProjectedFile.writeRecord(out, value.coords, key.get(), value.getSourceOffset());
+			}
+
+			@Override
+			public void close(TaskAttemptContext context) throws IOException {
+				out.close();
+			}
+		};
+	}
+}
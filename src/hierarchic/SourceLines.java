@@ -0,0 +1,50 @@
+package hierarchic;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+// relecture des lignes du fichier d'entrée à partir de leur offset, pour écrire au dernier niveau la ligne d'origine de chaque point
+// un fichier de points projetés garde l'ordre du bloc du fichier d'entrée dont il vient : les offsets demandés par une tâche croissent
+// le plus souvent, les lignes sont alors lues à la suite et seul un saut en arrière ou lointain repositionne le flux
+public class SourceLines {
+	private static final int MAX_SKIP = 1 << 16; // au-delà, repositionner le flux coûte moins que lire les lignes sautées
+	private final FSDataInputStream in;
+	private LineReader reader;
+	private long position = -1; // offset de la prochaine ligne du lecteur, -1 avant la première lecture
+	private final Text line = new Text();
+
+	public SourceLines(Configuration conf, Path path) throws IOException {
+		this.in = path.getFileSystem(conf).open(path);
+	}
+
+	// ligne qui commence à l'offset "offset", le même objet est réutilisé d'un appel à l'autre
+	public Text get(long offset) throws IOException {
+		if(this.position == -1 || offset < this.position || offset - this.position > MAX_SKIP) {
+			this.in.seek(offset);
+			this.reader = new LineReader(this.in);
+			this.position = offset;
+		}
+		while(this.position < offset)
+			this.readLine(offset);
+		if(this.position != offset)
+			throw new IOException("no line starts at offset " + offset);
+		this.readLine(offset);
+		return this.line;
+	}
+
+	private void readLine(long offset) throws IOException {
+		int length = this.reader.readLine(this.line);
+		if(length == 0)
+			throw new IOException("no line starts at offset " + offset);
+		this.position += length;
+	}
+
+	public void close() throws IOException {
+		this.in.close();
+	}
+}
@@ -12,6 +12,8 @@ import java.io.OutputStreamWriter;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.io.IntWritable;
 
+import common.CentroidSnapshot;
+
 public class ClusterPointWritable extends PointXDWritable {
 	private static final double DELTA = 1;
 	protected int index;
@@ -36,13 +38,13 @@ public class ClusterPointWritable extends PointXDWritable {
 	@Override
 	public void readFields(DataInput in) throws IOException {
 		super.readFields(in);
-		this.index = in.readByte();
+		this.index = encoding.readCounter(in);
 	}
 
 	@Override
 	public void write(DataOutput out) throws IOException {
 		super.write(out);
-		out.writeByte(this.index);
+		encoding.writeCounter(out, this.index);
 	}
 	
 	@Override
@@ -141,6 +143,27 @@ public class ClusterPointWritable extends PointXDWritable {
 		return clusterPoints;
 	}
 	
+	public static ClusterPointWritable[] fromSnapshot(CentroidSnapshot snapshot) {
+		ClusterPointWritable[] clusterPoints = new ClusterPointWritable[snapshot.getNbCentroids()];
+		for(int i = 0; i < clusterPoints.length; ++i)
+			clusterPoints[i] = new ClusterPointWritable(snapshot.coords[i], snapshot.paths[i][0]);
+		return clusterPoints;
+	}
+	
+	public static CentroidSnapshot toSnapshot(ClusterPointWritable[] clusterPoints, int iteration) {
+		int[][] paths = new int[clusterPoints.length][];
+		for(int i = 0; i < clusterPoints.length; ++i)
+			paths[i] = new int[]{clusterPoints[i].index};
+		return new CentroidSnapshot(0, iteration, toCoordsArray(clusterPoints), paths);
+	}
+	
+	public static double[][] toCoordsArray(ClusterPointWritable[] clusterPoints) {
+		double[][] coords = new double[clusterPoints.length][];
+		for(int i = 0; i < clusterPoints.length; ++i)
+			coords[i] = clusterPoints[i].coords;
+		return coords;
+	}
+	
 	public static void displayClusterPoints(ClusterPointWritable[] clusterPoints) {
 		for(ClusterPointWritable point : clusterPoints)
 			System.out.println(point);
@@ -0,0 +1,207 @@
+package kmeans;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.TaskCounter;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+import common.Timeline;
+import common.WireEncoding;
+
+// job lance une seule fois avant les iterations, qui remplace les points du fichier texte par un ensemble reduit de points ponderes (voir PointsFile)
+// - "exact" : les points de coordonnees identiques sont fusionnes en un seul point de poids leur nombre, sans aucune perte
+// - "grid" : les points sont regroupes par cellule d'une grille de pas cellSize (en degres pour des latitudes/longitudes)
+//   et chaque cellule est remplacee par le barycentre de ses points, pondere par leur nombre
+// pour des clusterPoints quelconques, la somme des carres des distances sur les donnees completes est au plus celle de l'ensemble pondere
+// plus l'erreur de quantification (somme des carres des distances de chaque point au barycentre de sa cellule), donnee par le rapport
+public class Coreset {
+	public static final String EXACT = "exact";
+	public static final String GRID = "grid";
+
+	// la cle d'un point est sa cellule : ses coordonnees exactes (8 octets par dimension) ou les indices de sa cellule dans la grille
+	public static class CellMapper extends Mapper<LongWritable, Text, BytesWritable, PointXDWritable> {
+		private PointXDWritable currentPoint;
+		private int[] positions;
+		private boolean skipFirstLine;
+		private boolean grid;
+		private double cellSize;
+		private ByteBuffer cell;
+		private BytesWritable outputKey = new BytesWritable();
+		private double squaredNorms;
+
+		@Override
+		public void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+			int nbDimensions = conf.getInt("megaProject.args.nbDimensions", 2);
+			this.positions = new int[nbDimensions];
+			for(int i = 0; i < nbDimensions; ++i)
+				this.positions[i] = conf.getInt("megaProject.args.position" + i, 0);
+			PointXDWritable.setNbDimensions(nbDimensions);
+			PointXDWritable.setEncoding(WireEncoding.DEFAULT); // les sommes des cellules restent en doubles
+			this.currentPoint = new PointXDWritable();
+			this.skipFirstLine = conf.getBoolean("megaProject.args.skipFirstLine", false);
+			this.grid = conf.get("megaProject.options.coreset", EXACT).equals(GRID);
+			this.cellSize = conf.getDouble("megaProject.options.cellSize", 0.01);
+			this.cell = ByteBuffer.allocate(8 * nbDimensions);
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+			if((this.skipFirstLine && key.get() == 0) || !this.currentPoint.set(value, this.positions))
+				return;
+			this.cell.clear();
+			for(double coord : this.currentPoint.coords) {
+				if(this.grid)
+					this.cell.putLong((long) Math.floor(coord / this.cellSize));
+				else
+					this.cell.putDouble(coord + 0.0); // -0.0 et 0.0 tombent dans la meme cellule
+				this.squaredNorms += coord * coord;
+			}
+			this.outputKey.set(this.cell.array(), 0, this.cell.capacity());
+			context.write(this.outputKey, this.currentPoint);
+		}
+
+		@Override
+		public void cleanup(Context context) throws IOException, InterruptedException {
+			context.getCounter("megaProject.counters", "coresetSquaredNorms").increment(Math.round(this.squaredNorms * Timeline.SSE_SCALE));
+		}
+	}
+
+	// somme des coordonnees et nombre de points d'une cellule
+	public static class CellCombiner extends Reducer<BytesWritable, PointXDWritable, BytesWritable, PointXDWritable> {
+		private int nbDimensions;
+
+		@Override
+		public void setup(Context context) throws IOException, InterruptedException {
+			this.nbDimensions = context.getConfiguration().getInt("megaProject.args.nbDimensions", 2);
+			PointXDWritable.setNbDimensions(this.nbDimensions);
+			PointXDWritable.setEncoding(WireEncoding.DEFAULT);
+		}
+
+		@Override
+		public void reduce(BytesWritable key, Iterable<PointXDWritable> values, Context context) throws IOException, InterruptedException {
+			double[] coords = new double[this.nbDimensions];
+			int nbPoints = 0;
+			for(PointXDWritable point : values) {
+				for(int i = 0; i < this.nbDimensions; ++i)
+					coords[i] += point.coords[i];
+				nbPoints += point.getPointsCounter();
+			}
+			context.write(key, new PointXDWritable(coords, nbPoints));
+		}
+	}
+
+	// un point pondere par cellule : les coordonnees de la cle en mode "exact", le barycentre de la cellule en mode "grid"
+	public static class CellReducer extends Reducer<BytesWritable, PointXDWritable, NullWritable, PointXDWritable> {
+		private int nbDimensions;
+		private boolean grid;
+		private double cellSquaredNorms;
+
+		@Override
+		public void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+			this.nbDimensions = conf.getInt("megaProject.args.nbDimensions", 2);
+			PointXDWritable.setNbDimensions(this.nbDimensions);
+			PointXDWritable.setEncoding(WireEncoding.DEFAULT);
+			this.grid = conf.get("megaProject.options.coreset", EXACT).equals(GRID);
+		}
+
+		@Override
+		public void reduce(BytesWritable key, Iterable<PointXDWritable> values, Context context) throws IOException, InterruptedException {
+			double[] coords = new double[this.nbDimensions];
+			long nbPoints = 0;
+			for(PointXDWritable point : values) {
+				for(int i = 0; i < this.nbDimensions; ++i)
+					coords[i] += point.coords[i];
+				nbPoints += point.getPointsCounter();
+			}
+			if(this.grid)
+				for(int i = 0; i < this.nbDimensions; ++i)
+					coords[i] /= nbPoints;
+			else {
+				ByteBuffer cell = ByteBuffer.wrap(key.getBytes(), 0, key.getLength());
+				for(int i = 0; i < this.nbDimensions; ++i)
+					coords[i] = cell.getDouble();
+			}
+
+			// le poids d'un point est un entier : une cellule plus peuplee est decoupee en plusieurs points de memes coordonnees
+			for(long remaining = nbPoints; remaining > 0; remaining -= Integer.MAX_VALUE)
+				context.write(NullWritable.get(), new PointXDWritable(coords, (int) Math.min(remaining, Integer.MAX_VALUE)));
+			context.getCounter("megaProject.counters", "coresetPoints").increment((nbPoints + Integer.MAX_VALUE - 1) / Integer.MAX_VALUE);
+			for(double coord : coords)
+				this.cellSquaredNorms += nbPoints * coord * coord;
+		}
+
+		@Override
+		public void cleanup(Context context) throws IOException, InterruptedException {
+			context.getCounter("megaProject.counters", "coresetCellSquaredNorms").increment(Math.round(this.cellSquaredNorms * Timeline.SSE_SCALE));
+		}
+	}
+
+	// nombres de points avant et apres reduction et erreur de quantification
+	public static class Report {
+		public final long nbInputPoints;
+		public final long nbCoresetPoints;
+		public final double quantizationError;
+
+		public Report(long nbInputPoints, long nbCoresetPoints, double quantizationError) {
+			this.nbInputPoints = nbInputPoints;
+			this.nbCoresetPoints = nbCoresetPoints;
+			this.quantizationError = quantizationError;
+		}
+
+		@Override
+		public String toString() {
+			return "Coreset : " + this.nbInputPoints + " points -> " + this.nbCoresetPoints + " weighted points (" + (float) this.nbInputPoints / this.nbCoresetPoints + "x), quantization error = " + this.quantizationError + " (RMS displacement " + Math.sqrt(this.quantizationError / this.nbInputPoints) + ")";
+		}
+	}
+
+	// retourne le rapport, ou null si le job a echoue
+	public static Report run(Configuration conf, FileSystem fs, Path inputPath, Path outputPath) throws Exception {
+		String mode = conf.get("megaProject.options.coreset", EXACT);
+		if(!mode.equals(EXACT) && !mode.equals(GRID))
+			throw new IllegalArgumentException("unknown coreset mode : " + mode);
+
+		Job job = Job.getInstance(conf, "MegaProjectOfTheKillingDeath - coreset");
+		job.setJarByClass(Coreset.class);
+		job.setMapperClass(CellMapper.class);
+		job.setCombinerClass(CellCombiner.class);
+		job.setReducerClass(CellReducer.class);
+		job.setNumReduceTasks(conf.getInt("megaProject.options.reducers", 1));
+		job.setMapOutputKeyClass(BytesWritable.class);
+		job.setMapOutputValueClass(PointXDWritable.class);
+		job.setOutputKeyClass(NullWritable.class);
+		job.setOutputValueClass(PointXDWritable.class);
+		job.setInputFormatClass(TextInputFormat.class);
+		job.setOutputFormatClass(PointsOutputFormat.class);
+		PointsOutputFormat.setWeighted(job, true);
+
+		FileInputFormat.addInputPath(job, inputPath);
+		if(fs.exists(outputPath))
+			fs.delete(outputPath, true);
+		FileOutputFormat.setOutputPath(job, outputPath);
+		if(!job.waitForCompletion(true))
+			return null;
+
+		// somme des carres des distances au barycentre de chaque cellule : somme des |x|^2 moins la somme des n |barycentre|^2 (nulle en mode "exact")
+		Counters counters = job.getCounters();
+		double quantizationError = 0;
+		if(mode.equals(GRID))
+			quantizationError = Math.max(0, (counters.findCounter("megaProject.counters", "coresetSquaredNorms").getValue() - counters.findCounter("megaProject.counters", "coresetCellSquaredNorms").getValue()) / Timeline.SSE_SCALE);
+		return new Report(counters.findCounter(TaskCounter.MAP_OUTPUT_RECORDS).getValue(), counters.findCounter("megaProject.counters", "coresetPoints").getValue(), quantizationError);
+	}
+}
@@ -0,0 +1,154 @@
+package kmeans;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+// bornes de distance conservees d'une iteration a l'autre (methode de Hamerly) dans un fichier annexe par bloc d'entree
+// pour chaque point on garde son cluster, une borne superieure de la distance a ce cluster et une borne inferieure de la distance aux autres
+// le deplacement des clusterPoints entre deux iterations suffit a mettre a jour les bornes, la plupart des points n'ont alors plus besoin d'aucun calcul de distance
+public class DistanceBounds {
+	private static final int MAGIC = 0x4B4D4231;
+
+	private DataInputStream in;
+	private DataOutputStream out;
+	private double[] drifts;
+	private int maxDriftIndex;
+	private double maxDrift;
+	private double secondMaxDrift;
+	private long distanceEvaluations;
+	private long skippedPoints;
+	private double lastDistance;
+
+	// ouvre le fichier de bornes de l'iteration precedente (s'il existe et correspond a ce bloc) et cree celui de l'iteration courante
+	public DistanceBounds(Configuration conf, FileSplit split, ClusterPointWritable[] clusterPoints, ClusterPointWritable[] previousClusterPoints) throws IOException {
+		String name = split.getPath().getName() + "-" + split.getStart();
+		Path inputPath = new Path(conf.get("megaProject.bounds.input"), name);
+		Path outputPath = new Path(conf.get("megaProject.bounds.output"), name);
+		FileSystem fs = outputPath.getFileSystem(conf);
+
+		if(previousClusterPoints != null && previousClusterPoints.length == clusterPoints.length && fs.exists(inputPath)) {
+			this.in = new DataInputStream(new BufferedInputStream(fs.open(inputPath)));
+			if(this.in.readInt() != MAGIC || this.in.readLong() != split.getStart() || this.in.readLong() != split.getLength() || this.in.readInt() != clusterPoints.length) {
+				this.in.close();
+				this.in = null;
+			}
+			else
+				this.computeDrifts(clusterPoints, previousClusterPoints);
+		}
+
+		this.out = new DataOutputStream(new BufferedOutputStream(fs.create(outputPath, true)));
+		this.out.writeInt(MAGIC);
+		this.out.writeLong(split.getStart());
+		this.out.writeLong(split.getLength());
+		this.out.writeInt(clusterPoints.length);
+	}
+
+	private void computeDrifts(ClusterPointWritable[] clusterPoints, ClusterPointWritable[] previousClusterPoints) {
+		this.drifts = new double[clusterPoints.length];
+		this.maxDriftIndex = -1;
+		for(int i = 0; i < clusterPoints.length; ++i) {
+			this.drifts[i] = clusterPoints[i].distance(previousClusterPoints[i]);
+			if(this.drifts[i] > this.maxDrift) {
+				this.secondMaxDrift = this.maxDrift;
+				this.maxDrift = this.drifts[i];
+				this.maxDriftIndex = i;
+			}
+			else if(this.drifts[i] > this.secondMaxDrift)
+				this.secondMaxDrift = this.drifts[i];
+		}
+	}
+
+	// retourne l'indice du clusterPoint le plus proche du point et enregistre ses nouvelles bornes
+	// les points dont les bornes prouvent que le cluster ne peut pas changer ne demandent aucun calcul de distance
+	public int nearest(double[] coords, ClusterPointWritable[] clusterPoints) throws IOException {
+		int index = -1;
+		double upper = 0;
+		double lower = 0;
+
+		if(this.in != null) {
+			try {
+				index = this.in.readInt();
+				upper = this.in.readDouble() + this.drifts[index];
+				lower = this.in.readDouble() - (index == this.maxDriftIndex ? this.secondMaxDrift : this.maxDrift);
+			}
+			catch(EOFException e) { // fichier incomplet, les points suivants sont traites normalement
+				this.in.close();
+				this.in = null;
+				index = -1;
+			}
+		}
+
+		// la borne superieure est remplacee par la distance exacte au cluster courant : un seul calcul,
+		// qui suffit souvent a prouver que le cluster ne change pas et qui donne la contribution exacte du point a la SSE
+		if(index != -1) {
+			upper = distance(coords, clusterPoints[index].coords);
+			this.distanceEvaluations++;
+		}
+
+		if(index != -1 && upper <= lower)
+			this.skippedPoints++;
+		else {
+			// recherche complete du plus proche et du second plus proche
+			double minDistance = Double.MAX_VALUE;
+			double secondMinDistance = Double.MAX_VALUE;
+			double currentDistance;
+			for(int i = 0; i < clusterPoints.length; ++i) {
+				currentDistance = distance(coords, clusterPoints[i].coords);
+				if(currentDistance < minDistance) {
+					secondMinDistance = minDistance;
+					minDistance = currentDistance;
+					index = i;
+				}
+				else if(currentDistance < secondMinDistance)
+					secondMinDistance = currentDistance;
+			}
+			this.distanceEvaluations += clusterPoints.length;
+			upper = minDistance;
+			lower = secondMinDistance;
+		}
+
+		this.out.writeInt(index);
+		this.out.writeDouble(upper);
+		this.out.writeDouble(lower);
+		this.lastDistance = upper;
+		return index;
+	}
+
+	// distance exacte du dernier point a son clusterPoint
+	public double getLastDistance() {
+		return this.lastDistance;
+	}
+
+	public long getDistanceEvaluations() {
+		return this.distanceEvaluations;
+	}
+
+	public long getSkippedPoints() {
+		return this.skippedPoints;
+	}
+
+	public void close() throws IOException {
+		if(this.in != null)
+			this.in.close();
+		this.out.close();
+	}
+
+	private static double distance(double[] coords1, double[] coords2) {
+		double sum = 0;
+		double diff;
+		for(int i = 0; i < coords1.length; ++i) {
+			diff = coords1[i] - coords2[i];
+			sum += diff * diff;
+		}
+		return Math.sqrt(sum);
+	}
+}
@@ -0,0 +1,484 @@
+package kmeans;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Reducer;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+
+import common.CentroidIndex;
+
+// initialisation des clusterPoints par quelques jobs d'echantillonnage au lieu des nbClusters premieres lignes du fichier
+// - "kmeansII" : k-means|| (k-means++ distribue), chaque tour tire les points avec une probabilite proportionnelle au carre de leur distance aux candidats
+// - "canopy" : chaque tache regroupe ses points en canopees de rayon T2, puis un reducteur fusionne les canopees de toutes les taches
+// dans les deux cas les candidats ponderes sont reduits a nbClusters clusterPoints par un k-means++ pondere fait localement
+public class Initialization {
+	private static final double COST_SCALE = 1000; // le cout est transmis par un compteur, donc en entier (milliemes)
+	private static final int LOCAL_ITERATIONS = 10;
+
+	// retourne le cout d'un point a l'ensemble des candidats et tire le point avec une probabilite oversampling * cout / cout total
+	public static class SamplingMapper extends Mapper<LongWritable, Text, NullWritable, Text> {
+		private PointXDWritable currentPoint;
+		private int[] positions;
+		private boolean skipFirstLine;
+		private CentroidIndex candidatesIndex;
+		private double oversampling;
+		private double previousCost;
+		private double cost;
+		private Random random;
+
+		@Override
+		public void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+			int nbDimensions = conf.getInt("megaProject.args.nbDimensions", 2);
+			this.positions = new int[nbDimensions];
+			for(int i = 0; i < nbDimensions; ++i)
+				this.positions[i] = conf.getInt("megaProject.args.position" + i, 0);
+			PointXDWritable.setNbDimensions(nbDimensions);
+			this.currentPoint = new PointXDWritable();
+			this.skipFirstLine = conf.getBoolean("megaProject.args.skipFirstLine", false);
+
+			ClusterPointWritable[] candidates = Main.getClusterPointsFromCache(context.getCacheFiles()[0], conf, conf.getInt("megaProject.init.nbCandidates", 1));
+			this.candidatesIndex = new CentroidIndex(ClusterPointWritable.toCoordsArray(candidates));
+			this.oversampling = conf.getDouble("megaProject.init.oversampling", 0);
+			this.previousCost = conf.getDouble("megaProject.init.cost", 0);
+			this.random = new Random(conf.getLong("megaProject.options.seed", 0) ^ ((FileSplit) context.getInputSplit()).getStart() ^ conf.getInt("megaProject.init.round", 0) * 31L);
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+			if((this.skipFirstLine && key.get() == 0) || !this.currentPoint.set(value, this.positions))
+				return;
+
+			this.candidatesIndex.nearest(this.currentPoint.coords);
+			double distance = this.candidatesIndex.getLastSquaredDistance();
+			this.cost += distance;
+			if(this.previousCost > 0 && this.random.nextDouble() < this.oversampling * distance / this.previousCost)
+				context.write(NullWritable.get(), new Text(coordsToString(this.currentPoint.coords)));
+		}
+
+		@Override
+		public void cleanup(Context context) throws IOException, InterruptedException {
+			context.getCounter("megaProject.init", "cost").increment(Math.round(this.cost * COST_SCALE));
+		}
+	}
+
+	// compte les points dont chaque candidat est le plus proche
+	public static class WeightingMapper extends Mapper<LongWritable, Text, IntWritable, LongWritable> {
+		private PointXDWritable currentPoint;
+		private int[] positions;
+		private boolean skipFirstLine;
+		private CentroidIndex candidatesIndex;
+		private long[] weights;
+
+		@Override
+		public void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+			int nbDimensions = conf.getInt("megaProject.args.nbDimensions", 2);
+			this.positions = new int[nbDimensions];
+			for(int i = 0; i < nbDimensions; ++i)
+				this.positions[i] = conf.getInt("megaProject.args.position" + i, 0);
+			PointXDWritable.setNbDimensions(nbDimensions);
+			this.currentPoint = new PointXDWritable();
+			this.skipFirstLine = conf.getBoolean("megaProject.args.skipFirstLine", false);
+
+			ClusterPointWritable[] candidates = Main.getClusterPointsFromCache(context.getCacheFiles()[0], conf, conf.getInt("megaProject.init.nbCandidates", 1));
+			this.candidatesIndex = new CentroidIndex(ClusterPointWritable.toCoordsArray(candidates));
+			this.weights = new long[candidates.length];
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+			if((this.skipFirstLine && key.get() == 0) || !this.currentPoint.set(value, this.positions))
+				return;
+			this.weights[this.candidatesIndex.nearest(this.currentPoint.coords)]++;
+		}
+
+		@Override
+		public void cleanup(Context context) throws IOException, InterruptedException {
+			for(int i = 0; i < this.weights.length; ++i)
+				if(this.weights[i] > 0)
+					context.write(new IntWritable(i), new LongWritable(this.weights[i]));
+		}
+	}
+
+	public static class WeightingReducer extends Reducer<IntWritable, LongWritable, IntWritable, LongWritable> {
+
+		@Override
+		public void reduce(IntWritable key, Iterable<LongWritable> values, Context context) throws IOException, InterruptedException {
+			long weight = 0;
+			for(LongWritable value : values)
+				weight += value.get();
+			context.write(key, new LongWritable(weight));
+		}
+	}
+
+	// regroupe les points de la tache en canopees : un point a plus de T2 de tous les centres existants devient un nouveau centre
+	public static class CanopyMapper extends Mapper<LongWritable, Text, NullWritable, Text> {
+		private PointXDWritable currentPoint;
+		private int[] positions;
+		private boolean skipFirstLine;
+		private Canopies canopies;
+
+		@Override
+		public void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+			int nbDimensions = conf.getInt("megaProject.args.nbDimensions", 2);
+			this.positions = new int[nbDimensions];
+			for(int i = 0; i < nbDimensions; ++i)
+				this.positions[i] = conf.getInt("megaProject.args.position" + i, 0);
+			PointXDWritable.setNbDimensions(nbDimensions);
+			this.currentPoint = new PointXDWritable();
+			this.skipFirstLine = conf.getBoolean("megaProject.args.skipFirstLine", false);
+			this.canopies = new Canopies(conf.getDouble("megaProject.options.canopyT2", 1));
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+			if((this.skipFirstLine && key.get() == 0) || !this.currentPoint.set(value, this.positions))
+				return;
+			this.canopies.add(this.currentPoint.coords, 1);
+		}
+
+		@Override
+		public void cleanup(Context context) throws IOException, InterruptedException {
+			for(int i = 0; i < this.canopies.centers.size(); ++i)
+				context.write(NullWritable.get(), new Text(coordsToString(this.canopies.centers.get(i)) + "," + this.canopies.weights.get(i)));
+		}
+	}
+
+	// fusionne les canopees de toutes les taches avec le meme seuil
+	public static class CanopyReducer extends Reducer<NullWritable, Text, NullWritable, Text> {
+
+		@Override
+		public void reduce(NullWritable key, Iterable<Text> values, Context context) throws IOException, InterruptedException {
+			Canopies canopies = new Canopies(context.getConfiguration().getDouble("megaProject.options.canopyT2", 1));
+			double[] coords;
+			String[] fields;
+			for(Text value : values) {
+				fields = value.toString().split(",");
+				coords = new double[fields.length - 1];
+				for(int i = 0; i < coords.length; ++i)
+					coords[i] = Double.parseDouble(fields[i]);
+				canopies.add(coords, Long.parseLong(fields[fields.length - 1]));
+			}
+			for(int i = 0; i < canopies.centers.size(); ++i)
+				context.write(NullWritable.get(), new Text(coordsToString(canopies.centers.get(i)) + "," + canopies.weights.get(i)));
+		}
+	}
+
+	private static class Canopies {
+		private final double squaredT2;
+		private final List<double[]> centers = new ArrayList<double[]>();
+		private final List<Long> weights = new ArrayList<Long>();
+
+		public Canopies(double t2) {
+			this.squaredT2 = t2 * t2;
+		}
+
+		public void add(double[] coords, long weight) {
+			int nearest = -1;
+			double minDistance = Double.MAX_VALUE;
+			double distance;
+			for(int i = 0; i < this.centers.size(); ++i) {
+				distance = squaredDistance(coords, this.centers.get(i));
+				if(distance < minDistance) {
+					minDistance = distance;
+					nearest = i;
+				}
+			}
+			if(nearest != -1 && minDistance <= this.squaredT2)
+				this.weights.set(nearest, this.weights.get(nearest) + weight);
+			else {
+				this.centers.add(coords.clone());
+				this.weights.add(weight);
+			}
+		}
+	}
+
+	// choisit la methode d'initialisation demandee par l'option "--init"
+	public static ClusterPointWritable[] initiateClusterPoints(Configuration conf, FileSystem fs, Path inputPath, int nbClusters, int nbDimensions, int[] positions) throws Exception {
+		String method = conf.get("megaProject.options.init", "firstLines");
+		if(method.equals("kmeansII"))
+			return kmeansParallel(conf, fs, inputPath, nbClusters, nbDimensions, positions);
+		if(method.equals("canopy"))
+			return canopy(conf, fs, inputPath, nbClusters);
+		return ClusterPointWritable.initiateClusterPoints(fs.open(inputPath), nbClusters, nbDimensions, positions);
+	}
+
+	// k-means|| : un premier candidat pris au hasard, puis des tours d'echantillonnage qui ajoutent en moyenne oversampling * nbClusters candidats
+	public static ClusterPointWritable[] kmeansParallel(Configuration conf, FileSystem fs, Path inputPath, int nbClusters, int nbDimensions, int[] positions) throws Exception {
+		Random random = new Random(conf.getLong("megaProject.options.seed", 0));
+		int nbRounds = conf.getInt("megaProject.options.initRounds", 5);
+		Path candidatesPath = new Path("initCandidates");
+		Path samplePath = new Path("initSample");
+
+		List<double[]> candidates = new ArrayList<double[]>();
+		candidates.add(randomPoint(fs, inputPath, positions, random));
+		double cost = 0;
+		Job job;
+
+		// le tour 0 ne fait que calculer le cout du premier candidat, chaque tour suivant tire avec le cout du tour precedent
+		for(int round = 0; round <= nbRounds; ++round) {
+			writeCandidates(fs, candidatesPath, candidates);
+			conf.setInt("megaProject.init.nbCandidates", candidates.size());
+			conf.setInt("megaProject.init.round", round);
+			conf.setDouble("megaProject.init.cost", cost);
+			conf.setDouble("megaProject.init.oversampling", conf.getDouble("megaProject.options.oversampling", 2) * nbClusters);
+
+			job = createJob(conf, fs, candidatesPath, inputPath, samplePath, "k-means|| round " + round);
+			job.setMapperClass(SamplingMapper.class);
+			job.setNumReduceTasks(0);
+			job.setOutputKeyClass(NullWritable.class);
+			job.setOutputValueClass(Text.class);
+			if(!job.waitForCompletion(true))
+				throw new IOException("k-means|| sampling job failed");
+
+			cost = job.getCounters().findCounter("megaProject.init", "cost").getValue() / COST_SCALE;
+			for(String line : readLines(fs, samplePath))
+				candidates.add(stringToCoords(line, nbDimensions));
+			System.out.println("k-means|| round " + round + " : cost = " + cost + ", " + candidates.size() + " candidates");
+			if(cost == 0)
+				break;
+		}
+
+		// ponderation de chaque candidat par le nombre de points dont il est le plus proche
+		writeCandidates(fs, candidatesPath, candidates);
+		conf.setInt("megaProject.init.nbCandidates", candidates.size());
+		job = createJob(conf, fs, candidatesPath, inputPath, samplePath, "k-means|| weighting");
+		job.setMapperClass(WeightingMapper.class);
+		job.setReducerClass(WeightingReducer.class);
+		job.setCombinerClass(WeightingReducer.class);
+		job.setOutputKeyClass(IntWritable.class);
+		job.setOutputValueClass(LongWritable.class);
+		if(!job.waitForCompletion(true))
+			throw new IOException("k-means|| weighting job failed");
+
+		long[] weights = new long[candidates.size()];
+		String[] fields;
+		for(String line : readLines(fs, samplePath)) {
+			fields = line.split("\t");
+			weights[Integer.parseInt(fields[0])] = Long.parseLong(fields[1]);
+		}
+
+		fs.delete(candidatesPath, true);
+		fs.delete(samplePath, true);
+		return reduceCandidates(candidates, weights, nbClusters, random);
+	}
+
+	// canopees calculees par chaque tache puis fusionnees par un seul reducteur, le poids d'une canopee est son nombre de points
+	public static ClusterPointWritable[] canopy(Configuration conf, FileSystem fs, Path inputPath, int nbClusters) throws Exception {
+		Random random = new Random(conf.getLong("megaProject.options.seed", 0));
+		Path canopiesPath = new Path("initCanopies");
+
+		Job job = createJob(conf, fs, null, inputPath, canopiesPath, "canopy");
+		job.setMapperClass(CanopyMapper.class);
+		job.setReducerClass(CanopyReducer.class);
+		job.setNumReduceTasks(1);
+		job.setMapOutputKeyClass(NullWritable.class);
+		job.setMapOutputValueClass(Text.class);
+		job.setOutputKeyClass(NullWritable.class);
+		job.setOutputValueClass(Text.class);
+		if(!job.waitForCompletion(true))
+			throw new IOException("canopy job failed");
+
+		List<double[]> candidates = new ArrayList<double[]>();
+		List<Long> weightsList = new ArrayList<Long>();
+		String[] fields;
+		double[] coords;
+		for(String line : readLines(fs, canopiesPath)) {
+			fields = line.split(",");
+			coords = new double[fields.length - 1];
+			for(int i = 0; i < coords.length; ++i)
+				coords[i] = Double.parseDouble(fields[i]);
+			candidates.add(coords);
+			weightsList.add(Long.parseLong(fields[fields.length - 1]));
+		}
+		fs.delete(canopiesPath, true);
+		System.out.println("canopy : " + candidates.size() + " canopies");
+
+		long[] weights = new long[weightsList.size()];
+		for(int i = 0; i < weights.length; ++i)
+			weights[i] = weightsList.get(i);
+		return reduceCandidates(candidates, weights, nbClusters, random);
+	}
+
+	// k-means++ pondere sur les candidats suivi de quelques iterations de k-means pondere, le tout en memoire
+	public static ClusterPointWritable[] reduceCandidates(List<double[]> candidates, long[] weights, int nbClusters, Random random) {
+		int nbDimensions = candidates.get(0).length;
+		double[][] centers = new double[nbClusters][];
+		double[] distances = new double[candidates.size()];
+		double total = 0;
+		int chosen;
+
+		for(int i = 0; i < weights.length; ++i)
+			total += weights[i];
+		chosen = pick(weights, null, total, random);
+		centers[0] = candidates.get(chosen).clone();
+		for(int i = 0; i < distances.length; ++i)
+			distances[i] = squaredDistance(candidates.get(i), centers[0]);
+
+		for(int k = 1; k < nbClusters; ++k) {
+			total = 0;
+			for(int i = 0; i < distances.length; ++i)
+				total += weights[i] * distances[i];
+			// moins de candidats distincts que de clusters : les clusterPoints restants sont des copies, leurs clusters resteront vides
+			chosen = total > 0 ? pick(weights, distances, total, random) : random.nextInt(candidates.size());
+			centers[k] = candidates.get(chosen).clone();
+			for(int i = 0; i < distances.length; ++i)
+				distances[i] = Math.min(distances[i], squaredDistance(candidates.get(i), centers[k]));
+		}
+
+		double[][] sums;
+		long[] counts;
+		CentroidIndex index;
+		for(int iteration = 0; iteration < LOCAL_ITERATIONS; ++iteration) {
+			sums = new double[nbClusters][nbDimensions];
+			counts = new long[nbClusters];
+			index = new CentroidIndex(centers);
+			for(int i = 0; i < candidates.size(); ++i) {
+				chosen = index.nearest(candidates.get(i));
+				for(int d = 0; d < nbDimensions; ++d)
+					sums[chosen][d] += weights[i] * candidates.get(i)[d];
+				counts[chosen] += weights[i];
+			}
+			for(int k = 0; k < nbClusters; ++k)
+				if(counts[k] > 0)
+					for(int d = 0; d < nbDimensions; ++d)
+						centers[k][d] = sums[k][d] / counts[k];
+		}
+
+		ClusterPointWritable[] clusterPoints = new ClusterPointWritable[nbClusters];
+		for(int k = 0; k < nbClusters; ++k)
+			clusterPoints[k] = new ClusterPointWritable(centers[k], k);
+		return clusterPoints;
+	}
+
+	// tire un indice avec une probabilite proportionnelle a weights[i] * distances[i]
+	private static int pick(long[] weights, double[] distances, double total, Random random) {
+		double target = random.nextDouble() * total;
+		for(int i = 0; i < weights.length; ++i) {
+			target -= distances == null ? weights[i] : weights[i] * distances[i];
+			if(target < 0)
+				return i;
+		}
+		return weights.length - 1;
+	}
+
+	// echantillon de points lus a des positions aleatoires du fichier, sans job
+	public static List<double[]> samplePoints(FileSystem fs, Path inputPath, int[] positions, int nbPoints, Random random) throws IOException {
+		List<double[]> points = new ArrayList<double[]>();
+		for(int i = 0; i < nbPoints; ++i)
+			points.add(randomPoint(fs, inputPath, positions, random));
+		return points;
+	}
+
+	// lit la premiere ligne complete apres une position aleatoire du fichier
+	private static double[] randomPoint(FileSystem fs, Path inputPath, int[] positions, Random random) throws IOException {
+		long length = fs.getFileStatus(inputPath).getLen();
+		PointXDWritable point = new PointXDWritable(new double[positions.length], 1);
+		BufferedReader reader;
+		String line;
+		for(int attempt = 0; attempt < 100; ++attempt) {
+			FSDataInputStream is = fs.open(inputPath);
+			is.seek((long) (random.nextDouble() * length));
+			reader = new BufferedReader(new InputStreamReader(is));
+			reader.readLine(); // fin de la ligne courante
+			line = reader.readLine();
+			reader.close();
+			try {
+				if(line != null && point.set(new Text(line), positions))
+					return point.coords.clone();
+			}
+			catch(NumberFormatException e) {
+				// ligne d'en-tete ou invalide, on recommence
+			}
+		}
+		throw new IOException("no valid point found in " + inputPath);
+	}
+
+	private static Job createJob(Configuration conf, FileSystem fs, Path candidatesPath, Path inputPath, Path outputPath, String name) throws IOException {
+		Job job = Job.getInstance(conf, "MegaProjectOfTheKillingDeath - " + name);
+		if(candidatesPath != null)
+			job.addCacheFile(candidatesPath.toUri());
+		job.setJarByClass(Initialization.class);
+		job.setInputFormatClass(TextInputFormat.class);
+		job.setOutputFormatClass(TextOutputFormat.class);
+		FileInputFormat.addInputPath(job, inputPath);
+		if(fs.exists(outputPath))
+			fs.delete(outputPath, true);
+		FileOutputFormat.setOutputPath(job, outputPath);
+		return job;
+	}
+
+	private static void writeCandidates(FileSystem fs, Path candidatesPath, List<double[]> candidates) throws IOException {
+		ClusterPointWritable[] clusterPoints = new ClusterPointWritable[candidates.size()];
+		for(int i = 0; i < clusterPoints.length; ++i)
+			clusterPoints[i] = new ClusterPointWritable(candidates.get(i), i);
+		ClusterPointWritable.writeIntoFile(clusterPoints, fs.create(candidatesPath, true));
+	}
+
+	// lit toutes les lignes des fichiers "part-*" d'un repertoire de sortie
+	private static List<String> readLines(FileSystem fs, Path outputPath) throws IOException {
+		List<String> lines = new ArrayList<String>();
+		BufferedReader reader;
+		String line;
+		for(FileStatus status : fs.listStatus(outputPath)) {
+			if(!status.getPath().getName().startsWith("part-"))
+				continue;
+			reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath())));
+			while((line = reader.readLine()) != null)
+				if(!line.isEmpty())
+					lines.add(line);
+			reader.close();
+		}
+		return lines;
+	}
+
+	private static String coordsToString(double[] coords) {
+		StringBuilder str = new StringBuilder();
+		for(int i = 0; i < coords.length; ++i) {
+			if(i != 0)
+				str.append(",");
+			str.append(coords[i]);
+		}
+		return str.toString();
+	}
+
+	private static double[] stringToCoords(String line, int nbDimensions) {
+		String[] fields = line.split(",");
+		double[] coords = new double[nbDimensions];
+		for(int i = 0; i < nbDimensions; ++i)
+			coords[i] = Double.parseDouble(fields[i]);
+		return coords;
+	}
+
+	private static double squaredDistance(double[] coords1, double[] coords2) {
+		double sum = 0;
+		double diff;
+		for(int i = 0; i < coords1.length; ++i) {
+			diff = coords1[i] - coords2[i];
+			sum += diff * diff;
+		}
+		return sum;
+	}
+}
@@ -0,0 +1,335 @@
+package kmeans;
+
+// java -cp kmeans.jar:$(hadoop classpath) kmeans.LocalEngine worldcitiespop.txt output 10 5 6
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.util.LineReader;
+
+import common.CentroidIndex;
+import common.Options;
+
+// moteur k-means local pour les fichiers qui tiennent sur une seule machine : memes arguments que Main, mais aucun job par iteration
+// les points sont lus dans un fichier binaire (voir PointsFile) projete en memoire, et chaque iteration repartit l'affectation
+// sur tous les coeurs avec un pool fork/join, chaque tache accumulant ses propres sommes qui sont fusionnees en remontant
+// les clusterPoints sont ecrits au meme format que Main (ClusterPointWritable.writeIntoFile)
+public class LocalEngine {
+	private static final int LEAF_SIZE = 1 << 14; // nombre de lignes en dessous duquel une tache n'est plus divisee
+
+	// portion d'un fichier de points projetee en memoire, qui ne contient que des lignes entieres
+	private static class Segment {
+		private final ByteBuffer buffer;
+		private final int nbRows;
+		private final int recordSize;
+		private final boolean weighted;
+
+		private Segment(ByteBuffer buffer, int nbRows, PointsFile.Header header) {
+			this.buffer = buffer;
+			this.nbRows = nbRows;
+			this.recordSize = header.getRecordSize();
+			this.weighted = header.isWeighted();
+		}
+	}
+
+	// sommes des coordonnees et nombre de points par cluster, a plat (cluster * nbDimensions + dimension)
+	private static class Accumulator {
+		private final double[] sums;
+		private final long[] counts;
+		private double sse;
+
+		private Accumulator(int nbClusters, int nbDimensions) {
+			this.sums = new double[nbClusters * nbDimensions];
+			this.counts = new long[nbClusters];
+		}
+
+		private void merge(Accumulator accumulator) {
+			for(int i = 0; i < this.sums.length; ++i)
+				this.sums[i] += accumulator.sums[i];
+			for(int i = 0; i < this.counts.length; ++i)
+				this.counts[i] += accumulator.counts[i];
+			this.sse += accumulator.sse;
+		}
+	}
+
+	// affecte les lignes [first, end[ d'un segment, en divisant l'intervalle en deux tant qu'il est plus grand que LEAF_SIZE
+	private static class AssignTask extends RecursiveTask<Accumulator> {
+		private static final long serialVersionUID = 1L;
+		private final Segment segment;
+		private final int first;
+		private final int end;
+		private final double[][] centroids;
+		private final boolean centroidIndex;
+
+		private AssignTask(Segment segment, int first, int end, double[][] centroids, boolean centroidIndex) {
+			this.segment = segment;
+			this.first = first;
+			this.end = end;
+			this.centroids = centroids;
+			this.centroidIndex = centroidIndex;
+		}
+
+		@Override
+		protected Accumulator compute() {
+			if(this.end - this.first <= LEAF_SIZE)
+				return this.assign();
+
+			int middle = (this.first + this.end) >>> 1;
+			AssignTask left = new AssignTask(this.segment, this.first, middle, this.centroids, this.centroidIndex);
+			left.fork();
+			Accumulator accumulator = new AssignTask(this.segment, middle, this.end, this.centroids, this.centroidIndex).compute();
+			accumulator.merge(left.join());
+			return accumulator;
+		}
+
+		private Accumulator assign() {
+			int nbDimensions = this.centroids[0].length;
+			Accumulator accumulator = new Accumulator(this.centroids.length, nbDimensions);
+			CentroidIndex index = this.centroidIndex ? new CentroidIndex(this.centroids) : null; // l'index garde un etat : un par tache
+			double[] coords = new double[nbDimensions];
+			int offset;
+			int weight;
+			int nearest;
+			double minDistance;
+			double distance;
+			double diff;
+
+			for(int row = this.first; row < this.end; ++row) {
+				offset = row * this.segment.recordSize;
+				for(int d = 0; d < nbDimensions; ++d)
+					coords[d] = this.segment.buffer.getDouble(offset + 8 * d);
+				weight = this.segment.weighted ? this.segment.buffer.getInt(offset + 8 * nbDimensions) : 1;
+
+				if(index != null) {
+					nearest = index.nearest(coords);
+					minDistance = index.getLastSquaredDistance();
+				}
+				else {
+					nearest = 0;
+					minDistance = Double.POSITIVE_INFINITY;
+					for(int j = 0; j < this.centroids.length; ++j) {
+						distance = 0;
+						for(int d = 0; d < nbDimensions; ++d) {
+							diff = coords[d] - this.centroids[j][d];
+							distance += diff * diff;
+						}
+						if(distance < minDistance) {
+							minDistance = distance;
+							nearest = j;
+						}
+					}
+				}
+
+				offset = nearest * nbDimensions;
+				for(int d = 0; d < nbDimensions; ++d)
+					accumulator.sums[offset + d] += coords[d] * weight;
+				accumulator.counts[nearest] += weight;
+				accumulator.sse += minDistance * weight;
+			}
+			return accumulator;
+		}
+	}
+
+	// projette en memoire un fichier de points local, par segments de moins de 2 Go (limite d'un ByteBuffer)
+	private static void mapFile(File file, int nbDimensions, List<Segment> segments) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			PointsFile.Header header = PointsFile.readHeader(raf);
+			if(header.nbDimensions != nbDimensions)
+				throw new IOException(file + " has " + header.nbDimensions + " dimensions instead of " + nbDimensions);
+			FileChannel channel = raf.getChannel();
+			int recordSize = header.getRecordSize();
+			long maxRows = Integer.MAX_VALUE / recordSize;
+			int nbRows;
+			for(long row = 0; row < header.nbRows; row += maxRows) {
+				nbRows = (int) Math.min(maxRows, header.nbRows - row);
+				segments.add(new Segment(channel.map(FileChannel.MapMode.READ_ONLY, PointsFile.HEADER_SIZE + row * recordSize, (long) nbRows * recordSize), nbRows, header));
+			}
+		}
+		finally {
+			raf.close(); // la projection reste valide apres la fermeture du fichier
+		}
+	}
+
+	private static boolean isPointsFile(FileSystem fs, Path path) throws IOException {
+		if(fs.getFileStatus(path).getLen() < PointsFile.HEADER_SIZE)
+			return false;
+		FSDataInputStream is = fs.open(path);
+		int magic = is.readInt();
+		is.close();
+		return magic == PointsFile.MAGIC;
+	}
+
+	// fichier local correspondant a un chemin, recopie dans un fichier temporaire si le chemin n'est pas sur le systeme de fichiers local
+	private static File toLocalFile(FileSystem fs, Path path, List<File> tmpFiles) throws IOException {
+		if(fs.getUri().getScheme().equals("file"))
+			return new File(fs.makeQualified(path).toUri().getPath());
+		File tmpFile = File.createTempFile("points", ".points");
+		tmpFile.delete();
+		fs.copyToLocalFile(path, new Path(tmpFile.getAbsolutePath()));
+		tmpFiles.add(tmpFile);
+		return tmpFile;
+	}
+
+	// lit une seule fois le fichier texte et n'en garde que les colonnes "positions" dans un fichier de points temporaire
+	private static File convertTextFile(FileSystem fs, Path inputPath, int nbDimensions, int[] positions, boolean skipFirstLine) throws IOException {
+		File tmpFile = File.createTempFile("points", ".points");
+		PointsFile.Writer writer = new PointsFile.Writer(new FileOutputStream(tmpFile), nbDimensions, 0);
+		LineReader reader = new LineReader(fs.open(inputPath), 1 << 16);
+		PointXDWritable point = new PointXDWritable(new double[nbDimensions], 1);
+		Text line = new Text();
+		if(skipFirstLine)
+			reader.readLine(line);
+		while(reader.readLine(line) > 0)
+			if(point.set(line, positions))
+				writer.write(point.coords, 1);
+		reader.close();
+		writer.close();
+		return tmpFile;
+	}
+
+	// les nbClusters premieres lignes distinctes des fichiers de points, comme l'initialisation par defaut de Main
+	private static ClusterPointWritable[] firstRows(List<Segment> segments, int nbClusters, int nbDimensions) throws IOException {
+		ClusterPointWritable[] clusterPoints = new ClusterPointWritable[nbClusters];
+		int nbClusterPoints = 0;
+		double[] coords;
+		boolean alreadyIn;
+		for(Segment segment : segments) {
+			for(int row = 0; row < segment.nbRows && nbClusterPoints < nbClusters; ++row) {
+				coords = new double[nbDimensions];
+				for(int d = 0; d < nbDimensions; ++d)
+					coords[d] = segment.buffer.getDouble(row * segment.recordSize + 8 * d);
+				alreadyIn = false;
+				for(int i = 0; i < nbClusterPoints && !alreadyIn; ++i)
+					alreadyIn = Arrays.equals(clusterPoints[i].coords, coords);
+				if(!alreadyIn)
+					clusterPoints[nbClusterPoints] = new ClusterPointWritable(coords, nbClusterPoints++);
+			}
+		}
+		if(nbClusterPoints < nbClusters)
+			throw new IOException("less than " + nbClusters + " distinct points in the input");
+		return clusterPoints;
+	}
+
+	private static void writeClusterPoints(FileSystem fs, Path path, ClusterPointWritable[] clusterPoints) throws IOException {
+		FSDataOutputStream os = fs.create(path, true);
+		ClusterPointWritable.writeIntoFile(clusterPoints, os);
+		os.close();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Configuration conf = new Configuration();
+		FileSystem fs = FileSystem.get(conf);
+
+		args = Options.parse(conf, args);
+		if(args.length < 5) {
+			System.out.println("Usage : <command> [--threads=N] [--centroidIndex] [--init=firstLines|kmeansII|canopy (text input only) [--initRounds=N] [--oversampling=X] [--canopyT2=X] [--seed=N]] [--fullPasses=N] <inputFile|pointsFile|pointsDirectory> <outputFile> <nbClusters> <position1> ... <positionN>");
+			System.exit(0);
+		}
+
+		int nbClusters = Integer.parseInt(args[2]);
+		int nbDimensions = args.length - 3;
+		int[] positions = new int[nbDimensions];
+		for(int i = 3; i < args.length; ++i) {
+			positions[i - 3] = Integer.valueOf(args[i]);
+			conf.setInt("megaProject.args.position" + (i - 3), positions[i - 3]);
+		}
+		conf.setInt("megaProject.args.nbClusters", nbClusters);
+		conf.setInt("megaProject.args.nbDimensions", nbDimensions);
+
+		Path inputPath = new Path(args[0]);
+		Path outputPath = new Path(args[1]);
+		Path distribPath = new Path("distributedCache");
+		conf.setBoolean("megaProject.args.skipFirstLine", inputPath.getName().equals("worldcitiespop.txt"));
+
+		// l'entree est soit un fichier de points, soit un repertoire produit par PointsPreprocessing, soit le fichier texte d'origine
+		List<File> tmpFiles = new ArrayList<File>();
+		List<Segment> segments = new ArrayList<Segment>();
+		boolean textInput = false;
+		if(fs.getFileStatus(inputPath).isDirectory()) {
+			for(FileStatus status : fs.listStatus(inputPath))
+				if(status.getPath().getName().endsWith(".points"))
+					mapFile(toLocalFile(fs, status.getPath(), tmpFiles), nbDimensions, segments);
+		}
+		else if(isPointsFile(fs, inputPath))
+			mapFile(toLocalFile(fs, inputPath, tmpFiles), nbDimensions, segments);
+		else {
+			textInput = true;
+			tmpFiles.add(convertTextFile(fs, inputPath, nbDimensions, positions, conf.getBoolean("megaProject.args.skipFirstLine", false)));
+			mapFile(tmpFiles.get(0), nbDimensions, segments);
+		}
+
+		// les jobs d'echantillonnage de Initialization lisent le fichier texte : un fichier de points est initialise par ses premieres lignes
+		if(!textInput && !conf.get("megaProject.options.init", "firstLines").equals("firstLines"))
+			throw new IllegalArgumentException("--init=" + conf.get("megaProject.options.init") + " needs the text input file, points files start from their first rows");
+		ClusterPointWritable[] clusterPoints = textInput ? Initialization.initiateClusterPoints(conf, fs, inputPath, nbClusters, nbDimensions, positions) : firstRows(segments, nbClusters, nbDimensions);
+		ClusterPointWritable.displayClusterPoints(clusterPoints);
+
+		ForkJoinPool pool = new ForkJoinPool(conf.getInt("megaProject.options.threads", Runtime.getRuntime().availableProcessors()));
+		boolean centroidIndex = conf.getBoolean("megaProject.options.centroidIndex", false);
+		int maxFullPasses = conf.getInt("megaProject.options.fullPasses", Integer.MAX_VALUE);
+		int fullPasses = 0;
+		int clusterPointsChanged;
+		double[][] centroids;
+		double[] coords;
+		Accumulator total;
+		ClusterPointWritable newCenter;
+
+		long startTime = new Date().getTime();
+		while(true) {
+			centroids = ClusterPointWritable.toCoordsArray(clusterPoints);
+			total = new Accumulator(nbClusters, nbDimensions);
+			for(Segment segment : segments)
+				total.merge(pool.invoke(new AssignTask(segment, 0, segment.nbRows, centroids, centroidIndex)));
+
+			// un cluster vide garde son clusterPoint, comme avec le reducteur de Main
+			clusterPointsChanged = 0;
+			for(int i = 0; i < nbClusters; ++i) {
+				if(total.counts[i] == 0)
+					continue;
+				coords = new double[nbDimensions];
+				for(int d = 0; d < nbDimensions; ++d)
+					coords[d] = total.sums[i * nbDimensions + d] / total.counts[i];
+				newCenter = new ClusterPointWritable(coords, i);
+				if(!newCenter.equals(clusterPoints[i])) {
+					clusterPoints[i] = newCenter;
+					++clusterPointsChanged;
+				}
+			}
+
+			ClusterPointWritable.displayClusterPoints(clusterPoints);
+			System.out.println("Execution time : " + ((float) (new Date().getTime() - startTime) / 1000) + " seconds.");
+			System.out.println("SSE : " + total.sse);
+			if(clusterPointsChanged == 0 || ++fullPasses >= maxFullPasses)
+				break;
+		}
+		pool.shutdown();
+
+		writeClusterPoints(FileSystem.get(distribPath.toUri(), conf), distribPath, clusterPoints);
+		if(fs.exists(outputPath))
+			fs.delete(outputPath, true);
+		writeClusterPoints(fs, outputPath, clusterPoints);
+
+		segments.clear();
+		for(File tmpFile : tmpFiles)
+			tmpFile.delete();
+		System.exit(0);
+	}
+}
@@ -2,33 +2,57 @@ package kmeans;
 
 // yarn jar ~/tmp/kmeans.jar kmeans.Main /worldcitiespop.txt output 10 5 6
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
 
+import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.ByteWritable;
+import org.apache.hadoop.io.IntWritable;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.Partitioner;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
 
+import common.AssignmentKernel;
+import common.BatchPipeline;
+import common.CentroidIndex;
+import common.CentroidSnapshot;
+import common.Options;
+import common.Timeline;
+import common.WireEncoding;
+
 public class Main {
-	
-	private static ClusterPointWritable[] getClusterPointsFromCache(URI distribURI, Configuration conf, int nbClusters) throws IOException {
+	// le fichier peut etre un instantane binaire (voir CentroidSnapshot) ou une ligne de texte ecrite par ClusterPointWritable.writeIntoFile
+	static ClusterPointWritable[] getClusterPointsFromCache(URI distribURI, Configuration conf, int nbClusters) throws IOException {
 		ClusterPointWritable[] clusterPoints;
 		FileSystem fs = FileSystem.get(distribURI, conf);
-		InputStream is = fs.open(new Path(distribURI));
-		clusterPoints = ClusterPointWritable.readFromFile(is, nbClusters);
+		InputStream is = new BufferedInputStream(fs.open(new Path(distribURI)));
+		if(CentroidSnapshot.isSnapshot(is))
+			clusterPoints = ClusterPointWritable.fromSnapshot(CentroidSnapshot.read(is));
+		else
+			clusterPoints = ClusterPointWritable.readFromFile(is, nbClusters);
 		is.close();
 		return clusterPoints;
 	}
@@ -40,36 +64,201 @@ public class Main {
 		os.close();
 	}
 	
-	public static class KmeansWCPMapper extends Mapper<LongWritable, Text, ByteWritable, PointXDWritable> {
-		private ClusterPointWritable[] clusterPoints;
-		private int nbDimensions;
-		private int[] positions;
-		private PointXDWritable currentPoint;
+	// partie commune des mappers : affectation du point courant a son clusterPoint et emission, quel que soit le format d'entree
+	public static abstract class AbstractKmeansMapper<V> extends Mapper<LongWritable, V, IntWritable, PointXDWritable> {
+		protected ClusterPointWritable[] clusterPoints;
+		protected int nbDimensions;
+		protected int[] positions;
+		protected PointXDWritable currentPoint;
 		private ClusterPointWritable nearestClusterPoint;
 		private double minDistance;
 		private double currentDistance;
-		private String line;
+		private IntWritable outputKey = new IntWritable();
+		private PointXDWritable weightedPoint; // somme des copies d'un point pondere, pour l'ecriture en sortie
+		private int[] batchWeights; // poids des points en attente dans le bloc
+		private boolean inMapperCombining;
+		private double[] sums; // sommes des coordonnees par cluster, a plat (cluster * nbDimensions + dimension)
+		private int[] counts;
+		private CentroidIndex centroidIndex;
+		private DistanceBounds distanceBounds;
+		private AssignmentKernel assignmentKernel;
+		private double sampleFraction;
+		private Random random;
+		private double sse;
+		private long recordsParsed;
+		private long distanceEvaluations; // calculs de distance de la recherche lineaire et du mode "par blocs"
+		protected boolean timeParsing; // la duree de lecture des lignes n'est mesuree que si une chronologie est demandee
+		protected long parseTime;
+		protected int mapThreads;
+		
+		// bloc de lignes traite par un thread du pool en mode multi-thread (voir BatchPipeline), avec ses propres sommes par cluster
+		protected static class LineBatch implements BatchPipeline.Batch {
+			private final Text[] lines;
+			private int size;
+			private final PointXDWritable point;
+			private final double[] sums;
+			private final int[] counts;
+			private final CentroidIndex centroidIndex; // l'index garde un etat : un par bloc
+			private double sse;
+			private long recordsParsed;
+			private long distanceEvaluations;
+			private long parseTime;
+			
+			protected LineBatch(double[][] centroids, int capacity, boolean useCentroidIndex) {
+				int nbDimensions = centroids[0].length;
+				this.lines = new Text[capacity];
+				for(int i = 0; i < capacity; ++i)
+					this.lines[i] = new Text();
+				this.point = new PointXDWritable(new double[nbDimensions], 1);
+				this.sums = new double[centroids.length * nbDimensions];
+				this.counts = new int[centroids.length];
+				this.centroidIndex = useCentroidIndex ? new CentroidIndex(centroids) : null;
+			}
+			
+			@Override
+			public boolean add(long offset, Text line) {
+				this.lines[this.size++].set(line);
+				return this.size == this.lines.length;
+			}
+			
+			@Override
+			public int size() {
+				return this.size;
+			}
+			
+			// lit et affecte toutes les lignes du bloc, appele depuis un thread du pool
+			protected void process(double[][] centroids, int[] positions, boolean timeParsing) {
+				int nbDimensions = this.point.coords.length;
+				double[] coords = this.point.coords;
+				long startTime;
+				boolean parsed;
+				int nearest;
+				int offset;
+				double minDistance;
+				double distance;
+				double diff;
+				for(int i = 0; i < this.size; ++i) {
+					startTime = timeParsing ? System.nanoTime() : 0;
+					parsed = this.point.set(this.lines[i], positions);
+					if(timeParsing)
+						this.parseTime += System.nanoTime() - startTime;
+					if(!parsed)
+						continue;
+					this.recordsParsed++;
+					
+					if(this.centroidIndex != null) {
+						nearest = this.centroidIndex.nearest(coords);
+						minDistance = this.centroidIndex.getLastSquaredDistance();
+					}
+					else {
+						nearest = 0;
+						minDistance = Double.POSITIVE_INFINITY;
+						this.distanceEvaluations += centroids.length;
+						for(int j = 0; j < centroids.length; ++j) {
+							distance = 0;
+							for(int d = 0; d < nbDimensions; ++d) {
+								diff = coords[d] - centroids[j][d];
+								distance += diff * diff;
+							}
+							if(distance < minDistance) {
+								minDistance = distance;
+								nearest = j;
+							}
+						}
+					}
+					
+					offset = nearest * nbDimensions;
+					for(int d = 0; d < nbDimensions; ++d)
+						this.sums[offset + d] += coords[d];
+					this.counts[nearest]++;
+					this.sse += minDistance;
+				}
+			}
+		}
+		
+		// nombre de threads d'affectation par tache map ("--mapThreads=N", 0 pour le nombre de coeurs reserves par tache)
+		// les bornes de distance sont lues et ecrites dans l'ordre des lignes et seules les lignes de texte sont reparties : ces modes restent sur un seul thread
+		protected static int getMapThreads(Configuration conf) {
+			if(conf.getBoolean("megaProject.options.distanceBounds", false) || conf.getBoolean("megaProject.args.pointsInput", false))
+				return 1;
+			int mapThreads = conf.getInt("megaProject.options.mapThreads", 1);
+			return mapThreads > 0 ? mapThreads : conf.getInt("mapreduce.map.cpu.vcores", 1);
+		}
 		
 		@Override
 		public void setup(Context context) throws IOException, InterruptedException {
 			Configuration conf = context.getConfiguration();
+			this.timeParsing = conf.get("megaProject.options.metrics") != null;
 			
 			this.nbDimensions = conf.getInt("megaProject.args.nbDimensions", 2);
 			this.positions = new int[this.nbDimensions];
 			for(int i = 0; i < this.nbDimensions; ++i)
 				this.positions[i] = conf.getInt("megaProject.args.position" + i, 0);
 			PointXDWritable.setNbDimensions(this.nbDimensions);
+			PointXDWritable.setEncoding(WireEncoding.get(conf));
 			this.clusterPoints = getClusterPointsFromCache(context.getCacheFiles()[0], conf, conf.getInt("megaProject.args.nbClusters", 10));
+			this.currentPoint = new PointXDWritable(); // reutilise pour chaque ligne, context.write() serialise le point immediatement
+			
+			// en mode multi-thread, chaque bloc accumule ses sommes : les sorties sont toujours combinees dans le mapper
+			this.mapThreads = getMapThreads(conf);
+			this.inMapperCombining = conf.getBoolean("megaProject.options.inMapperCombining", false) || this.mapThreads > 1;
+			if(this.inMapperCombining) {
+				this.sums = new double[this.clusterPoints.length * this.nbDimensions];
+				this.counts = new int[this.clusterPoints.length];
+			}
+			
+			if(conf.getBoolean("megaProject.options.centroidIndex", false) && this.mapThreads <= 1)
+				this.centroidIndex = new CentroidIndex(ClusterPointWritable.toCoordsArray(this.clusterPoints));
+			
+			// en mode echantillonne, chaque tache tire ses lignes avec une graine propre au bloc et a l'iteration
+			this.sampleFraction = conf.getDouble("megaProject.sample.fraction", 1);
+			if(this.sampleFraction < 1)
+				this.random = new Random(conf.getLong("megaProject.options.seed", 0) ^ ((FileSplit) context.getInputSplit()).getStart() ^ conf.getInt("megaProject.sample.iteration", 0) * 31L);
+			
+			// les clusterPoints de l'iteration precedente, s'il y en a, sont le second fichier du cache
+			// les bornes ne sont utilisables que si toutes les lignes sont lues
+			if(conf.getBoolean("megaProject.options.distanceBounds", false) && this.sampleFraction >= 1) {
+				URI[] cacheFiles = context.getCacheFiles();
+				ClusterPointWritable[] previousClusterPoints = cacheFiles.length > 1 ? getClusterPointsFromCache(cacheFiles[1], conf, this.clusterPoints.length) : null;
+				this.distanceBounds = new DistanceBounds(conf, (FileSplit) context.getInputSplit(), this.clusterPoints, previousClusterPoints);
+			}
+			else if(conf.getBoolean("megaProject.options.batchKernel", false) && !conf.getBoolean("megaProject.options.centroidIndex", false) && this.mapThreads <= 1) {
+				this.assignmentKernel = new AssignmentKernel(ClusterPointWritable.toCoordsArray(this.clusterPoints), conf.getInt("megaProject.options.batchSize", 1024));
+				this.batchWeights = new int[conf.getInt("megaProject.options.batchSize", 1024)];
+			}
 		}
 		
-		@Override
-		public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-			this.line = value.toString();
+		// en mode echantillonne, indique si la ligne courante doit etre ignoree
+		protected boolean isSampledOut() {
+			return this.random != null && this.random.nextDouble() >= this.sampleFraction;
+		}
+		
+		// affecte le point courant a son clusterPoint le plus proche
+		// un point pondere (voir Coreset) compte dans la somme des carres des distances autant de fois que son poids
+		protected void assign(Context context) throws IOException, InterruptedException {
+			this.recordsParsed++;
+			int weight = this.currentPoint.getPointsCounter();
+			
+			// en mode "par blocs", le point est mis en attente et affecte quand le bloc est plein
+			if(this.assignmentKernel != null) {
+				this.distanceEvaluations += this.clusterPoints.length;
+				this.batchWeights[this.assignmentKernel.size()] = weight;
+				if(this.assignmentKernel.add(this.currentPoint.coords))
+					this.flushBatch(context);
+				return;
+			}
 			
-			if(!this.line.contains("Country")) {
-				this.currentPoint = new PointXDWritable(this.line, this.nbDimensions, this.positions);
+			if(this.distanceBounds != null) {
+				this.nearestClusterPoint = this.clusterPoints[this.distanceBounds.nearest(this.currentPoint.coords, this.clusterPoints)];
+				this.sse += this.distanceBounds.getLastDistance() * this.distanceBounds.getLastDistance() * weight;
+			}
+			else if(this.centroidIndex != null) {
+				this.nearestClusterPoint = this.clusterPoints[this.centroidIndex.nearest(this.currentPoint.coords)];
+				this.sse += this.centroidIndex.getLastSquaredDistance() * weight;
+			}
+			else {
 				this.minDistance = Double.MAX_VALUE;
-				
+				this.distanceEvaluations += this.clusterPoints.length;
 				for(ClusterPointWritable clusterPoint : this.clusterPoints) {
 					this.currentDistance = this.currentPoint.distance(clusterPoint);
 					if(this.currentDistance < this.minDistance) {
@@ -77,54 +266,181 @@ public class Main {
 						this.nearestClusterPoint = clusterPoint;
 					}
 				}
-					
-				context.write(new ByteWritable((byte) this.nearestClusterPoint.index), this.currentPoint);
+				this.sse += this.minDistance * this.minDistance * weight;
+			}
+			
+			this.emit(this.nearestClusterPoint.index, this.currentPoint, context);
+		}
+		
+		// affecte tous les points en attente dans le bloc et les emet
+		private void flushBatch(Context context) throws IOException, InterruptedException {
+			int[] assignments = this.assignmentKernel.assign();
+			for(int i = 0; i < this.assignmentKernel.size(); ++i) {
+				this.assignmentKernel.getPoint(i, this.currentPoint.coords);
+				this.currentPoint.setPointsCounter(this.batchWeights[i]);
+				this.sse += this.assignmentKernel.getSquaredDistance(i) * this.batchWeights[i];
+				this.emit(assignments[i], this.currentPoint, context);
+			}
+			this.assignmentKernel.clear();
+		}
+		
+		// en mode "in-mapper combining", le point est ajoute aux sommes de son cluster au lieu d'etre ecrit en sortie
+		// le combiner et le reducteur recoivent des sommes de coordonnees : un point de poids n est transmis comme la somme de ses n copies
+		protected void emit(int clusterIndex, PointXDWritable point, Context context) throws IOException, InterruptedException {
+			int weight = point.getPointsCounter();
+			if(this.inMapperCombining) {
+				int offset = clusterIndex * this.nbDimensions;
+				for(int i = 0; i < this.nbDimensions; ++i)
+					this.sums[offset + i] += point.coords[i] * weight;
+				this.counts[clusterIndex] += weight;
+			}
+			else {
+				this.outputKey.set(clusterIndex);
+				if(weight != 1) {
+					if(this.weightedPoint == null)
+						this.weightedPoint = new PointXDWritable();
+					for(int i = 0; i < this.nbDimensions; ++i)
+						this.weightedPoint.coords[i] = point.coords[i] * weight;
+					this.weightedPoint.setPointsCounter(weight);
+					point = this.weightedPoint;
+				}
+				context.write(this.outputKey, point);
+			}
+		}
+		
+		// ajoute les sommes et les mesures d'un bloc traite a celles de la tache, puis vide le bloc pour le reutiliser
+		protected void merge(LineBatch batch) {
+			for(int i = 0; i < this.sums.length; ++i)
+				this.sums[i] += batch.sums[i];
+			for(int i = 0; i < this.counts.length; ++i)
+				this.counts[i] += batch.counts[i];
+			this.sse += batch.sse;
+			this.recordsParsed += batch.recordsParsed;
+			this.distanceEvaluations += batch.distanceEvaluations;
+			this.parseTime += batch.parseTime;
+			Arrays.fill(batch.sums, 0);
+			Arrays.fill(batch.counts, 0);
+			batch.sse = 0;
+			batch.recordsParsed = 0;
+			batch.distanceEvaluations = 0;
+			batch.parseTime = 0;
+			batch.size = 0;
+		}
+		
+		// ecrit un seul point pondere par cluster a la fin de la tache
+		@Override
+		public void cleanup(Context context) throws IOException, InterruptedException {
+			if(this.assignmentKernel != null)
+				this.flushBatch(context);
+			context.getCounter("megaProject.counters", "sse").increment(Math.round(this.sse * Timeline.SSE_SCALE));
+			context.getCounter("megaProject.counters", "recordsParsed").increment(this.recordsParsed);
+			context.getCounter("megaProject.counters", "parseTimeNanos").increment(this.parseTime);
+			context.getCounter("megaProject.counters", "distanceEvaluations").increment(this.distanceEvaluations);
+			if(this.centroidIndex != null) {
+				context.getCounter("megaProject.counters", "distanceEvaluations").increment(this.centroidIndex.getDistanceEvaluations());
+				context.getCounter("megaProject.counters", "distanceEvaluationsPruned").increment(this.centroidIndex.getPrunedEvaluations());
+			}
+			if(this.distanceBounds != null) {
+				this.distanceBounds.close();
+				context.getCounter("megaProject.counters", "distanceEvaluations").increment(this.distanceBounds.getDistanceEvaluations());
+				context.getCounter("megaProject.counters", "pointsSkippedByBounds").increment(this.distanceBounds.getSkippedPoints());
+			}
+			if(!this.inMapperCombining)
+				return;
+			
+			double[] coords;
+			for(int i = 0; i < this.counts.length; ++i) {
+				if(this.counts[i] == 0)
+					continue;
+				coords = new double[this.nbDimensions];
+				System.arraycopy(this.sums, i * this.nbDimensions, coords, 0, this.nbDimensions);
+				this.outputKey.set(i);
+				context.write(this.outputKey, new PointXDWritable(coords, this.counts[i]));
 			}
 		}
 	}
 	
-	public static class KmeansMapper extends Mapper<LongWritable, Text, ByteWritable, PointXDWritable> {
-		private ClusterPointWritable[] clusterPoints;
-		private int nbDimensions;
-		private int[] positions;
-		private PointXDWritable currentPoint;
-		private ClusterPointWritable nearestClusterPoint;
-		private double minDistance;
-		private double currentDistance;
-		private String line;
+	// mapper lisant les lignes du fichier texte d'entree
+	// avec "--mapThreads=N", le thread de la tache ne fait que lire les lignes : leur lecture et leur affectation sont reparties sur N threads
+	public static class KmeansMapper extends AbstractKmeansMapper<Text> {
+		private static final int LINES_PER_BATCH = 4096;
+		private List<LineBatch> batches = new ArrayList<LineBatch>();
+		
+		// indique si la ligne a cet offset doit etre sautee (ligne d'en-tete)
+		protected boolean isHeader(LongWritable key) {
+			return false;
+		}
 		
 		@Override
-		public void setup(Context context) throws IOException, InterruptedException {
-			Configuration conf = context.getConfiguration();
+		public void run(Context context) throws IOException, InterruptedException {
+			int nbThreads = getMapThreads(context.getConfiguration());
+			if(nbThreads <= 1) {
+				super.run(context);
+				return;
+			}
 			
-			this.nbDimensions = conf.getInt("megaProject.args.nbDimensions", 2);
-			this.positions = new int[this.nbDimensions];
-			for(int i = 0; i < this.nbDimensions; ++i)
-				this.positions[i] = conf.getInt("megaProject.args.position" + i, 0);
-			PointXDWritable.setNbDimensions(this.nbDimensions);
-			this.clusterPoints = getClusterPointsFromCache(context.getCacheFiles()[0], conf, conf.getInt("megaProject.args.nbClusters", 10));
+			this.setup(context);
+			final double[][] centroids = ClusterPointWritable.toCoordsArray(this.clusterPoints);
+			final boolean useCentroidIndex = context.getConfiguration().getBoolean("megaProject.options.centroidIndex", false);
+			try {
+				new BatchPipeline<LineBatch>(nbThreads, batch -> batch.process(centroids, this.positions, this.timeParsing)).run(context, key -> this.isHeader(key) || this.isSampledOut(), () -> {
+					LineBatch batch = new LineBatch(centroids, LINES_PER_BATCH, useCentroidIndex);
+					this.batches.add(batch);
+					return batch;
+				}, this::merge);
+			}
+			finally {
+				this.cleanup(context);
+			}
 		}
 		
 		@Override
-		public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
-			this.line = value.toString();
-			
-			this.currentPoint = new PointXDWritable(this.line, this.nbDimensions, this.positions);
-			this.minDistance = Double.MAX_VALUE;
-			
-			for(ClusterPointWritable clusterPoint : this.clusterPoints) {
-				this.currentDistance = this.currentPoint.distance(clusterPoint);
-				if(this.currentDistance < this.minDistance) {
-					this.minDistance = this.currentDistance;
-					this.nearestClusterPoint = clusterPoint;
-				}
+		public void cleanup(Context context) throws IOException, InterruptedException {
+			super.cleanup(context);
+			for(LineBatch batch : this.batches) {
+				if(batch.centroidIndex == null)
+					continue;
+				context.getCounter("megaProject.counters", "distanceEvaluations").increment(batch.centroidIndex.getDistanceEvaluations());
+				context.getCounter("megaProject.counters", "distanceEvaluationsPruned").increment(batch.centroidIndex.getPrunedEvaluations());
 			}
-				
-			context.write(new ByteWritable((byte) this.nearestClusterPoint.index), this.currentPoint);
+		}
+		
+		@Override
+		public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+			if(this.isHeader(key) || this.isSampledOut())
+				return;
+			long startTime = this.timeParsing ? System.nanoTime() : 0;
+			boolean parsed = this.currentPoint.set(value, this.positions);
+			if(this.timeParsing)
+				this.parseTime += System.nanoTime() - startTime;
+			if(parsed)
+				this.assign(context);
 		}
 	}
 	
-	public static class KmeansCombiner extends Reducer<ByteWritable, PointXDWritable, ByteWritable, PointXDWritable> {
+	// mapper lisant les points deja projetes du cache binaire (voir PointsPreprocessing) ou les points ponderes d'un coreset (voir Coreset)
+	public static class KmeansPointsMapper extends AbstractKmeansMapper<PointXDWritable> {
+		
+		@Override
+		public void map(LongWritable key, PointXDWritable value, Context context) throws IOException, InterruptedException {
+			if(this.isSampledOut())
+				return;
+			System.arraycopy(value.coords, 0, this.currentPoint.coords, 0, this.nbDimensions);
+			this.currentPoint.setPointsCounter(value.getPointsCounter());
+			this.assign(context);
+		}
+	}
+	
+	// mapper utilise pour le fichier "worldcitiespop.txt" dont la premiere ligne (a l'offset 0) doit etre sautee
+	public static class KmeansWCPMapper extends KmeansMapper {
+		
+		@Override
+		protected boolean isHeader(LongWritable key) {
+			return key.get() == 0;
+		}
+	}
+	
+	public static class KmeansCombiner extends Reducer<IntWritable, PointXDWritable, IntWritable, PointXDWritable> {
 		private double[] coords;
 		private PointXDWritable combinerPoint;
 		private int nbDimensions;
@@ -134,10 +450,11 @@ public class Main {
 		public void setup(Context context) throws IOException, InterruptedException {
 			this.nbDimensions = context.getConfiguration().getInt("megaProject.args.nbDimensions", 2);
 			PointXDWritable.setNbDimensions(this.nbDimensions);
+			PointXDWritable.setEncoding(WireEncoding.get(context.getConfiguration()));
 		}
 		
 		@Override
-		public void reduce(ByteWritable key, Iterable<PointXDWritable> values, Context context) throws IOException, InterruptedException {
+		public void reduce(IntWritable key, Iterable<PointXDWritable> values, Context context) throws IOException, InterruptedException {
 			this.coords = new double[this.nbDimensions];
 			this.nbPoints = 0;
 			for(PointXDWritable point : values) {
@@ -150,7 +467,30 @@ public class Main {
 		}
 	}
 	
-	public static class KmeansReducer extends Reducer<ByteWritable, PointXDWritable, PointXDWritable, Text> {
+	// repartit les clusters par intervalles d'indices contigus : le reducteur r recoit les clusters [r * nbClusters / nbReducers, (r + 1) * nbClusters / nbReducers[
+	public static class ClusterPartitioner extends Partitioner<IntWritable, PointXDWritable> implements Configurable {
+		private Configuration conf;
+		private int nbClusters;
+		
+		@Override
+		public void setConf(Configuration conf) {
+			this.conf = conf;
+			this.nbClusters = conf.getInt("megaProject.args.nbClusters", 10);
+		}
+		
+		@Override
+		public Configuration getConf() {
+			return this.conf;
+		}
+		
+		@Override
+		public int getPartition(IntWritable key, PointXDWritable value, int numPartitions) {
+			return (int) ((long) key.get() * numPartitions / this.nbClusters);
+		}
+	}
+	
+	// chaque reducteur n'ecrit que les clusterPoints qui ont change parmi les clusters qu'il a recus, le driver les fusionne ensuite (voir mergeClusterPoints)
+	public static class KmeansReducer extends Reducer<IntWritable, PointXDWritable, ClusterPointWritable, NullWritable> {
 		private ClusterPointWritable[] clusterPoints;
 		private double[] coords;
 		private ClusterPointWritable newCenter;
@@ -162,11 +502,12 @@ public class Main {
 			Configuration conf = context.getConfiguration();
 			this.nbDimensions = conf.getInt("megaProject.args.nbDimensions", 2);
 			PointXDWritable.setNbDimensions(this.nbDimensions);
+			PointXDWritable.setEncoding(WireEncoding.get(conf));
 			this.clusterPoints = getClusterPointsFromCache(context.getCacheFiles()[0], conf, conf.getInt("megaProject.args.nbClusters", 10));
 		}
 		
 		@Override
-		public void reduce(ByteWritable key, Iterable<PointXDWritable> values, Context context) throws IOException, InterruptedException {
+		public void reduce(IntWritable key, Iterable<PointXDWritable> values, Context context) throws IOException, InterruptedException {
 			this.coords = new double[this.nbDimensions];
 			this.nbPoints = 0;
 			for(PointXDWritable point : values) {
@@ -177,38 +518,78 @@ public class Main {
 			for(int i = 0; i < this.nbDimensions; ++i)
 				this.coords[i] /= this.nbPoints;
 			
-			this.newCenter = new ClusterPointWritable(this.coords, new ClusterPointWritable(key.toString()).index);
+			this.newCenter = new ClusterPointWritable(this.coords, key.get());
+			context.getCounter("megaProject.counters", "nonEmptyClusters").increment(1);
 			if(!this.newCenter.equals(this.clusterPoints[this.newCenter.index])) {
-				this.clusterPoints[this.newCenter.index] = this.newCenter;
 				context.getCounter("megaProject.counters", "clusterPointsChanged").increment(1);
+				context.write(this.newCenter, NullWritable.get());
 			}
 		}
-		
-		@Override
-		public void cleanup(Context context) throws IOException, InterruptedException {
-			writeClusterPointsIntoCache(context.getCacheFiles()[0], context.getConfiguration(), this.clusterPoints);
+	}
+	
+	// remplace les clusterPoints par ceux ecrits par les reducteurs dans les fichiers "part-r-*", les autres (inchanges ou vides) sont conserves
+	private static ClusterPointWritable[] mergeClusterPoints(FileSystem fs, Path outputPath, ClusterPointWritable[] clusterPoints) throws IOException {
+		ClusterPointWritable[] newClusterPoints = clusterPoints.clone();
+		ClusterPointWritable clusterPoint;
+		BufferedReader reader;
+		String line;
+		for(FileStatus status : fs.listStatus(outputPath)) {
+			if(!status.getPath().getName().startsWith("part-r-"))
+				continue;
+			reader = new BufferedReader(new InputStreamReader(fs.open(status.getPath())));
+			while((line = reader.readLine()) != null) {
+				clusterPoint = new ClusterPointWritable(line.trim());
+				newClusterPoints[clusterPoint.index] = clusterPoint;
+			}
+			reader.close();
 		}
+		return newClusterPoints;
+	}
+	
+	private static Path previousDistribPath(Path distribPath) {
+		return new Path(distribPath.getParent(), distribPath.getName() + ".previous");
 	}
 	
-	private static Job setJobConfiguration(Configuration conf, FileSystem fs, Path distribPath, Path inputPath, Path outputPath) throws IOException {
+	// les taches lisent les clusterPoints dans l'instantane snapshotPath, distribPath ne sert qu'a retrouver les clusterPoints precedents
+	private static Job setJobConfiguration(Configuration conf, FileSystem fs, Path snapshotPath, Path distribPath, Path inputPath, Path outputPath) throws IOException {
 		Job job = Job.getInstance(conf, "MegaProjectOfTheKillingDeath");
 		
-		job.addCacheFile(distribPath.toUri());
+		job.addCacheFile(snapshotPath.toUri());
+		
+		// en mode "bornes de distance", chaque tache ecrit son fichier de bornes directement : une seule tentative par bloc
+		if(conf.getBoolean("megaProject.options.distanceBounds", false)) {
+			Path previousDistribPath = previousDistribPath(distribPath);
+			if(fs.exists(previousDistribPath))
+				job.addCacheFile(previousDistribPath.toUri());
+			job.setMapSpeculativeExecution(false);
+		}
 
-		job.setNumReduceTasks(1);
+		job.setNumReduceTasks(conf.getInt("megaProject.options.reducers", 1));
+		
+		// en mode multi-thread, chaque tache map reserve autant de coeurs que de threads
+		if(conf.getInt("megaProject.options.mapThreads", 1) > 1 && AbstractKmeansMapper.getMapThreads(conf) > 1)
+			job.getConfiguration().setInt("mapreduce.map.cpu.vcores", conf.getInt("megaProject.options.mapThreads", 1));
 		job.setJarByClass(Main.class);
 		
-		job.setMapperClass(inputPath.getName().equals("worldcitiespop.txt") ? KmeansWCPMapper.class : KmeansMapper.class);
-		job.setMapOutputKeyClass(ByteWritable.class);
+		if(conf.getBoolean("megaProject.args.pointsInput", false)) {
+			job.setMapperClass(KmeansPointsMapper.class);
+			job.setInputFormatClass(PointsInputFormat.class);
+		}
+		else {
+			job.setMapperClass(inputPath.getName().equals("worldcitiespop.txt") ? KmeansWCPMapper.class : KmeansMapper.class);
+			job.setInputFormatClass(TextInputFormat.class);
+		}
+		job.setMapOutputKeyClass(IntWritable.class);
 		job.setMapOutputValueClass(PointXDWritable.class);
+		job.setSortComparatorClass(IntWritable.Comparator.class); // comparaison des cles sur leurs octets, sans deserialisation
+		job.setPartitionerClass(ClusterPartitioner.class);
 
 		job.setReducerClass(KmeansReducer.class);
-		job.setOutputKeyClass(PointXDWritable.class);
-		job.setOutputValueClass(Text.class);
+		job.setOutputKeyClass(ClusterPointWritable.class);
+		job.setOutputValueClass(NullWritable.class);
 		
 		job.setCombinerClass(KmeansCombiner.class);
 		
-		job.setInputFormatClass(TextInputFormat.class);
 		job.setOutputFormatClass(TextOutputFormat.class);
 		
 		FileInputFormat.addInputPath(job, inputPath);
@@ -220,15 +601,116 @@ public class Main {
 		return job;
 	}
 
-	public static void main(String[] args) throws Exception {
-		Configuration conf = new Configuration();
+	// boucle d'iterations jusqu'a stabilisation des clusterPoints, retourne le dernier job
+	// en mode echantillonne, les premieres iterations ne lisent qu'une fraction croissante des lignes puis, une fois les clusterPoints stables, on passe aux iterations completes
+	// si timeline n'est pas nul, une ligne de mesures y est ajoutee pour chaque iteration
+	// un instantane des clusterPoints est ecrit dans snapshotsPath avant la premiere iteration puis apres chacune, la numerotation commence a firstIteration
+	private static Job runIterations(Configuration conf, FileSystem fs, Path distribPath, Path snapshotsPath, Path inputPath, Path outputPath, ClusterPointWritable[] clusterPoints, int firstIteration, Timeline timeline) throws Exception {
+		boolean distanceBounds = conf.getBoolean("megaProject.options.distanceBounds", false);
+		Path previousDistribPath = previousDistribPath(distribPath);
+		Path boundsInputPath = new Path("distanceBoundsEven");
+		Path boundsOutputPath = new Path("distanceBoundsUneven");
+		Path swapPath;
+		if(distanceBounds) {
+			fs.delete(previousDistribPath, true);
+			fs.delete(boundsInputPath, true);
+			fs.delete(boundsOutputPath, true);
+		}
+		
+		double sampleFraction = conf.getDouble("megaProject.options.sampleFraction", 1);
+		double sampleGrowth = conf.getDouble("megaProject.options.sampleGrowth", 2);
+		int maxFullPasses = conf.getInt("megaProject.options.fullPasses", Integer.MAX_VALUE);
+		int fullPasses = 0;
+		int iteration = firstIteration;
+		long clusterPointsChanged;
+		Job job;
+		ClusterPointWritable[] previousClusterPoints;
+		long jobStartTime;
+		Path snapshotPath = new Path(snapshotsPath, CentroidSnapshot.fileName(0, iteration));
+		if(!fs.exists(snapshotPath))
+			CentroidSnapshot.write(fs, snapshotPath, ClusterPointWritable.toSnapshot(clusterPoints, iteration));
+		
+		long startTime = new Date().getTime();
+		while(true) {
+			conf.setDouble("megaProject.sample.fraction", sampleFraction);
+			conf.setInt("megaProject.sample.iteration", iteration++);
+			if(distanceBounds) {
+				conf.set("megaProject.bounds.input", boundsInputPath.toString());
+				conf.set("megaProject.bounds.output", boundsOutputPath.toString());
+			}
+			job = setJobConfiguration(conf, fs, snapshotPath, distribPath, inputPath, outputPath);
+			jobStartTime = new Date().getTime();
+			job.waitForCompletion(true);
+			clusterPointsChanged = job.getCounters().findCounter("megaProject.counters", "clusterPointsChanged").getValue();
+			
+			if(!job.isSuccessful())
+				break;
+			
+			ClusterPointWritable.displayClusterPoints(clusterPoints);
+			previousClusterPoints = clusterPoints;
+			clusterPoints = mergeClusterPoints(fs, outputPath, clusterPoints);
+			writeClusterPointsIntoCache(distribPath.toUri(), conf, clusterPoints);
+			snapshotPath = new Path(snapshotsPath, CentroidSnapshot.fileName(0, iteration));
+			CentroidSnapshot.write(fs, snapshotPath, ClusterPointWritable.toSnapshot(clusterPoints, iteration));
+			ClusterPointWritable.displayClusterPoints(clusterPoints);
+			
+			// les bornes ecrites par ce job seront relues au suivant avec les clusterPoints qui ont servi a les calculer
+			if(distanceBounds) {
+				writeClusterPointsIntoCache(previousDistribPath.toUri(), conf, previousClusterPoints);
+				fs.delete(boundsInputPath, true);
+				swapPath = boundsInputPath;
+				boundsInputPath = boundsOutputPath;
+				boundsOutputPath = swapPath;
+			}
+			
+			System.out.println("Execution time : " + ((float) (new Date().getTime() - startTime) / 1000) + " seconds.");
+			
+			if(timeline != null) {
+				Map<String, Object> row = timeline.newRow();
+				row.put("iteration", iteration - 1);
+				row.put("sampleFraction", sampleFraction);
+				row.put("timeMs", new Date().getTime() - jobStartTime);
+				Timeline.addCounters(row, job.getCounters());
+				Timeline.addDrift(row, ClusterPointWritable.toCoordsArray(previousClusterPoints), ClusterPointWritable.toCoordsArray(clusterPoints));
+				row.put("emptyClusters", clusterPoints.length - job.getCounters().findCounter("megaProject.counters", "nonEmptyClusters").getValue());
+				timeline.write();
+			}
+			
+			if(sampleFraction < 1) {
+				System.out.println("Sample fraction : " + sampleFraction);
+				sampleFraction = clusterPointsChanged == 0 ? 1 : Math.min(1, sampleFraction * sampleGrowth);
+			}
+			else if(clusterPointsChanged == 0 || ++fullPasses >= maxFullPasses)
+				break;
+		}
+		
+		if(distanceBounds) {
+			fs.delete(previousDistribPath, true);
+			fs.delete(boundsInputPath, true);
+		}
+		return job;
+	}
+	
+	// lance l'algorithme complet avec la configuration donnee et retourne le code de sortie du programme
+	public static int run(Configuration conf, String[] args) throws Exception {
 		FileSystem fs = FileSystem.get(conf);
 		
+		args = Options.parse(conf, args);
+		WireEncoding.record(conf);
 		if(args.length < 5) {
-			System.out.println("Usage : <command> <inputFile> <outputFile> <nbClusters> <position1> ... <positionN>");
-			System.exit(0);
+			System.out.println("Usage : <command> [--inMapperCombining] [--centroidIndex] [--distanceBounds] [--batchKernel [--batchSize=N]] [--init=firstLines|kmeansII|canopy [--initRounds=N] [--oversampling=X] [--canopyT2=X] [--seed=N]] [--sampleFraction=X [--sampleGrowth=X] [--compareFullBatch]] [--fullPasses=N] [--binaryCache | --coreset=exact|grid [--cellSize=X]] [--mapThreads=N] [--reducers=N] [--metrics=file.json|file.csv] [--encoding=double|float|fixed [--fixedScale=X]] [--varintCounters] [--snapshots=dir] [--resume] <inputFile> <outputFile> <nbClusters> <position1> ... <positionN>");
+			return 0;
 		}
 		
+		// le noyau par blocs remplace la recherche du plus proche : il ne se combine ni avec l'index ni avec les bornes,
+		// et ses blocs restent dans le thread de la tache (pas de repartition avec "--mapThreads")
+		if(conf.getBoolean("megaProject.options.batchKernel", false) && conf.getBoolean("megaProject.options.centroidIndex", false))
+			throw new IllegalArgumentException("--batchKernel cannot be combined with --centroidIndex");
+		if(conf.getBoolean("megaProject.options.batchKernel", false) && conf.getBoolean("megaProject.options.distanceBounds", false))
+			throw new IllegalArgumentException("--batchKernel cannot be combined with --distanceBounds");
+		if(conf.getBoolean("megaProject.options.batchKernel", false) && conf.getInt("megaProject.options.mapThreads", 1) != 1)
+			throw new IllegalArgumentException("--batchKernel cannot be combined with --mapThreads");
+		
 		int nbClusters = Integer.parseInt(args[2]);
 		int nbDimensions = args.length - 3;
 		int[] positions = new int[nbDimensions];
@@ -242,8 +724,25 @@ public class Main {
 		Path inputPath = new Path(args[0]);
 		Path outputPath = new Path(args[1]);
 		Path distribPath = new Path("distributedCache");
+		Path snapshotsPath = new Path(conf.get("megaProject.options.snapshots", "snapshots"));
 		
-		ClusterPointWritable[] clusterPoints = ClusterPointWritable.initiateClusterPoints(fs.open(inputPath), nbClusters, nbDimensions, positions);
+		conf.setBoolean("megaProject.args.skipFirstLine", inputPath.getName().equals("worldcitiespop.txt"));
+		
+		// avec "--resume", on repart du dernier instantane valide au lieu de reinitialiser les clusterPoints
+		ClusterPointWritable[] clusterPoints;
+		int firstIteration = 0;
+		CentroidSnapshot snapshot = conf.getBoolean("megaProject.options.resume", false) ? CentroidSnapshot.findLatest(fs, snapshotsPath, nbDimensions) : null;
+		if(snapshot != null && snapshot.getNbCentroids() == nbClusters) {
+			clusterPoints = ClusterPointWritable.fromSnapshot(snapshot);
+			firstIteration = snapshot.iteration;
+			System.out.println("Resuming from iteration " + firstIteration);
+		}
+		else {
+			if(conf.getBoolean("megaProject.options.resume", false))
+				System.out.println("No valid snapshot in " + snapshotsPath + ", starting over");
+			fs.delete(snapshotsPath, true);
+			clusterPoints = Initialization.initiateClusterPoints(conf, fs, inputPath, nbClusters, nbDimensions, positions);
+		}
 		ClusterPointWritable.displayClusterPoints(clusterPoints);
 		
 		FileSystem distribFs = FileSystem.get(distribPath.toUri(), conf);
@@ -251,23 +750,63 @@ public class Main {
 		ClusterPointWritable.writeIntoFile(clusterPoints, os);
 		os.close();
 		
-		boolean hasFailed = false;
-		long clusterPointsChanged = 1;
-		Job job;
+		// les iterations lisent un coreset ou le cache binaire au lieu du fichier texte, qui n'est alors lu qu'une seule fois
+		Coreset.Report coresetReport = null;
+		if(conf.get("megaProject.options.coreset") != null) {
+			Path coresetPath = new Path("coreset");
+			if((coresetReport = Coreset.run(conf, fs, inputPath, coresetPath)) == null)
+				return 1;
+			System.out.println(coresetReport);
+			inputPath = coresetPath;
+			conf.setBoolean("megaProject.args.pointsInput", true);
+		}
+		else if(conf.getBoolean("megaProject.options.binaryCache", false)) {
+			Path pointsCachePath = new Path("pointsCache");
+			if(!PointsPreprocessing.run(conf, fs, inputPath, pointsCachePath))
+				return 1;
+			inputPath = pointsCachePath;
+			conf.setBoolean("megaProject.args.pointsInput", true);
+		}
+		
+		// chronologie des mesures de chaque iteration, reecrite apres chaque job
+		Timeline timeline = conf.get("megaProject.options.metrics") != null ? new Timeline(fs, new Path(conf.get("megaProject.options.metrics"))) : null;
 		
 		long startTime = new Date().getTime();
-		while(clusterPointsChanged > 0) {
-			job = setJobConfiguration(conf, fs, distribPath, inputPath, outputPath);
-			hasFailed = job.waitForCompletion(true);
-			clusterPointsChanged = job.getCounters().findCounter("megaProject.counters", "clusterPointsChanged").getValue();
+		Job job = runIterations(conf, fs, distribPath, snapshotsPath, inputPath, outputPath, clusterPoints, firstIteration, timeline);
+		boolean succeeded = job.isSuccessful();
+		double sse = job.getCounters().findCounter("megaProject.counters", "sse").getValue() / Timeline.SSE_SCALE;
+		System.out.println("SSE : " + sse);
+		if(coresetReport != null)
+			System.out.println("SSE on the full data : at most " + (sse + coresetReport.quantizationError));
+		
+		// comparaison avec un k-means complet lance depuis les memes clusterPoints initiaux, le resultat du mode echantillonne est conserve
+		if(conf.getDouble("megaProject.options.sampleFraction", 1) < 1 && conf.getBoolean("megaProject.options.compareFullBatch", false)) {
+			float sampledTime = (float) (new Date().getTime() - startTime) / 1000;
+			ClusterPointWritable[] sampledClusterPoints = getClusterPointsFromCache(distribPath.toUri(), conf, nbClusters);
+			Configuration fullBatchConf = new Configuration(conf);
+			fullBatchConf.setDouble("megaProject.options.sampleFraction", 1);
+			writeClusterPointsIntoCache(distribPath.toUri(), fullBatchConf, clusterPoints);
 			
-			ClusterPointWritable.displayClusterPoints(clusterPoints);
-			clusterPoints = getClusterPointsFromCache(distribPath.toUri(), conf, nbClusters);
-			ClusterPointWritable.displayClusterPoints(clusterPoints);
+			startTime = new Date().getTime();
+			Path fullBatchSnapshotsPath = new Path(snapshotsPath, "fullBatch");
+			fs.delete(fullBatchSnapshotsPath, true);
+			Job fullBatchJob = runIterations(fullBatchConf, fs, distribPath, fullBatchSnapshotsPath, inputPath, outputPath, clusterPoints, 0, timeline);
+			float fullBatchTime = (float) (new Date().getTime() - startTime) / 1000;
+			double fullBatchSse = fullBatchJob.getCounters().findCounter("megaProject.counters", "sse").getValue() / Timeline.SSE_SCALE;
+			writeClusterPointsIntoCache(distribPath.toUri(), conf, sampledClusterPoints);
 			
-			System.out.println("Execution time : " + ((float) (new Date().getTime() - startTime) / 1000) + " seconds.");
+			System.out.println("Sampled mode : SSE = " + sse + ", " + sampledTime + " seconds.");
+			System.out.println("Full batch mode : SSE = " + fullBatchSse + ", " + fullBatchTime + " seconds.");
+			System.out.println("SSE difference : " + (sse - fullBatchSse) + " (" + (100 * (sse - fullBatchSse) / fullBatchSse) + " %)");
 		}
 		
-		System.exit(hasFailed ? 1 : 0);
+		if(conf.getBoolean("megaProject.args.pointsInput", false))
+			fs.delete(inputPath, true);
+		
+		return succeeded ? 0 : 1;
+	}
+	
+	public static void main(String[] args) throws Exception {
+		System.exit(run(new Configuration(), args));
 	}
 }
\ No newline at end of file
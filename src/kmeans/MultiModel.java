@@ -0,0 +1,331 @@
+package kmeans;
+
+// java -cp kmeans.jar:$(hadoop classpath) kmeans.MultiModel [--restarts=N] [--seed=N] /worldcitiespop.txt models 2,4,8,16 5 6
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+import common.CentroidIndex;
+import common.CentroidSnapshot;
+import common.Options;
+import common.Timeline;
+import common.WireEncoding;
+
+// plusieurs k-means independants (differentes valeurs de K et/ou plusieurs initialisations) entraines par les memes jobs :
+// chaque ligne n'est lue qu'une fois par iteration et affectee aux clusterPoints de tous les modeles pas encore stabilises
+// la cle emise est celle d'un cluster de tous les modeles mis bout a bout : premier cluster du modele + indice du cluster dans le modele
+// chaque modele s'arrete des que ses clusterPoints sont stables (au sens de ClusterPointWritable.equals), les autres continuent
+// les clusterPoints initiaux de chaque modele sont tires par k-means++ sur un echantillon commun lu sans job, avec une graine par initialisation
+// le repertoire de sortie contient les clusterPoints de chaque modele (format de Main) et "summary.csv" (K, initialisation, iterations, SSE)
+public class MultiModel {
+
+	// un modele : ses clusterPoints et son etat de convergence
+	static class Model {
+		final int nbClusters;
+		final int restart;
+		final long seed;
+		double[][] centroids;
+		int iterations;
+		boolean converged;
+		double sse;
+
+		Model(int nbClusters, int restart, long seed, double[][] centroids) {
+			this.nbClusters = nbClusters;
+			this.restart = restart;
+			this.seed = seed;
+			this.centroids = centroids;
+		}
+
+		String getName() {
+			return "k" + this.nbClusters + "-r" + this.restart;
+		}
+	}
+
+	// affecte chaque point a son clusterPoint le plus proche dans chaque modele actif, les sommes par cluster sont combinees dans le mapper
+	public static class MultiModelMapper extends Mapper<LongWritable, Text, IntWritable, PointXDWritable> {
+		private PointXDWritable currentPoint;
+		private int[] positions;
+		private int nbDimensions;
+		private boolean skipFirstLine;
+		private int[] offsets; // premier cluster de chaque modele dans la cle
+		private CentroidIndex[] indexes; // null pour un modele deja stabilise
+		private double[] sums; // sommes des coordonnees de tous les clusters, a plat (cle * nbDimensions + dimension)
+		private int[] counts;
+		private double[] sse;
+		private long recordsParsed;
+
+		@Override
+		public void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+			this.nbDimensions = conf.getInt("megaProject.args.nbDimensions", 2);
+			this.positions = new int[this.nbDimensions];
+			for(int i = 0; i < this.nbDimensions; ++i)
+				this.positions[i] = conf.getInt("megaProject.args.position" + i, 0);
+			PointXDWritable.setNbDimensions(this.nbDimensions);
+			PointXDWritable.setEncoding(WireEncoding.DEFAULT); // les sommes restent en doubles
+			this.currentPoint = new PointXDWritable();
+			this.skipFirstLine = conf.getBoolean("megaProject.args.skipFirstLine", false);
+
+			// les clusterPoints de tous les modeles sont dans un seul instantane, le chemin de chacun est (modele, cluster)
+			InputStream is = FileSystem.get(context.getCacheFiles()[0], conf).open(new Path(context.getCacheFiles()[0]));
+			CentroidSnapshot snapshot = CentroidSnapshot.read(is);
+			is.close();
+			List<double[][]> models = splitModels(snapshot);
+			this.offsets = new int[models.size()];
+			this.indexes = new CentroidIndex[models.size()];
+			int[] active = conf.getInts("megaProject.multiModel.active");
+			for(int m : active)
+				this.indexes[m] = new CentroidIndex(models.get(m));
+			for(int m = 1; m < models.size(); ++m)
+				this.offsets[m] = this.offsets[m - 1] + models.get(m - 1).length;
+			this.sums = new double[snapshot.getNbCentroids() * this.nbDimensions];
+			this.counts = new int[snapshot.getNbCentroids()];
+			this.sse = new double[models.size()];
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+			if((this.skipFirstLine && key.get() == 0) || !this.currentPoint.set(value, this.positions))
+				return;
+			this.recordsParsed++;
+			int cluster;
+			for(int m = 0; m < this.indexes.length; ++m) {
+				if(this.indexes[m] == null)
+					continue;
+				cluster = this.offsets[m] + this.indexes[m].nearest(this.currentPoint.coords);
+				this.sse[m] += this.indexes[m].getLastSquaredDistance();
+				for(int d = 0; d < this.nbDimensions; ++d)
+					this.sums[cluster * this.nbDimensions + d] += this.currentPoint.coords[d];
+				this.counts[cluster]++;
+			}
+		}
+
+		@Override
+		public void cleanup(Context context) throws IOException, InterruptedException {
+			context.getCounter("megaProject.counters", "recordsParsed").increment(this.recordsParsed);
+			for(int m = 0; m < this.indexes.length; ++m) {
+				if(this.indexes[m] == null)
+					continue;
+				context.getCounter("megaProject.multiModel", "sse" + m).increment(Math.round(this.sse[m] * Timeline.SSE_SCALE));
+				context.getCounter("megaProject.counters", "distanceEvaluations").increment(this.indexes[m].getDistanceEvaluations());
+				context.getCounter("megaProject.counters", "distanceEvaluationsPruned").increment(this.indexes[m].getPrunedEvaluations());
+			}
+
+			IntWritable outputKey = new IntWritable();
+			double[] coords;
+			for(int i = 0; i < this.counts.length; ++i) {
+				if(this.counts[i] == 0)
+					continue;
+				coords = new double[this.nbDimensions];
+				System.arraycopy(this.sums, i * this.nbDimensions, coords, 0, this.nbDimensions);
+				outputKey.set(i);
+				context.write(outputKey, new PointXDWritable(coords, this.counts[i]));
+			}
+		}
+	}
+
+	// clusterPoints de chaque modele, dans l'ordre des chemins (modele, cluster) de l'instantane
+	static List<double[][]> splitModels(CentroidSnapshot snapshot) {
+		List<double[][]> models = new ArrayList<double[][]>();
+		int start = 0;
+		for(int i = 1; i <= snapshot.getNbCentroids(); ++i) {
+			if(i < snapshot.getNbCentroids() && snapshot.paths[i][0] == snapshot.paths[start][0])
+				continue;
+			models.add(Arrays.copyOfRange(snapshot.coords, start, i));
+			start = i;
+		}
+		return models;
+	}
+
+	private static CentroidSnapshot toSnapshot(List<Model> models, int iteration) {
+		List<double[]> coords = new ArrayList<double[]>();
+		List<int[]> paths = new ArrayList<int[]>();
+		for(int m = 0; m < models.size(); ++m) {
+			for(int k = 0; k < models.get(m).nbClusters; ++k) {
+				coords.add(models.get(m).centroids[k]);
+				paths.add(new int[]{m, k});
+			}
+		}
+		return new CentroidSnapshot(0, iteration, coords.toArray(new double[coords.size()][]), paths.toArray(new int[paths.size()][]));
+	}
+
+	private static ClusterPointWritable[] toClusterPoints(double[][] centroids) {
+		ClusterPointWritable[] clusterPoints = new ClusterPointWritable[centroids.length];
+		for(int i = 0; i < centroids.length; ++i)
+			clusterPoints[i] = new ClusterPointWritable(centroids[i].clone(), i);
+		return clusterPoints;
+	}
+
+	// une iteration de tous les modeles actifs : un seul job, puis mise a jour des clusterPoints et de la convergence de chaque modele
+	private static void runIteration(Configuration conf, FileSystem fs, Path inputPath, Path workPath, List<Model> models, List<Integer> active, int iteration) throws Exception {
+		int nbDimensions = conf.getInt("megaProject.args.nbDimensions", 2);
+		Path centroidsPath = new Path(workPath, "centroids");
+		Path outputPath = new Path(workPath, "sums");
+		CentroidSnapshot.write(fs, centroidsPath, toSnapshot(models, iteration));
+
+		Configuration jobConf = new Configuration(conf);
+		StringBuilder activeList = new StringBuilder();
+		for(int m : active)
+			activeList.append(activeList.length() == 0 ? "" : ",").append(m);
+		jobConf.set("megaProject.multiModel.active", activeList.toString());
+		// un compteur de SSE par modele, en plus des compteurs de Hadoop
+		jobConf.setInt("mapreduce.job.counters.max", Math.max(jobConf.getInt("mapreduce.job.counters.max", 120), models.size() + 100));
+
+		Job job = Job.getInstance(jobConf, "MegaProjectOfTheKillingDeath - multi-model iteration " + iteration);
+		job.setJarByClass(MultiModel.class);
+		job.addCacheFile(centroidsPath.toUri());
+		job.setMapperClass(MultiModelMapper.class);
+		job.setCombinerClass(Main.KmeansCombiner.class);
+		job.setReducerClass(Main.KmeansCombiner.class); // somme par cle, quelle que soit sa signification
+		job.setNumReduceTasks(conf.getInt("megaProject.options.reducers", 1));
+		job.setMapOutputKeyClass(IntWritable.class);
+		job.setMapOutputValueClass(PointXDWritable.class);
+		job.setSortComparatorClass(IntWritable.Comparator.class);
+		job.setOutputKeyClass(IntWritable.class);
+		job.setOutputValueClass(PointXDWritable.class);
+		job.setInputFormatClass(TextInputFormat.class);
+		job.setOutputFormatClass(SequenceFileOutputFormat.class);
+		FileInputFormat.addInputPath(job, inputPath);
+		if(fs.exists(outputPath))
+			fs.delete(outputPath, true);
+		FileOutputFormat.setOutputPath(job, outputPath);
+		if(!job.waitForCompletion(true))
+			throw new IOException("multi-model iteration " + iteration + " failed");
+
+		// nouveaux clusterPoints : barycentres des sommes, un cluster vide garde son clusterPoint
+		int[] offsets = new int[models.size() + 1];
+		double[][][] newCentroids = new double[models.size()][][];
+		for(int m = 0; m < models.size(); ++m) {
+			offsets[m + 1] = offsets[m] + models.get(m).nbClusters;
+			newCentroids[m] = new double[models.get(m).nbClusters][];
+			for(int k = 0; k < newCentroids[m].length; ++k)
+				newCentroids[m][k] = models.get(m).centroids[k].clone();
+		}
+		PointXDWritable.setNbDimensions(nbDimensions);
+		PointXDWritable.setEncoding(WireEncoding.DEFAULT);
+		IntWritable key = new IntWritable();
+		PointXDWritable value = new PointXDWritable();
+		int m;
+		for(FileStatus status : fs.listStatus(outputPath)) {
+			if(!status.getPath().getName().startsWith("part-"))
+				continue;
+			SequenceFile.Reader reader = new SequenceFile.Reader(jobConf, SequenceFile.Reader.file(status.getPath()));
+			while(reader.next(key, value)) {
+				m = Arrays.binarySearch(offsets, key.get());
+				m = m >= 0 ? m : -m - 2;
+				for(int d = 0; d < nbDimensions; ++d)
+					newCentroids[m][key.get() - offsets[m]][d] = value.coords[d] / value.getPointsCounter();
+			}
+			reader.close();
+		}
+		fs.delete(outputPath, true);
+
+		Counters counters = job.getCounters();
+		Model model;
+		for(int i : active) {
+			model = models.get(i);
+			model.sse = counters.findCounter("megaProject.multiModel", "sse" + i).getValue() / Timeline.SSE_SCALE;
+			model.iterations++;
+			model.converged = Arrays.equals(toClusterPoints(model.centroids), toClusterPoints(newCentroids[i]));
+			model.centroids = newCentroids[i];
+		}
+	}
+
+	public static int run(Configuration conf, String[] args) throws Exception {
+		FileSystem fs = FileSystem.get(conf);
+		args = Options.parse(conf, args);
+		if(args.length < 4) {
+			System.out.println("Usage : <command> [--restarts=N] [--seed=N] [--initSample=N] [--maxIterations=N] [--reducers=N] <inputFile> <outputDir> <nbClusters1,nbClusters2,...> <position1> ... <positionN>");
+			return 0;
+		}
+
+		Path inputPath = new Path(args[0]);
+		Path outputPath = new Path(args[1]);
+		int nbDimensions = args.length - 3;
+		int[] positions = new int[nbDimensions];
+		for(int i = 3; i < args.length; ++i) {
+			positions[i - 3] = Integer.valueOf(args[i]);
+			conf.setInt("megaProject.args.position" + (i - 3), positions[i - 3]);
+		}
+		conf.setInt("megaProject.args.nbDimensions", nbDimensions);
+		conf.setBoolean("megaProject.args.skipFirstLine", inputPath.getName().equals("worldcitiespop.txt"));
+		PointXDWritable.setNbDimensions(nbDimensions);
+
+		int restarts = conf.getInt("megaProject.options.restarts", 1);
+		long seed = conf.getLong("megaProject.options.seed", 0);
+		int maxIterations = conf.getInt("megaProject.options.maxIterations", 50);
+
+		// un modele par valeur de K et par initialisation, tous initialises sur le meme echantillon
+		List<double[]> sample = Initialization.samplePoints(fs, inputPath, positions, conf.getInt("megaProject.options.initSample", 1000), new Random(seed));
+		long[] weights = new long[sample.size()];
+		Arrays.fill(weights, 1);
+		List<Model> models = new ArrayList<Model>();
+		for(String nbClusters : args[2].split(","))
+			for(int restart = 0; restart < restarts; ++restart)
+				models.add(new Model(Integer.parseInt(nbClusters.trim()), restart, seed + restart, ClusterPointWritable.toCoordsArray(Initialization.reduceCandidates(sample, weights, Integer.parseInt(nbClusters.trim()), new Random(seed + restart)))));
+		System.out.println(models.size() + " models");
+
+		Path workPath = new Path(outputPath, "_work");
+		fs.delete(outputPath, true);
+		List<Integer> active = new ArrayList<Integer>();
+		long startTime = System.currentTimeMillis();
+		for(int iteration = 0; iteration < maxIterations; ++iteration) {
+			active.clear();
+			for(int m = 0; m < models.size(); ++m)
+				if(!models.get(m).converged)
+					active.add(m);
+			if(active.isEmpty())
+				break;
+			runIteration(conf, fs, inputPath, workPath, models, active, iteration);
+			System.out.println("Iteration " + iteration + " : " + active.size() + " active models, " + ((float) (System.currentTimeMillis() - startTime) / 1000) + " seconds.");
+		}
+		fs.delete(workPath, true);
+
+		// clusterPoints de chaque modele et resume, la meilleure initialisation de chaque K est celle de plus petite SSE
+		FSDataOutputStream os = fs.create(new Path(outputPath, "summary.csv"), true);
+		os.writeBytes("model,nbClusters,restart,seed,iterations,converged,sse\n");
+		for(Model model : models) {
+			os.writeBytes(model.getName() + "," + model.nbClusters + "," + model.restart + "," + model.seed + "," + model.iterations + "," + model.converged + "," + model.sse + "\n");
+			FSDataOutputStream modelOs = fs.create(new Path(outputPath, model.getName()), true);
+			ClusterPointWritable.writeIntoFile(toClusterPoints(model.centroids), modelOs);
+			modelOs.close();
+		}
+		os.close();
+
+		Model best = null;
+		for(int m = 0; m < models.size(); ++m) {
+			if(best == null || models.get(m).nbClusters != best.nbClusters)
+				best = models.get(m);
+			else if(models.get(m).sse < best.sse)
+				best = models.get(m);
+			if(m == models.size() - 1 || models.get(m + 1).nbClusters != best.nbClusters)
+				System.out.println("K = " + best.nbClusters + " : SSE = " + best.sse + " (" + best.getName() + ", " + best.iterations + " iterations" + (best.converged ? "" : ", not converged") + ")");
+		}
+		return 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.exit(run(new Configuration(), args));
+	}
+}
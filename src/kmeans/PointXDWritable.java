@@ -4,10 +4,15 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
+import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.Writable;
 
+import common.TextCoordsParser;
+import common.WireEncoding;
+
 public class PointXDWritable implements Writable {
 	private static int nbDimensions;
+	protected static WireEncoding encoding = WireEncoding.DEFAULT;
 	protected double[] coords;
 	private int pointsCounter;
 	
@@ -33,22 +38,59 @@ public class PointXDWritable implements Writable {
 		this.pointsCounter = 1;
 	}
 	
+	// relit les coordonnees du point depuis une ligne sans allouer de nouvel objet, retourne false si la ligne est incomplete
+	public boolean set(Text line, int[] positions) {
+		this.pointsCounter = 1;
+		return TextCoordsParser.parse(line, positions, this.coords, -1);
+	}
+	
 	public int getPointsCounter() {
 		return this.pointsCounter;
 	}
 	
+	public void setPointsCounter(int pointsCounter) {
+		this.pointsCounter = pointsCounter;
+	}
+	
+	// avec un encodage compact, le compteur est ecrit en premier et vaut -1 pour un point seul dont les coordonnees sont compactes
+	// les points agreges (sommes de coordonnees du combiner) restent toujours en doubles
 	@Override
 	public void readFields(DataInput in) throws IOException {
-		for(int i = 0; i < nbDimensions; ++i)
-			this.coords[i] = in.readDouble();
-		this.pointsCounter = in.readInt();
+		if(encoding.isDefault()) {
+			for(int i = 0; i < nbDimensions; ++i)
+				this.coords[i] = in.readDouble();
+			this.pointsCounter = in.readInt();
+			return;
+		}
+		
+		int counter = encoding.readCounter(in);
+		if(counter == -1) {
+			encoding.readCompactCoords(in, this.coords, nbDimensions);
+			this.pointsCounter = 1;
+		}
+		else {
+			for(int i = 0; i < nbDimensions; ++i)
+				this.coords[i] = in.readDouble();
+			this.pointsCounter = counter;
+		}
 	}
 
 	@Override
 	public void write(DataOutput out) throws IOException {
-		for(double coord : this.coords)
-			out.writeDouble(coord);
-		out.writeInt(this.pointsCounter);
+		if(encoding.isDefault()) {
+			for(double coord : this.coords)
+				out.writeDouble(coord);
+			out.writeInt(this.pointsCounter);
+			return;
+		}
+		
+		boolean compact = this.pointsCounter == 1 && encoding.isCompactable(this.coords);
+		encoding.writeCounter(out, compact ? -1 : this.pointsCounter);
+		if(compact)
+			encoding.writeCompactCoords(out, this.coords);
+		else
+			for(double coord : this.coords)
+				out.writeDouble(coord);
 	}
 	
 	public double distance(PointXDWritable point) {
@@ -61,4 +103,8 @@ public class PointXDWritable implements Writable {
 	protected static void setNbDimensions(int nbDim) {
 		nbDimensions = nbDim;
 	}
+	
+	protected static void setEncoding(WireEncoding wireEncoding) {
+		encoding = wireEncoding;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+package kmeans;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// format binaire des points projetes : un en-tete (dimensions, options, nombre de lignes) suivi des coordonnees en doubles, ligne par ligne
+// chaque ligne a la meme taille, un bloc du fichier peut donc etre lu a partir de n'importe quelle ligne
+public class PointsFile {
+	public static final int MAGIC = 0x4B4D5031;
+	public static final int HEADER_SIZE = 20;
+	public static final int FLAG_WEIGHTED = 1; // chaque ligne est suivie du poids du point (entier)
+
+	public static class Header {
+		public int nbDimensions;
+		public int flags;
+		public long nbRows;
+
+		public Header(int nbDimensions, int flags, long nbRows) {
+			this.nbDimensions = nbDimensions;
+			this.flags = flags;
+			this.nbRows = nbRows;
+		}
+
+		public boolean isWeighted() {
+			return (this.flags & FLAG_WEIGHTED) != 0;
+		}
+
+		public int getRecordSize() {
+			return 8 * this.nbDimensions + (this.isWeighted() ? 4 : 0);
+		}
+	}
+
+	public static Header readHeader(DataInput in) throws IOException {
+		if(in.readInt() != MAGIC)
+			throw new IOException("not a points file");
+		return new Header(in.readInt(), in.readInt(), in.readLong());
+	}
+
+	public static void writeHeader(DataOutput out, Header header) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(header.nbDimensions);
+		out.writeInt(header.flags);
+		out.writeLong(header.nbRows);
+	}
+
+	// le nombre de lignes n'est connu qu'a la fin : les lignes passent par un fichier local temporaire
+	// puis sont recopiees derriere l'en-tete a la fermeture
+	public static class Writer {
+		private final OutputStream os;
+		private final File tmpFile;
+		private final DataOutputStream tmpOut;
+		private final Header header;
+
+		public Writer(OutputStream os, int nbDimensions, int flags) throws IOException {
+			this.os = os;
+			this.header = new Header(nbDimensions, flags, 0);
+			this.tmpFile = File.createTempFile("points", ".tmp");
+			this.tmpOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.tmpFile), 1 << 16));
+		}
+
+		public void write(double[] coords, int weight) throws IOException {
+			for(int i = 0; i < this.header.nbDimensions; ++i)
+				this.tmpOut.writeDouble(coords[i]);
+			if(this.header.isWeighted())
+				this.tmpOut.writeInt(weight);
+			this.header.nbRows++;
+		}
+
+		public void close() throws IOException {
+			this.tmpOut.close();
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(this.os, 1 << 16));
+			writeHeader(out, this.header);
+			InputStream in = new BufferedInputStream(new FileInputStream(this.tmpFile), 1 << 16);
+			byte[] buffer = new byte[1 << 16];
+			int length;
+			while((length = in.read(buffer)) > 0)
+				out.write(buffer, 0, length);
+			in.close();
+			out.close();
+			this.tmpFile.delete();
+		}
+	}
+
+	// lecture sequentielle d'un fichier complet, utilisee hors de MapReduce
+	public static class Reader {
+		private final DataInputStream in;
+		private final Header header;
+		private long rowIndex;
+
+		public Reader(InputStream is) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(is, 1 << 16));
+			this.header = readHeader(this.in);
+		}
+
+		public Header getHeader() {
+			return this.header;
+		}
+
+		// lit la ligne suivante dans coords et retourne son poids, ou 0 a la fin du fichier
+		public int next(double[] coords) throws IOException {
+			if(this.rowIndex++ >= this.header.nbRows)
+				return 0;
+			for(int i = 0; i < this.header.nbDimensions; ++i)
+				coords[i] = this.in.readDouble();
+			return this.header.isWeighted() ? this.in.readInt() : 1;
+		}
+
+		public void close() throws IOException {
+			this.in.close();
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package kmeans;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+import common.FixedRecordInputFormat;
+
+// lit les fichiers de points binaires (voir PointsFile), la cle est le numero de ligne et la valeur le point deja decode
+// le decoupage en blocs est celui de FixedRecordInputFormat
+public class PointsInputFormat extends FixedRecordInputFormat<PointXDWritable> {
+
+	@Override
+	public RecordReader<LongWritable, PointXDWritable> createRecordReader(InputSplit split, TaskAttemptContext context) {
+		return new PointsRecordReader();
+	}
+
+	public static class PointsRecordReader extends FixedRecordReader<PointXDWritable> {
+		private PointsFile.Header header;
+
+		public PointsRecordReader() {
+			super(PointsFile.HEADER_SIZE);
+		}
+
+		@Override
+		protected int readHeader(DataInput in, Path path, Configuration conf) throws IOException {
+			this.header = PointsFile.readHeader(in);
+			this.value = new PointXDWritable(new double[this.header.nbDimensions], 1);
+			return this.header.getRecordSize();
+		}
+
+		@Override
+		protected long getNbRecords() {
+			return this.header.nbRows;
+		}
+
+		@Override
+		protected void readRecord(DataInput in, long index) throws IOException {
+			for(int i = 0; i < this.header.nbDimensions; ++i)
+				this.value.coords[i] = in.readDouble();
+			this.value.setPointsCounter(this.header.isWeighted() ? in.readInt() : 1);
+			this.key.set(index);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package kmeans;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+// ecrit les points recus dans un fichier binaire par tache (voir PointsFile), le poids de chaque point n'est ecrit qu'en mode "pondere"
+public class PointsOutputFormat extends FileOutputFormat<NullWritable, PointXDWritable> {
+
+	public static void setWeighted(Job job, boolean weighted) {
+		job.getConfiguration().setBoolean("megaProject.points.weighted", weighted);
+	}
+
+	@Override
+	public RecordWriter<NullWritable, PointXDWritable> getRecordWriter(TaskAttemptContext context) throws IOException {
+		Path path = this.getDefaultWorkFile(context, ".points");
+		int nbDimensions = context.getConfiguration().getInt("megaProject.args.nbDimensions", 2);
+		int flags = context.getConfiguration().getBoolean("megaProject.points.weighted", false) ? PointsFile.FLAG_WEIGHTED : 0;
+		final PointsFile.Writer writer = new PointsFile.Writer(path.getFileSystem(context.getConfiguration()).create(path, false), nbDimensions, flags);
+
+		return new RecordWriter<NullWritable, PointXDWritable>() {
+
+			@Override
+			public void write(NullWritable key, PointXDWritable value) throws IOException {
+				writer.write(value.coords, value.getPointsCounter());
+			}
+
+			@Override
+			public void close(TaskAttemptContext context) throws IOException {
+				writer.close();
+			}
+		};
+	}
+}
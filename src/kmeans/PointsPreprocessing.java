@@ -0,0 +1,62 @@
+package kmeans;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+
+// job sans reducteur qui lit une seule fois le fichier texte et n'en garde que les colonnes "positions", au format binaire de PointsFile
+// les iterations suivantes lisent alors 8 * nbDimensions octets par point au lieu d'une ligne de texte complete
+public class PointsPreprocessing {
+
+	public static class ProjectionMapper extends Mapper<LongWritable, Text, NullWritable, PointXDWritable> {
+		private PointXDWritable currentPoint;
+		private int[] positions;
+		private boolean skipFirstLine;
+
+		@Override
+		public void setup(Context context) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+			int nbDimensions = conf.getInt("megaProject.args.nbDimensions", 2);
+			this.positions = new int[nbDimensions];
+			for(int i = 0; i < nbDimensions; ++i)
+				this.positions[i] = conf.getInt("megaProject.args.position" + i, 0);
+			PointXDWritable.setNbDimensions(nbDimensions);
+			this.currentPoint = new PointXDWritable();
+			this.skipFirstLine = conf.getBoolean("megaProject.args.skipFirstLine", false);
+		}
+
+		@Override
+		public void map(LongWritable key, Text value, Context context) throws IOException, InterruptedException {
+			if((this.skipFirstLine && key.get() == 0) || !this.currentPoint.set(value, this.positions))
+				return;
+			context.write(NullWritable.get(), this.currentPoint);
+		}
+	}
+
+	public static boolean run(Configuration conf, FileSystem fs, Path inputPath, Path outputPath) throws Exception {
+		Job job = Job.getInstance(conf, "MegaProjectOfTheKillingDeath - preprocessing");
+		job.setJarByClass(PointsPreprocessing.class);
+		job.setMapperClass(ProjectionMapper.class);
+		job.setNumReduceTasks(0);
+		job.setOutputKeyClass(NullWritable.class);
+		job.setOutputValueClass(PointXDWritable.class);
+		job.setInputFormatClass(TextInputFormat.class);
+		job.setOutputFormatClass(PointsOutputFormat.class);
+
+		FileInputFormat.addInputPath(job, inputPath);
+		if(fs.exists(outputPath))
+			fs.delete(outputPath, true);
+		FileOutputFormat.setOutputPath(job, outputPath);
+		return job.waitForCompletion(true);
+	}
+}
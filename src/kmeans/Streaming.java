@@ -0,0 +1,469 @@
+package kmeans;
+
+// java -cp kmeans.jar:$(hadoop classpath) kmeans.Streaming [--decay=X] [--window=N] [--driftThreshold=X] [--once] <inputDir> <modelDir> <nbClusters> <position1> ... <positionN>
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IntWritable;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+import common.CentroidSnapshot;
+import common.Options;
+import common.Timeline;
+import common.WireEncoding;
+
+// k-means incremental sur un repertoire d'entree qui grossit : chaque nouveau fichier n'est lu qu'une fois, par un seul job d'affectation,
+// et ajoute au modele existant au lieu de relancer Main depuis l'initialisation
+// le modele garde, a cote des clusterPoints, les statistiques suffisantes de chaque cluster (sommes des coordonnees et nombre de points),
+// et les clusterPoints sont les barycentres de ces statistiques ; les anciens fichiers peuvent peser moins :
+// - decay : a chaque nouveau fichier, les statistiques existantes sont multipliees par ce facteur (1 = pas d'oubli)
+// - window : seuls les N derniers fichiers comptent (0 = tous)
+// si la distance quadratique moyenne des nouveaux points a leur clusterPoint depasse de plus de driftThreshold celle du dernier calcul complet,
+// les clusterPoints sont recalcules par des iterations completes sur les fichiers qui comptent encore
+// le repertoire du modele contient "model" (etat complet), "centroids" (instantane binaire, voir CentroidSnapshot) et "clusterPoints" (format de Main)
+public class Streaming {
+	private static final int MAGIC = 0x4B53544D;
+	private static final int VERSION = 1;
+
+	// statistiques suffisantes : sommes des coordonnees et nombre de points (eventuellement attenues) par cluster
+	static class Stats {
+		final double[] sums;
+		final double[] counts;
+
+		Stats(int nbClusters, int nbDimensions) {
+			this.sums = new double[nbClusters * nbDimensions];
+			this.counts = new double[nbClusters];
+		}
+
+		void add(Stats stats, double factor) {
+			for(int i = 0; i < this.sums.length; ++i)
+				this.sums[i] += stats.sums[i] * factor;
+			for(int i = 0; i < this.counts.length; ++i)
+				this.counts[i] += stats.counts[i] * factor;
+		}
+
+		void scale(double factor) {
+			for(int i = 0; i < this.sums.length; ++i)
+				this.sums[i] *= factor;
+			for(int i = 0; i < this.counts.length; ++i)
+				this.counts[i] *= factor;
+		}
+
+		void write(DataOutputStream out) throws IOException {
+			for(double sum : this.sums)
+				out.writeDouble(sum);
+			for(double count : this.counts)
+				out.writeDouble(count);
+		}
+
+		static Stats read(DataInputStream in, int nbClusters, int nbDimensions) throws IOException {
+			Stats stats = new Stats(nbClusters, nbDimensions);
+			for(int i = 0; i < stats.sums.length; ++i)
+				stats.sums[i] = in.readDouble();
+			for(int i = 0; i < stats.counts.length; ++i)
+				stats.counts[i] = in.readDouble();
+			return stats;
+		}
+	}
+
+	// resultat d'un job d'affectation : statistiques de chaque fichier, somme des carres des distances et nombre de points lus
+	static class Pass {
+		final Map<String, Stats> fileStats = new HashMap<String, Stats>();
+		double sse;
+		long nbPoints;
+
+		double meanSquaredDistance() {
+			return this.nbPoints == 0 ? 0 : this.sse / this.nbPoints;
+		}
+	}
+
+	// etat persistant du modele
+	static class Model {
+		final int nbClusters;
+		final int nbDimensions;
+		double[][] centroids;
+		double referenceDistance; // distance quadratique moyenne des points a leur clusterPoint lors du dernier calcul complet
+		final List<String> files = new ArrayList<String>(); // fichiers deja lus, du plus ancien au plus recent
+		final List<Stats> windowStats = new ArrayList<Stats>(); // statistiques des derniers fichiers, seulement avec une fenetre
+		Stats totals;
+
+		Model(int nbClusters, int nbDimensions, double[][] centroids) {
+			this.nbClusters = nbClusters;
+			this.nbDimensions = nbDimensions;
+			this.centroids = centroids;
+			this.totals = new Stats(nbClusters, nbDimensions);
+		}
+
+		// fichiers dont les statistiques comptent encore
+		List<String> activeFiles(int window) {
+			return window > 0 && this.files.size() > window ? this.files.subList(this.files.size() - window, this.files.size()) : this.files;
+		}
+
+		// ajoute un fichier aux statistiques, le plus recent en dernier
+		void fold(String file, Stats stats, double decay, int window) {
+			this.files.add(file);
+			if(window > 0) {
+				this.windowStats.add(stats);
+				while(this.windowStats.size() > window)
+					this.windowStats.remove(0);
+				this.totals = new Stats(this.nbClusters, this.nbDimensions);
+				for(int i = 0; i < this.windowStats.size(); ++i)
+					this.totals.add(this.windowStats.get(i), Math.pow(decay, this.windowStats.size() - 1 - i));
+			}
+			else {
+				this.totals.scale(decay);
+				this.totals.add(stats, 1);
+			}
+		}
+
+		// remplace les statistiques par celles d'un calcul complet sur les fichiers actifs
+		void reset(List<String> activeFiles, Pass pass, double decay, int window) {
+			this.windowStats.clear();
+			this.totals = new Stats(this.nbClusters, this.nbDimensions);
+			Stats stats;
+			for(int i = 0; i < activeFiles.size(); ++i) {
+				stats = pass.fileStats.get(activeFiles.get(i));
+				if(stats == null)
+					stats = new Stats(this.nbClusters, this.nbDimensions); // fichier sans point valide
+				if(window > 0)
+					this.windowStats.add(stats);
+				this.totals.add(stats, Math.pow(decay, activeFiles.size() - 1 - i));
+			}
+		}
+
+		// barycentres des statistiques, un cluster vide garde son clusterPoint
+		void updateCentroids() {
+			for(int j = 0; j < this.nbClusters; ++j) {
+				if(this.totals.counts[j] <= 0)
+					continue;
+				for(int d = 0; d < this.nbDimensions; ++d)
+					this.centroids[j][d] = this.totals.sums[j * this.nbDimensions + d] / this.totals.counts[j];
+			}
+		}
+
+		// en-tete (MAGIC, VERSION, K, dimensions), clusterPoints, distance de reference, fichiers lus, statistiques, puis somme CRC32
+		void write(FileSystem fs, Path path) throws IOException {
+			CRC32 crc = new CRC32();
+			FSDataOutputStream os = fs.create(path, true);
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(os, 1 << 16), crc));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(this.nbClusters);
+			out.writeInt(this.nbDimensions);
+			for(double[] centroid : this.centroids)
+				for(double coord : centroid)
+					out.writeDouble(coord);
+			out.writeDouble(this.referenceDistance);
+			out.writeInt(this.files.size());
+			for(String file : this.files)
+				out.writeUTF(file);
+			this.totals.write(out);
+			out.writeInt(this.windowStats.size());
+			for(Stats stats : this.windowStats)
+				stats.write(out);
+			out.flush();
+			new DataOutputStream(os).writeLong(crc.getValue());
+			out.close();
+		}
+
+		static Model read(FileSystem fs, Path path) throws IOException {
+			CRC32 crc = new CRC32();
+			InputStream is = new BufferedInputStream(fs.open(path), 1 << 16);
+			DataInputStream in = new DataInputStream(new CheckedInputStream(is, crc));
+			try {
+				if(in.readInt() != MAGIC || in.readInt() != VERSION)
+					throw new IOException(path + " is not a streaming model");
+				int nbClusters = in.readInt();
+				int nbDimensions = in.readInt();
+				double[][] centroids = new double[nbClusters][nbDimensions];
+				for(double[] centroid : centroids)
+					for(int d = 0; d < nbDimensions; ++d)
+						centroid[d] = in.readDouble();
+				Model model = new Model(nbClusters, nbDimensions, centroids);
+				model.referenceDistance = in.readDouble();
+				int nbFiles = in.readInt();
+				for(int i = 0; i < nbFiles; ++i)
+					model.files.add(in.readUTF());
+				model.totals = Stats.read(in, nbClusters, nbDimensions);
+				int nbWindowStats = in.readInt();
+				for(int i = 0; i < nbWindowStats; ++i)
+					model.windowStats.add(Stats.read(in, nbClusters, nbDimensions));
+				long checksum = crc.getValue();
+				if(new DataInputStream(is).readLong() != checksum)
+					throw new IOException(path + " is corrupted");
+				return model;
+			}
+			finally {
+				in.close();
+			}
+		}
+	}
+
+	// mapper d'affectation de Main dont la cle porte aussi le fichier lu : fichier * nbClusters + cluster (un int, voir computeStats)
+	public static class FileStatsMapper extends Main.KmeansMapper {
+		private int fileOffset;
+		private boolean headers;
+
+		@Override
+		public void setup(Context context) throws IOException, InterruptedException {
+			super.setup(context);
+			Configuration conf = context.getConfiguration();
+			String name = ((FileSplit) context.getInputSplit()).getPath().getName();
+			this.fileOffset = Arrays.asList(conf.getStrings("megaProject.streaming.files")).indexOf(name) * this.clusterPoints.length;
+			this.headers = conf.getBoolean("megaProject.options.headers", false);
+		}
+
+		@Override
+		protected boolean isHeader(LongWritable key) {
+			return this.headers && key.get() == 0;
+		}
+
+		@Override
+		protected void emit(int clusterIndex, PointXDWritable point, Context context) throws IOException, InterruptedException {
+			super.emit(this.fileOffset + clusterIndex, point, context);
+		}
+	}
+
+	// affecte les points des fichiers aux clusterPoints du modele et retourne les statistiques de chaque fichier
+	// la cle d'un point (fichier * nbClusters + cluster) est un int : les fichiers sont repartis sur plusieurs jobs pour qu'elle ne deborde pas,
+	// ce qui peut arriver sans fenetre ("--window=0"), ou le recalcul relit tous les fichiers deja vus
+	private static Pass computeStats(Configuration conf, FileSystem fs, Path inputPath, List<String> files, Model model, Path modelPath) throws Exception {
+		int maxFiles = Integer.MAX_VALUE / model.nbClusters;
+		if(files.size() <= maxFiles)
+			return runStatsJob(conf, fs, inputPath, files, model, modelPath);
+		Pass pass = new Pass();
+		Pass part;
+		for(int i = 0; i < files.size(); i += maxFiles) {
+			part = runStatsJob(conf, fs, inputPath, files.subList(i, Math.min(files.size(), i + maxFiles)), model, modelPath);
+			pass.fileStats.putAll(part.fileStats);
+			pass.sse += part.sse;
+			pass.nbPoints += part.nbPoints;
+		}
+		return pass;
+	}
+
+	// un job d'affectation sur des fichiers dont les cles tiennent dans un int
+	private static Pass runStatsJob(Configuration conf, FileSystem fs, Path inputPath, List<String> files, Model model, Path modelPath) throws Exception {
+		Path centroidsPath = new Path(modelPath, "centroids");
+		Path outputPath = new Path(modelPath, "pass");
+		CentroidSnapshot.write(fs, centroidsPath, ClusterPointWritable.toSnapshot(toClusterPoints(model.centroids), model.files.size()));
+
+		// les options de Main qui changent la forme des sorties du mapper ne s'appliquent pas ici
+		Configuration jobConf = new Configuration(conf);
+		jobConf.setStrings("megaProject.streaming.files", files.toArray(new String[files.size()]));
+		jobConf.setBoolean("megaProject.options.inMapperCombining", false);
+		jobConf.setBoolean("megaProject.options.distanceBounds", false);
+		jobConf.setInt("megaProject.options.mapThreads", 1);
+		jobConf.setDouble("megaProject.sample.fraction", 1);
+
+		Job job = Job.getInstance(jobConf, "MegaProjectOfTheKillingDeath - streaming");
+		job.setJarByClass(Streaming.class);
+		job.addCacheFile(centroidsPath.toUri());
+		job.setMapperClass(FileStatsMapper.class);
+		job.setCombinerClass(Main.KmeansCombiner.class);
+		job.setReducerClass(Main.KmeansCombiner.class); // sommes des coordonnees et nombre de points de chaque fichier et de chaque cluster
+		job.setMapOutputKeyClass(IntWritable.class);
+		job.setMapOutputValueClass(PointXDWritable.class);
+		job.setOutputKeyClass(IntWritable.class);
+		job.setOutputValueClass(PointXDWritable.class);
+		job.setInputFormatClass(TextInputFormat.class);
+		job.setOutputFormatClass(SequenceFileOutputFormat.class);
+		for(String file : files)
+			FileInputFormat.addInputPath(job, new Path(inputPath, file));
+		if(fs.exists(outputPath))
+			fs.delete(outputPath, true);
+		FileOutputFormat.setOutputPath(job, outputPath);
+		if(!job.waitForCompletion(true))
+			throw new IOException("streaming pass failed on " + files);
+
+		Pass pass = new Pass();
+		pass.sse = job.getCounters().findCounter("megaProject.counters", "sse").getValue() / Timeline.SSE_SCALE;
+		pass.nbPoints = job.getCounters().findCounter("megaProject.counters", "recordsParsed").getValue();
+		PointXDWritable.setNbDimensions(model.nbDimensions);
+		PointXDWritable.setEncoding(WireEncoding.DEFAULT);
+		IntWritable key = new IntWritable();
+		PointXDWritable value = new PointXDWritable();
+		String file;
+		Stats stats;
+		for(FileStatus status : fs.listStatus(outputPath)) {
+			if(!status.getPath().getName().startsWith("part-"))
+				continue;
+			SequenceFile.Reader reader = new SequenceFile.Reader(jobConf, SequenceFile.Reader.file(status.getPath()));
+			while(reader.next(key, value)) {
+				file = files.get(key.get() / model.nbClusters);
+				stats = pass.fileStats.get(file);
+				if(stats == null)
+					pass.fileStats.put(file, stats = new Stats(model.nbClusters, model.nbDimensions));
+				int cluster = key.get() % model.nbClusters;
+				for(int d = 0; d < model.nbDimensions; ++d)
+					stats.sums[cluster * model.nbDimensions + d] = value.coords[d];
+				stats.counts[cluster] = value.getPointsCounter();
+			}
+			reader.close();
+		}
+		fs.delete(outputPath, true);
+		return pass;
+	}
+
+	// iterations completes sur les fichiers actifs, jusqu'a stabilisation des clusterPoints (au sens de ClusterPointWritable.equals)
+	private static void recompute(Configuration conf, FileSystem fs, Path inputPath, Model model, Path modelPath, double decay, int window, int maxIterations) throws Exception {
+		List<String> activeFiles = new ArrayList<String>(model.activeFiles(window));
+		ClusterPointWritable[] previous;
+		boolean changed = true;
+		Pass pass = null;
+		for(int iteration = 0; iteration < maxIterations && changed; ++iteration) {
+			previous = toClusterPoints(model.centroids);
+			pass = computeStats(conf, fs, inputPath, activeFiles, model, modelPath);
+			model.reset(activeFiles, pass, decay, window);
+			model.updateCentroids();
+			changed = !Arrays.equals(previous, toClusterPoints(model.centroids));
+			System.out.println("Full recompute, iteration " + iteration + " : mean squared distance = " + pass.meanSquaredDistance());
+		}
+		model.referenceDistance = pass.meanSquaredDistance();
+	}
+
+	private static ClusterPointWritable[] toClusterPoints(double[][] centroids) {
+		ClusterPointWritable[] clusterPoints = new ClusterPointWritable[centroids.length];
+		for(int i = 0; i < centroids.length; ++i)
+			clusterPoints[i] = new ClusterPointWritable(centroids[i].clone(), i);
+		return clusterPoints;
+	}
+
+	// fichiers du repertoire d'entree pas encore lus, par date de modification (les fichiers caches ou en cours d'ecriture "_" et "." sont ignores)
+	private static List<FileStatus> newFiles(FileSystem fs, Path inputPath, Set<String> knownFiles) throws IOException {
+		List<FileStatus> files = new ArrayList<FileStatus>();
+		for(FileStatus status : fs.listStatus(inputPath)) {
+			String name = status.getPath().getName();
+			if(status.isFile() && !name.startsWith("_") && !name.startsWith(".") && !knownFiles.contains(name))
+				files.add(status);
+		}
+		files.sort(new Comparator<FileStatus>() {
+			public int compare(FileStatus s1, FileStatus s2) {
+				int comparison = Long.compare(s1.getModificationTime(), s2.getModificationTime());
+				return comparison != 0 ? comparison : s1.getPath().getName().compareTo(s2.getPath().getName());
+			}
+		});
+		return files;
+	}
+
+	// le modele est d'abord ecrit a cote puis renomme, un arret pendant l'ecriture laisse l'ancien modele intact
+	private static void saveModel(Configuration conf, FileSystem fs, Model model, Path modelPath) throws IOException {
+		Path tmpPath = new Path(modelPath, "model.tmp");
+		model.write(fs, tmpPath);
+		fs.delete(new Path(modelPath, "model"), false);
+		fs.rename(tmpPath, new Path(modelPath, "model"));
+
+		ClusterPointWritable[] clusterPoints = toClusterPoints(model.centroids);
+		CentroidSnapshot.write(fs, new Path(modelPath, "centroids"), ClusterPointWritable.toSnapshot(clusterPoints, model.files.size()));
+		FSDataOutputStream os = fs.create(new Path(modelPath, "clusterPoints"), true);
+		ClusterPointWritable.writeIntoFile(clusterPoints, os);
+		os.close();
+	}
+
+	private static Model loadModel(FileSystem fs, Path modelPath) throws IOException {
+		Path path = new Path(modelPath, "model");
+		if(!fs.exists(path))
+			path = new Path(modelPath, "model.tmp"); // arret entre la suppression et le renommage
+		return fs.exists(path) ? Model.read(fs, path) : null;
+	}
+
+	public static int run(Configuration conf, String[] args) throws Exception {
+		FileSystem fs = FileSystem.get(conf);
+		args = Options.parse(conf, args);
+		if(args.length < 4) {
+			System.out.println("Usage : <command> [--decay=X] [--window=N] [--driftThreshold=X] [--maxIterations=N] [--pollSeconds=N] [--once] [--headers] [--init=firstLines|kmeansII|canopy] [--centroidIndex] <inputDir> <modelDir> <nbClusters> <position1> ... <positionN>");
+			return 0;
+		}
+
+		Path inputPath = new Path(args[0]);
+		Path modelPath = new Path(args[1]);
+		int nbClusters = Integer.parseInt(args[2]);
+		int nbDimensions = args.length - 3;
+		int[] positions = new int[nbDimensions];
+		for(int i = 3; i < args.length; ++i) {
+			positions[i - 3] = Integer.valueOf(args[i]);
+			conf.setInt("megaProject.args.position" + (i - 3), positions[i - 3]);
+		}
+		conf.setInt("megaProject.args.nbClusters", nbClusters);
+		conf.setInt("megaProject.args.nbDimensions", nbDimensions);
+		PointXDWritable.setNbDimensions(nbDimensions);
+
+		double decay = conf.getDouble("megaProject.options.decay", 1);
+		int window = conf.getInt("megaProject.options.window", 0);
+		double driftThreshold = conf.getDouble("megaProject.options.driftThreshold", 0.5);
+		int maxIterations = conf.getInt("megaProject.options.maxIterations", 20);
+		long pollTime = conf.getLong("megaProject.options.pollSeconds", 60) * 1000;
+
+		Model model = loadModel(fs, modelPath);
+		if(model != null && (model.nbClusters != nbClusters || model.nbDimensions != nbDimensions))
+			throw new IllegalArgumentException("the model in " + modelPath + " has " + model.nbClusters + " clusters of " + model.nbDimensions + " dimensions");
+
+		while(true) {
+			List<FileStatus> statuses = newFiles(fs, inputPath, model == null ? new HashSet<String>() : new HashSet<String>(model.files));
+			if(!statuses.isEmpty()) {
+				List<String> files = new ArrayList<String>();
+				for(FileStatus status : statuses)
+					files.add(status.getPath().getName());
+				System.out.println("New files : " + files);
+
+				// premier lancement : initialisation sur le premier fichier puis calcul complet
+				if(model == null) {
+					conf.setBoolean("megaProject.args.skipFirstLine", conf.getBoolean("megaProject.options.headers", false));
+					model = new Model(nbClusters, nbDimensions, ClusterPointWritable.toCoordsArray(Initialization.initiateClusterPoints(conf, fs, statuses.get(0).getPath(), nbClusters, nbDimensions, positions)));
+					for(int i = 0; i < model.centroids.length; ++i)
+						model.centroids[i] = model.centroids[i].clone();
+					model.files.addAll(files);
+					recompute(conf, fs, inputPath, model, modelPath, decay, window, maxIterations);
+				}
+				else {
+					// un seul passage sur les nouveaux fichiers, affectes aux clusterPoints courants
+					Pass pass = computeStats(conf, fs, inputPath, files, model, modelPath);
+					double drift = model.referenceDistance > 0 ? pass.meanSquaredDistance() / model.referenceDistance - 1 : 0;
+					System.out.println("Mean squared distance of the new points = " + pass.meanSquaredDistance() + ", drift = " + drift);
+					for(String file : files)
+						model.fold(file, pass.fileStats.containsKey(file) ? pass.fileStats.get(file) : new Stats(nbClusters, nbDimensions), decay, window);
+					model.updateCentroids();
+					if(drift > driftThreshold)
+						recompute(conf, fs, inputPath, model, modelPath, decay, window, maxIterations);
+				}
+				saveModel(conf, fs, model, modelPath);
+				ClusterPointWritable.displayClusterPoints(toClusterPoints(model.centroids));
+			}
+			if(conf.getBoolean("megaProject.options.once", false))
+				return 0;
+			Thread.sleep(pollTime);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		System.exit(run(new Configuration(), args));
+	}
+}